@@ -0,0 +1,51 @@
+package com.shock.utils.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * 依次用 1 到 64 个线程跑基准测试, 每个线程数的结果写成一个 jmh json 文件
+ *
+ * 用法: {@code java -cp target/benchmarks.jar com.shock.utils.benchmarks.BenchmarkRunner <label> [include] [maxThreads]}。
+ * 结果写到 {@code target/jmh-results/<label>/threads-<n>.json}, label 一般取 git commit,
+ * 两个 commit 的同名文件可以直接对比, 也可以交给 jmh visualizer 之类的工具。include 是基准测试名的正则,
+ * 默认 {@link CacheBenchmark}。
+ */
+public final class BenchmarkRunner {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        if (args.length < 1) {
+            System.err.println("Usage: BenchmarkRunner <label> [include] [maxThreads]");
+            System.exit(1);
+        }
+        String label = args[0];
+        String include = (args.length > 1 ? args[1] : CacheBenchmark.class.getSimpleName());
+        int maxThreads = (args.length > 2 ? Integer.parseInt(args[2]) : THREADS[THREADS.length - 1]);
+        File directory = new File("target/jmh-results", label);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Could not create " + directory);
+        }
+        for (int threads : THREADS) {
+            if (threads > maxThreads) {
+                break;
+            }
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(directory, "threads-" + threads + ".json").getPath())
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
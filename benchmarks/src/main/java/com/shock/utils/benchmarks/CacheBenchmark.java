@@ -0,0 +1,107 @@
+package com.shock.utils.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 缓存的读、写和混合负载
+ *
+ * key 空间是容量的两倍, 有界的 lru map 因此会有未命中和淘汰。每个线程从预先生成的 key 序列的不同位置开始,
+ * 混合负载里每四次操作有一次写。线程数用 {@code -t} 指定, 或者用 {@link BenchmarkRunner} 依次跑 1 到 64 个线程。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+    @Param({"LRU_MAP", "CONCURRENT_LRU_MAP", "CONCURRENT_REFERENCE_HASH_MAP",
+            "CONCURRENT_REFERENCE_OPEN_HASH_MAP", "CONCURRENT_HASH_MAP"})
+    private CacheType cacheType;
+
+    @Param({"1024", "65536", "1048576"})
+    private int size;
+
+    @Param({"UNIFORM", "ZIPFIAN"})
+    private KeyDistribution distribution;
+
+    private Map<Integer, Integer> cache;
+
+    private Integer[] keys;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int keySpace = this.size << 1;
+        int[] sequence = this.distribution.sequence(keySpace, KeyDistribution.SEQUENCE_LENGTH, 42);
+        // boxed once, so that the measurement does not allocate keys
+        Integer[] boxed = new Integer[keySpace];
+        for (int i = 0; i < keySpace; i++) {
+            boxed[i] = i;
+        }
+        this.keys = new Integer[sequence.length];
+        for (int i = 0; i < sequence.length; i++) {
+            this.keys[i] = boxed[sequence[i]];
+        }
+        this.cache = this.cacheType.create(this.size);
+        // distinct keys, a prefix of the sampled sequence repeats the popular ones
+        for (int i = 0; i < this.size; i++) {
+            this.cache.put(boxed[i], i);
+        }
+    }
+
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private int index;
+
+        @Setup(Level.Trial)
+        public void setUp(CacheBenchmark benchmark) {
+            // spread the threads over the sequence
+            this.index = benchmark.threads.getAndIncrement() * 0x9E3779B9;
+        }
+
+        Integer nextKey(Integer[] keys) {
+            return keys[this.index++ & (keys.length - 1)];
+        }
+    }
+
+
+    @Benchmark
+    public Integer get(ThreadState state) {
+        return this.cache.get(state.nextKey(this.keys));
+    }
+
+    @Benchmark
+    public Integer put(ThreadState state) {
+        Integer key = state.nextKey(this.keys);
+        return this.cache.put(key, key);
+    }
+
+    @Benchmark
+    public Integer mixed(ThreadState state) {
+        Integer key = state.nextKey(this.keys);
+        if ((state.index & 3) == 0) {
+            return this.cache.put(key, key);
+        }
+        return this.cache.get(key);
+    }
+}
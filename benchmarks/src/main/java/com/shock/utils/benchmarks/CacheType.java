@@ -0,0 +1,59 @@
+package com.shock.utils.benchmarks;
+
+import com.shock.utils.ConcurrentLRUMap;
+import com.shock.utils.LRUMap;
+import com.shock.utils.opensource.ConcurrentReferenceHashMap;
+import com.shock.utils.opensource.ConcurrentReferenceOpenHashMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 参与基准测试的 map
+ *
+ * lru map 按容量淘汰; 引用 map 不淘汰, 只按容量预先分配, 用软引用以免测量中途被回收。
+ * {@link ConcurrentHashMap} 作为基线。
+ */
+public enum CacheType {
+
+    LRU_MAP {
+        @Override
+        Map<Integer, Integer> create(int size) {
+            return new LRUMap<Integer, Integer>(size);
+        }
+    },
+
+    CONCURRENT_LRU_MAP {
+        @Override
+        Map<Integer, Integer> create(int size) {
+            return new ConcurrentLRUMap<Integer, Integer>(size);
+        }
+    },
+
+    CONCURRENT_REFERENCE_HASH_MAP {
+        @Override
+        Map<Integer, Integer> create(int size) {
+            return new ConcurrentReferenceHashMap<Integer, Integer>(size, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        }
+    },
+
+    CONCURRENT_REFERENCE_OPEN_HASH_MAP {
+        @Override
+        Map<Integer, Integer> create(int size) {
+            return new ConcurrentReferenceOpenHashMap<Integer, Integer>(size, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        }
+    },
+
+    CONCURRENT_HASH_MAP {
+        @Override
+        Map<Integer, Integer> create(int size) {
+            return new ConcurrentHashMap<Integer, Integer>(size);
+        }
+    };
+
+    /**
+     * @param size the maximum or expected number of entries
+     * @return a new empty map
+     */
+    abstract Map<Integer, Integer> create(int size);
+}
@@ -0,0 +1,86 @@
+package com.shock.utils.benchmarks;
+
+import java.util.Random;
+
+/**
+ * 基准测试里访问 key 的分布
+ *
+ * key 序列预先生成好, 测量时只按下标取, 不把随机数的开销算进去。
+ */
+public enum KeyDistribution {
+
+    /**
+     * Every key of the key space equally likely.
+     */
+    UNIFORM {
+        @Override
+        int[] sequence(int keySpace, int length, long seed) {
+            Random random = new Random(seed);
+            int[] sequence = new int[length];
+            for (int i = 0; i < length; i++) {
+                sequence[i] = random.nextInt(keySpace);
+            }
+            return sequence;
+        }
+    },
+
+    /**
+     * A few hot keys, with the skew (0.99) commonly used for cache workloads. The ranks
+     * are scrambled so that the hot keys do not share segments or buckets.
+     */
+    ZIPFIAN {
+        @Override
+        int[] sequence(int keySpace, int length, long seed) {
+            Random random = new Random(seed);
+            double theta = 0.99;
+            double zetaN = zeta(keySpace, theta);
+            double alpha = 1.0 / (1.0 - theta);
+            double eta = (1 - Math.pow(2.0 / keySpace, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+            int[] sequence = new int[length];
+            for (int i = 0; i < length; i++) {
+                // Gray et al., Quickly generating billion-record synthetic databases
+                double u = random.nextDouble();
+                double uz = u * zetaN;
+                long rank;
+                if (uz < 1.0) {
+                    rank = 0;
+                }
+                else if (uz < 1.0 + Math.pow(0.5, theta)) {
+                    rank = 1;
+                }
+                else {
+                    rank = (long) (keySpace * Math.pow(eta * u - eta + 1, alpha));
+                }
+                sequence[i] = scramble(Math.min(rank, keySpace - 1), keySpace);
+            }
+            return sequence;
+        }
+    };
+
+    /**
+     * The number of keys of a sequence, a power of two so that it can be walked with a mask.
+     */
+    static final int SEQUENCE_LENGTH = 1 << 20;
+
+    /**
+     * @param keySpace the number of distinct keys
+     * @param length the number of keys to generate
+     * @param seed the seed, so that runs are repeatable
+     * @return keys between {@code 0} and {@code keySpace - 1}
+     */
+    abstract int[] sequence(int keySpace, int length, long seed);
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    private static int scramble(long rank, int keySpace) {
+        long hash = rank * 0x9E3779B97F4A7C15L;
+        hash ^= (hash >>> 32);
+        return (int) ((hash & Long.MAX_VALUE) % keySpace);
+    }
+}
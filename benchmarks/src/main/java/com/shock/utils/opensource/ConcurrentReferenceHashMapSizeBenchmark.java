@@ -0,0 +1,112 @@
+package com.shock.utils.opensource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ConcurrentReferenceHashMap#mappingCount()} 和逐段累加 count 的对比
+ *
+ * 单线程下比较读取本身的开销, {@code contended} 组里两个线程一边读 size 一边有两个线程写入。
+ * 放在 {@code com.shock.utils.opensource} 包里是为了能访问 map 的段。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentReferenceHashMapSizeBenchmark {
+
+    private static final int KEYS = 1 << 16;
+
+    @Param({"16", "256"})
+    private int concurrencyLevel;
+
+    private ConcurrentReferenceHashMap<Integer, Integer> map;
+
+    private Integer[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.map = new ConcurrentReferenceHashMap<Integer, Integer>(KEYS, 0.75f, this.concurrencyLevel,
+                ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        this.keys = new Integer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            this.keys[i] = i;
+            this.map.put(this.keys[i], i);
+        }
+    }
+
+    /**
+     * How {@code size()} used to be computed.
+     */
+    private int segmentLoop() {
+        int size = 0;
+        for (int i = 0; i < this.map.getSegmentsSize(); i++) {
+            size += this.map.getSegment(i).getCount();
+        }
+        return size;
+    }
+
+    @Benchmark
+    public int segmentLoopSize() {
+        return segmentLoop();
+    }
+
+    @Benchmark
+    public long mappingCount() {
+        return this.map.mappingCount();
+    }
+
+    @Benchmark
+    @Group("contendedLoop")
+    @GroupThreads(2)
+    public int contendedLoopRead() {
+        return segmentLoop();
+    }
+
+    @Benchmark
+    @Group("contendedLoop")
+    @GroupThreads(2)
+    public Integer contendedLoopWrite() {
+        return write();
+    }
+
+    @Benchmark
+    @Group("contendedMappingCount")
+    @GroupThreads(2)
+    public long contendedMappingCountRead() {
+        return this.map.mappingCount();
+    }
+
+    @Benchmark
+    @Group("contendedMappingCount")
+    @GroupThreads(2)
+    public Integer contendedMappingCountWrite() {
+        return write();
+    }
+
+    /**
+     * Remove and put back a random key, the size stays the same.
+     */
+    private Integer write() {
+        Integer key = this.keys[ThreadLocalRandom.current().nextInt(KEYS)];
+        this.map.remove(key);
+        return this.map.put(key, key);
+    }
+}
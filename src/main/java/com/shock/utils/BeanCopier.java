@@ -0,0 +1,309 @@
+package com.shock.utils;
+
+import com.shock.utils.opensource.ConcurrentReferenceHashMap;
+import com.shock.utils.opensource.ReferenceCleaner;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 在两个类之间按字段名复制属性
+ *
+ * 创建时用 {@link ClassModel} 一次找出两边同名的实例字段 (不含目标类的 final 字段和 jvm 不允许访问的字段),
+ * 每个属性绑定好源字段和目标字段的 {@link FieldAccessor}, 基本类型按类型直接读写, 不装箱。
+ * 复制时只是依次执行这些预先绑定的属性。
+ *
+ * 不使用转换器时只复制类型兼容的属性: 基本类型要求完全相同, 引用类型要求目标字段能接收源字段的类型。
+ * 使用转换器时复制所有同名属性, 值先交给 {@link Converter} 转换再写入目标字段。
+ *
+ * 通过 {@link #create} 获取, 同一组参数的复制器会被缓存。
+ */
+public final class BeanCopier {
+
+    /**
+     * cache copiers per source, target and converter use, softly referenced like the class models
+     */
+    private static final ConcurrentReferenceHashMap<Key, BeanCopier> copierCache =
+            ReferenceCleaner.getShared().register(new ConcurrentReferenceHashMap<Key, BeanCopier>(64, 0.75f, 16,
+                    ConcurrentReferenceHashMap.ReferenceType.SOFT, false));
+
+    private static final int OBJECT = 0;
+
+    private static final int BOOLEAN = 1;
+
+    private static final int BYTE = 2;
+
+    private static final int CHAR = 3;
+
+    private static final int SHORT = 4;
+
+    private static final int INT = 5;
+
+    private static final int LONG = 6;
+
+    private static final int FLOAT = 7;
+
+    private static final int DOUBLE = 8;
+
+    private static final int CONVERTED = 9;
+
+    private final Class<?> sourceType;
+
+    private final Class<?> targetType;
+
+    private final boolean useConverter;
+
+    private final Property[] properties;
+
+
+    private BeanCopier(Class<?> sourceType, Class<?> targetType, boolean useConverter) {
+        this.sourceType = sourceType;
+        this.targetType = targetType;
+        this.useConverter = useConverter;
+        ClassModel sourceModel = ReflectionUtil.classModel(sourceType);
+        ClassModel targetModel = ReflectionUtil.classModel(targetType);
+        List<Property> properties = new ArrayList<Property>();
+        for (Field to : targetModel.getFields()) {
+            if (Modifier.isStatic(to.getModifiers()) || Modifier.isFinal(to.getModifiers())
+                    || targetModel.getField(to.getName()) != to) {
+                // shadowed fields are left alone, like in a lookup by name
+                continue;
+            }
+            Field from = sourceModel.getField(to.getName());
+            if (from == null || Modifier.isStatic(from.getModifiers())) {
+                continue;
+            }
+            if (!ReflectionUtil.trySetAccessible(from) || !ReflectionUtil.trySetAccessible(to)) {
+                // private state of a jdk superclass on java 9+
+                continue;
+            }
+            int kind = (useConverter ? CONVERTED : kindOf(from.getType(), to.getType()));
+            if (kind >= 0) {
+                properties.add(new Property(ReflectionUtil.accessor(from), ReflectionUtil.accessor(to), kind));
+            }
+        }
+        this.properties = properties.toArray(new Property[properties.size()]);
+    }
+
+    /**
+     * @return the way a value of the source type is copied to the target type, or -1 if it cannot be
+     */
+    private static int kindOf(Class<?> sourceType, Class<?> targetType) {
+        if (!targetType.isPrimitive()) {
+            return (targetType.isAssignableFrom(sourceType) ? OBJECT : -1);
+        }
+        if (sourceType != targetType) {
+            return -1;
+        }
+        if (targetType == boolean.class) {
+            return BOOLEAN;
+        }
+        if (targetType == byte.class) {
+            return BYTE;
+        }
+        if (targetType == char.class) {
+            return CHAR;
+        }
+        if (targetType == short.class) {
+            return SHORT;
+        }
+        if (targetType == int.class) {
+            return INT;
+        }
+        if (targetType == long.class) {
+            return LONG;
+        }
+        if (targetType == float.class) {
+            return FLOAT;
+        }
+        return DOUBLE;
+    }
+
+
+    /**
+     * Return the cached copier between the two classes, copying the compatible properties.
+     * @param sourceType the class to copy from
+     * @param targetType the class to copy to
+     * @return the copier
+     */
+    public static BeanCopier create(Class<?> sourceType, Class<?> targetType) {
+        return create(sourceType, targetType, false);
+    }
+
+    /**
+     * Return the cached copier between the two classes.
+     * @param sourceType the class to copy from
+     * @param targetType the class to copy to
+     * @param useConverter whether every property with a matching name goes through the
+     * converter given to {@link #copy(Object, Object, Converter)}
+     * @return the copier
+     */
+    public static BeanCopier create(Class<?> sourceType, Class<?> targetType, boolean useConverter) {
+        Assert.notNull(sourceType, "Source class must not be null");
+        Assert.notNull(targetType, "Target class must not be null");
+        Key key = new Key(sourceType, targetType, useConverter);
+        BeanCopier copier = copierCache.get(key);
+        if (copier == null) {
+            copier = new BeanCopier(sourceType, targetType, useConverter);
+            BeanCopier existing = copierCache.putIfAbsent(key, copier);
+            if (existing != null) {
+                copier = existing;
+            }
+        }
+        return copier;
+    }
+
+
+    /**
+     * Copy the properties of one object to the other.
+     * @param source an instance of the source class
+     * @param target an instance of the target class
+     */
+    public void copy(Object source, Object target) {
+        Assert.isTrue(!this.useConverter, "Copier was created to use a converter");
+        copy(source, target, null);
+    }
+
+    /**
+     * Copy the properties of one object to the other, converting the values.
+     * @param source an instance of the source class
+     * @param target an instance of the target class
+     * @param converter converts the values, required if the copier was created to use one
+     */
+    public void copy(Object source, Object target, Converter converter) {
+        // not through Assert, the messages would be built on every copy
+        if (!this.sourceType.isInstance(source)) {
+            throw new IllegalArgumentException("Source must be an instance of " + this.sourceType.getName());
+        }
+        if (!this.targetType.isInstance(target)) {
+            throw new IllegalArgumentException("Target must be an instance of " + this.targetType.getName());
+        }
+        Assert.isTrue(!this.useConverter || converter != null, "Converter must not be null");
+        for (Property property : this.properties) {
+            property.copy(source, target, converter);
+        }
+    }
+
+    /**
+     * @return the names of the properties copied, in the order they are copied
+     */
+    public List<String> getPropertyNames() {
+        List<String> names = new ArrayList<String>(this.properties.length);
+        for (Property property : this.properties) {
+            names.add(property.to.getField().getName());
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    @Override
+    public String toString() {
+        return "BeanCopier[" + this.sourceType.getName() + " -> " + this.targetType.getName()
+                + ", " + getPropertyNames() + "]";
+    }
+
+
+    /**
+     * Converts the value of a property before it is written to the target.
+     */
+    public interface Converter {
+
+        /**
+         * @param value the value read from the source, possibly {@code null}
+         * @param targetType the type of the target field
+         * @param propertyName the name of the property
+         * @return the value to write, of a type the target field accepts
+         */
+        Object convert(Object value, Class<?> targetType, String propertyName);
+    }
+
+
+    /**
+     * One property, copied according to its kind without boxing primitives.
+     */
+    private static final class Property {
+
+        private final FieldAccessor from;
+
+        private final FieldAccessor to;
+
+        private final int kind;
+
+        Property(FieldAccessor from, FieldAccessor to, int kind) {
+            this.from = from;
+            this.to = to;
+            this.kind = kind;
+        }
+
+        void copy(Object source, Object target, Converter converter) {
+            switch (this.kind) {
+                case BOOLEAN:
+                    this.to.setBoolean(target, this.from.getBoolean(source));
+                    break;
+                case BYTE:
+                    this.to.setByte(target, this.from.getByte(source));
+                    break;
+                case CHAR:
+                    this.to.setChar(target, this.from.getChar(source));
+                    break;
+                case SHORT:
+                    this.to.setShort(target, this.from.getShort(source));
+                    break;
+                case INT:
+                    this.to.setInt(target, this.from.getInt(source));
+                    break;
+                case LONG:
+                    this.to.setLong(target, this.from.getLong(source));
+                    break;
+                case FLOAT:
+                    this.to.setFloat(target, this.from.getFloat(source));
+                    break;
+                case DOUBLE:
+                    this.to.setDouble(target, this.from.getDouble(source));
+                    break;
+                case CONVERTED:
+                    Field field = this.to.getField();
+                    this.to.set(target, converter.convert(this.from.get(source), field.getType(), field.getName()));
+                    break;
+                default:
+                    this.to.set(target, this.from.get(source));
+            }
+        }
+    }
+
+
+    private static final class Key {
+
+        private final Class<?> sourceType;
+
+        private final Class<?> targetType;
+
+        private final boolean useConverter;
+
+        Key(Class<?> sourceType, Class<?> targetType, boolean useConverter) {
+            this.sourceType = sourceType;
+            this.targetType = targetType;
+            this.useConverter = useConverter;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key otherKey = (Key) other;
+            return (this.sourceType == otherKey.sourceType && this.targetType == otherKey.targetType
+                    && this.useConverter == otherKey.useConverter);
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.sourceType.hashCode() * 31 + this.targetType.hashCode()) * 31 + (this.useConverter ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.shock.utils;
+
+/**
+ * {@link StatsCounter} 的不可变快照
+ *
+ * 两个快照相减 ({@link #minus}) 可以得到一段时间内的增量。
+ */
+public final class CacheStats {
+
+    /**
+     * Number of buckets of the load time histogram, one per power of two nanoseconds.
+     */
+    public static final int HISTOGRAM_BUCKETS = 64;
+
+    static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0, 0, 0, 0, 0, new long[HISTOGRAM_BUCKETS]);
+
+    private final long hitCount;
+
+    private final long missCount;
+
+    private final long putCount;
+
+    private final long evictionCount;
+
+    private final long evictionWeight;
+
+    private final long loadSuccessCount;
+
+    private final long loadFailureCount;
+
+    private final long totalLoadTime;
+
+    private final long[] loadTimeHistogram;
+
+
+    public CacheStats(long hitCount, long missCount, long putCount, long evictionCount, long evictionWeight,
+            long loadSuccessCount, long loadFailureCount, long totalLoadTime, long[] loadTimeHistogram) {
+        Assert.notNull(loadTimeHistogram, "Load time histogram must not be null");
+        Assert.isTrue(loadTimeHistogram.length == HISTOGRAM_BUCKETS,
+                "Load time histogram must have " + HISTOGRAM_BUCKETS + " buckets");
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.putCount = putCount;
+        this.evictionCount = evictionCount;
+        this.evictionWeight = evictionWeight;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTime = totalLoadTime;
+        this.loadTimeHistogram = loadTimeHistogram.clone();
+    }
+
+
+    public long hitCount() {
+        return this.hitCount;
+    }
+
+    public long missCount() {
+        return this.missCount;
+    }
+
+    public long requestCount() {
+        return this.hitCount + this.missCount;
+    }
+
+    /**
+     * @return the ratio of requests that were hits, {@code 1.0} if there were no requests
+     */
+    public double hitRate() {
+        long requestCount = requestCount();
+        return (requestCount == 0 ? 1.0 : (double) this.hitCount / requestCount);
+    }
+
+    public long putCount() {
+        return this.putCount;
+    }
+
+    /**
+     * @return the number of entries that were evicted or expired
+     */
+    public long evictionCount() {
+        return this.evictionCount;
+    }
+
+    public long evictionWeight() {
+        return this.evictionWeight;
+    }
+
+    public long loadSuccessCount() {
+        return this.loadSuccessCount;
+    }
+
+    public long loadFailureCount() {
+        return this.loadFailureCount;
+    }
+
+    /**
+     * @return the total time spent loading, in nanoseconds
+     */
+    public long totalLoadTime() {
+        return this.totalLoadTime;
+    }
+
+    /**
+     * @return the average time of a load, in nanoseconds
+     */
+    public double averageLoadPenalty() {
+        long loadCount = this.loadSuccessCount + this.loadFailureCount;
+        return (loadCount == 0 ? 0.0 : (double) this.totalLoadTime / loadCount);
+    }
+
+    /**
+     * @return the number of loads per bucket, bucket {@code i} counts the loads that took
+     * between {@code 2^i} (inclusive) and {@code 2^(i+1)} (exclusive) nanoseconds
+     */
+    public long[] loadTimeHistogram() {
+        return this.loadTimeHistogram.clone();
+    }
+
+    /**
+     * Estimate a percentile of the load time from the histogram.
+     * @param percentile the percentile, between {@code 0} and {@code 100}
+     * @return the upper bound of the bucket containing the percentile, in nanoseconds,
+     * {@code 0} if there were no loads
+     */
+    public long loadTimePercentile(double percentile) {
+        Assert.isTrue(percentile >= 0 && percentile <= 100, "Percentile must be between 0 and 100");
+        long loadCount = 0;
+        for (long count : this.loadTimeHistogram) {
+            loadCount += count;
+        }
+        if (loadCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(loadCount * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < this.loadTimeHistogram.length; i++) {
+            seen += this.loadTimeHistogram[i];
+            if (seen >= rank && seen > 0) {
+                return (i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @param other an earlier snapshot
+     * @return the difference between this snapshot and the other one, never negative
+     */
+    public CacheStats minus(CacheStats other) {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = Math.max(0, this.loadTimeHistogram[i] - other.loadTimeHistogram[i]);
+        }
+        return new CacheStats(
+                Math.max(0, this.hitCount - other.hitCount),
+                Math.max(0, this.missCount - other.missCount),
+                Math.max(0, this.putCount - other.putCount),
+                Math.max(0, this.evictionCount - other.evictionCount),
+                Math.max(0, this.evictionWeight - other.evictionWeight),
+                Math.max(0, this.loadSuccessCount - other.loadSuccessCount),
+                Math.max(0, this.loadFailureCount - other.loadFailureCount),
+                Math.max(0, this.totalLoadTime - other.totalLoadTime),
+                histogram);
+    }
+
+    static int histogramBucket(long nanos) {
+        return (nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats[hitCount=" + this.hitCount + ", missCount=" + this.missCount +
+                ", putCount=" + this.putCount + ", evictionCount=" + this.evictionCount +
+                ", evictionWeight=" + this.evictionWeight + ", loadSuccessCount=" + this.loadSuccessCount +
+                ", loadFailureCount=" + this.loadFailureCount + ", totalLoadTime=" + this.totalLoadTime + "]";
+    }
+}
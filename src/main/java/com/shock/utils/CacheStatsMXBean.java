@@ -0,0 +1,31 @@
+package com.shock.utils;
+
+/**
+ * 通过 jmx 导出的 {@link ConcurrentLRUMap} 统计信息
+ *
+ * 由 {@link ConcurrentLRUMap#registerMXBean(String)} 注册, 每次读取属性都会重新取一次快照。
+ */
+public interface CacheStatsMXBean {
+
+    public long getHitCount();
+
+    public long getMissCount();
+
+    public double getHitRate();
+
+    public long getPutCount();
+
+    public long getEvictionCount();
+
+    public long getLoadSuccessCount();
+
+    public long getLoadFailureCount();
+
+    public double getAverageLoadPenalty();
+
+    public long getLoadTime99thPercentile();
+
+    public int getSize();
+
+    public long getWeightedSize();
+}
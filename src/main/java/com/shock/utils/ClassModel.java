@@ -0,0 +1,234 @@
+package com.shock.utils;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 一个类及其父类 (不含 {@link Object}) 的字段和方法, 预先整理好的不可变模型
+ *
+ * 字段和方法按父类在前、子类在后的顺序展开成数组; 每种注解对应标注了它的成员下标, 按注解过滤只是查一次表。
+ * 按名字查找时从子类往父类找, 同名成员中第一个找到的胜出, 和逐级调用 {@link Class#getDeclaredField} 的结果一样,
+ * 找不到的名字也只是一次 map 查找, 不抛异常、不打日志。
+ *
+ * 成员在第一次被返回时才 {@code setAccessible}, 每个成员只尝试一次。java 9 以上 jvm 不允许打开的成员
+ * (比如父类是 {@code java.*} 中的类时它的私有成员) 照样返回, 只是保持不可访问, 不影响整个模型。
+ *
+ * 通过 {@link ReflectionUtil#classModel(Class)} 获取, 每个类只创建一次。
+ */
+public final class ClassModel {
+
+    private final Class<?> type;
+
+    private final Members<Field> fields;
+
+    private final Members<Method> methods;
+
+
+    ClassModel(Class<?> type) {
+        Assert.notNull(type, "Class must not be null");
+        this.type = type;
+        List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            hierarchy.add(c);
+        }
+        List<Field> fields = new ArrayList<Field>();
+        List<Method> methods = new ArrayList<Method>();
+        // walk down for the flattened order
+        for (int i = hierarchy.size() - 1; i >= 0; i--) {
+            Class<?> c = hierarchy.get(i);
+            fields.addAll(Arrays.asList(c.getDeclaredFields()));
+            methods.addAll(Arrays.asList(c.getDeclaredMethods()));
+        }
+        this.fields = new Members<Field>(fields.toArray(new Field[fields.size()]));
+        this.methods = new Members<Method>(methods.toArray(new Method[methods.size()]));
+    }
+
+
+    /**
+     * @return the class this model describes
+     */
+    public Class<?> getType() {
+        return this.type;
+    }
+
+    /**
+     * @return all fields, superclass fields first, unmodifiable
+     */
+    public List<Field> getFields() {
+        return this.fields.all();
+    }
+
+    /**
+     * @param annotationTypes the annotations to look for, none for all fields
+     * @return the fields carrying any of the annotations, superclass fields first
+     */
+    @SafeVarargs
+    public final List<Field> getFields(Class<? extends Annotation>... annotationTypes) {
+        return this.fields.select(annotationTypes);
+    }
+
+    /**
+     * @return all methods, superclass methods first, unmodifiable
+     */
+    public List<Method> getMethods() {
+        return this.methods.all();
+    }
+
+    /**
+     * @param annotationTypes the annotations to look for, none for all methods
+     * @return the methods carrying any of the annotations, superclass methods first
+     */
+    @SafeVarargs
+    public final List<Method> getMethods(Class<? extends Annotation>... annotationTypes) {
+        return this.methods.select(annotationTypes);
+    }
+
+    /**
+     * @return the first field with this name up the hierarchy, or {@code null}
+     */
+    public Field getField(String name) {
+        return this.fields.named(name);
+    }
+
+    /**
+     * @return the first method with this name up the hierarchy, or {@code null}
+     */
+    public Method getMethod(String name) {
+        return this.methods.named(name);
+    }
+
+    @Override
+    public String toString() {
+        return "ClassModel[" + this.type.getName() + ", " + this.fields.members.length + " fields, "
+                + this.methods.members.length + " methods]";
+    }
+
+
+    /**
+     * The fields or the methods of the hierarchy, indexed by name and annotation, made
+     * accessible the first time they are returned.
+     */
+    private static final class Members<T extends AccessibleObject & Member> {
+
+        private final T[] members;
+
+        private final List<T> list;
+
+        private final Map<Class<? extends Annotation>, int[]> byAnnotation;
+
+        private final Map<String, Integer> byName;
+
+        /**
+         * 1 once {@code setAccessible} was tried on a member. Set after trying, so a thread
+         * seeing it also sees the accessible flag; two threads may both try, which does no harm.
+         */
+        private final AtomicIntegerArray opened;
+
+        private volatile boolean allOpened;
+
+        Members(T[] members) {
+            this.members = members;
+            this.list = Collections.unmodifiableList(Arrays.asList(members));
+            this.opened = new AtomicIntegerArray(members.length);
+            Map<String, Integer> byName = new HashMap<String, Integer>();
+            Map<Class<? extends Annotation>, List<Integer>> positions = new HashMap<Class<? extends Annotation>, List<Integer>>();
+            // members are in flattened order, the last declaring class seen is the most derived one
+            Class<?> declaringClass = null;
+            Map<String, Integer> level = new HashMap<String, Integer>();
+            for (int i = 0; i < members.length; i++) {
+                if (members[i].getDeclaringClass() != declaringClass) {
+                    byName.putAll(level);
+                    level.clear();
+                    declaringClass = members[i].getDeclaringClass();
+                }
+                // within a class the first one wins, like a walk over getDeclaredMethods
+                if (!level.containsKey(members[i].getName())) {
+                    level.put(members[i].getName(), i);
+                }
+                // members do not inherit annotations, the declared ones are all of them
+                for (Annotation annotation : members[i].getDeclaredAnnotations()) {
+                    List<Integer> list = positions.get(annotation.annotationType());
+                    if (list == null) {
+                        list = new ArrayList<Integer>();
+                        positions.put(annotation.annotationType(), list);
+                    }
+                    list.add(i);
+                }
+            }
+            byName.putAll(level);
+            this.byName = byName;
+            Map<Class<? extends Annotation>, int[]> byAnnotation = new HashMap<Class<? extends Annotation>, int[]>();
+            for (Map.Entry<Class<? extends Annotation>, List<Integer>> entry : positions.entrySet()) {
+                int[] array = new int[entry.getValue().size()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = entry.getValue().get(i);
+                }
+                byAnnotation.put(entry.getKey(), array);
+            }
+            this.byAnnotation = byAnnotation;
+        }
+
+        private T open(int index) {
+            if (this.opened.get(index) == 0) {
+                ReflectionUtil.trySetAccessible(this.members[index]);
+                this.opened.set(index, 1);
+            }
+            return this.members[index];
+        }
+
+        List<T> all() {
+            if (!this.allOpened) {
+                for (int i = 0; i < this.members.length; i++) {
+                    open(i);
+                }
+                this.allOpened = true;
+            }
+            return this.list;
+        }
+
+        T named(String name) {
+            Integer index = this.byName.get(name);
+            return (index != null ? open(index) : null);
+        }
+
+        /**
+         * The members carrying any of the annotations, in the flattened order.
+         */
+        @SafeVarargs
+        final List<T> select(Class<? extends Annotation>... annotationTypes) {
+            if (annotationTypes == null || annotationTypes.length == 0) {
+                return all();
+            }
+            boolean[] selected = new boolean[this.members.length];
+            int count = 0;
+            for (Class<? extends Annotation> annotationType : annotationTypes) {
+                int[] positions = this.byAnnotation.get(annotationType);
+                if (positions != null) {
+                    for (int position : positions) {
+                        if (!selected[position]) {
+                            selected[position] = true;
+                            count++;
+                        }
+                    }
+                }
+            }
+            List<T> result = new ArrayList<T>(count);
+            for (int i = 0; i < selected.length; i++) {
+                if (selected[i]) {
+                    result.add(open(i));
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.shock.utils;
+
+/**
+ * 对象和字节之间的编解码, 用于把值放到堆外或者写到文件里
+ * @param <T>
+ */
+public interface Codec<T> {
+
+    /**
+     * @param value the value, never {@code null}
+     * @return the bytes of the value
+     */
+    public byte[] encode(T value);
+
+    /**
+     * @param bytes the bytes returned by {@link #encode}
+     * @return the decoded value
+     */
+    public T decode(byte[] bytes);
+}
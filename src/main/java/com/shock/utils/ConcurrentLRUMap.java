@@ -0,0 +1,1949 @@
+package com.shock.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 分段加锁的并发lrumap实现
+ *
+ * 与 {@link LRUMap} 保持同样的 {@code maxSize} 语义, 但是把 key 按 hash 划分到多个
+ * {@link Segment} 中, 每个 segment 拥有自己的锁、lru 链表和容量配额。不同 segment 上的读写
+ * 互不阻塞, 淘汰也只在本 segment 内进行, 所以整体是一个近似的 lru。
+ *
+ * 通过 {@link Builder#readBuffered} 可以把命中记录到有损的 {@link ReadBuffer} 中批量回放,
+ * 读操作不再需要加锁。
+ *
+ * 淘汰策略默认是 lru, 也可以通过 {@link Builder#evictionPolicy} 换成 W-TinyLFU, 扫描大量冷数据时
+ * 不会把热点数据挤出去。
+ *
+ * 容量也可以按权重限制, 比如配合 {@link ObjectSizeWeigher} 按估算的字节数限制堆内存占用。
+ *
+ * 支持写入后过期和访问后过期, 过期由每个 segment 的分层 {@link TimerWheel} 驱动, 在写入、回放命中或者
+ * {@link #cleanUp()} 时摊还清理, 不需要为每个条目创建定时任务。已过期但还没清理的条目读不到, 但仍计入
+ * {@link #size()}。
+ *
+ * {@link #get(Object, CallBack)} 在未命中时加载值, 同一个 key 并发的未命中只会加载一次, 其余线程等待同一个
+ * 加载结果。配置了 {@link Builder#refreshAfterWrite} 后, 写入超过指定时间的值在命中时会被异步重新加载,
+ * 加载完成前继续返回旧值。{@link Builder#build(CallBack)} 可以把加载逻辑绑定成一个 {@link LoadingLRUMap}。
+ *
+ * {@link Builder#recordStats()} 开启命中、未命中、写入、淘汰和加载耗时的统计, 可以通过 {@link #stats()}
+ * 取快照或者用 {@link #registerMXBean(String)} 导出到 jmx。不开启时没有任何统计开销。
+ *
+ * 通过 {@link Builder#offHeap} 可以开启堆外的第二级存储: 从堆上淘汰的条目用 {@link Codec} 序列化后放进
+ * {@link OffHeapStore}, 再次读到时解码并提升回堆上。长期存活的大量值因此不会堆积在老年代里。
+ *
+ * 视图的迭代器不加锁, 是弱一致的, 不会抛出 {@link java.util.ConcurrentModificationException};
+ * {@link #snapshot(int, CallBackNoReturn)} 按固定大小分块复制全部条目, 适合监控和持久化线程扫描大 map。
+ *
+ * 不支持 {@code null} 的 key 和 value。
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentLRUMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrentLRUMap.class);
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    private static final int MAXIMUM_CONCURRENCY_LEVEL = 1 << 16;
+
+    private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+    /**
+     * Initial capacity of a segment that is bounded by weight and not by a number of entries.
+     */
+    private static final int DEFAULT_WEIGHTED_CAPACITY = 1 << 10;
+
+
+    /**
+     * Array of segments indexed using the high order bits from the hash.
+     */
+    private final Segment[] segments;
+
+    /**
+     * The shift value used to calculate the size of the segments array and an index from the hash.
+     */
+    private final int shift;
+
+    /**
+     * The maximum number of entries, or the maximum total weight, of all segments together.
+     */
+    private final long maximum;
+
+    /**
+     * Computes the weight of an entry, {@code null} if every entry weighs one.
+     */
+    private final Weigher<? super K, ? super V> weigher;
+
+    /**
+     * Whether hits are recorded in a {@link ReadBuffer} instead of under the segment lock.
+     */
+    private final boolean readBuffered;
+
+    private final EvictionPolicy evictionPolicy;
+
+    /**
+     * How long an entry lives after it was written, {@code -1} if it does not expire.
+     */
+    private final long expireAfterWriteNanos;
+
+    /**
+     * How long an entry lives after it was last read or written, {@code -1} if it does
+     * not expire.
+     */
+    private final long expireAfterAccessNanos;
+
+    /**
+     * How long after it was written a value is reloaded on the next hit, {@code -1} if
+     * values are never refreshed.
+     */
+    private final long refreshAfterWriteNanos;
+
+    /**
+     * Whether write times are tracked, for expiration or for refreshing.
+     */
+    private final boolean ticking;
+
+    private final Ticker ticker;
+
+    /**
+     * Runs asynchronous refreshes.
+     */
+    private final Executor refreshExecutor;
+
+    /**
+     * Bytes of direct memory of the off-heap tier, {@code 0} if there is none.
+     */
+    private final long offHeapCapacity;
+
+    /**
+     * Encodes the values moved to the off-heap tier, {@code null} if there is none.
+     */
+    private final Codec<V> valueCodec;
+
+    /**
+     * Records hits, misses, puts, evictions and loads, {@link StatsCounter#DISABLED} by default.
+     */
+    private final StatsCounter statsCounter;
+
+    /**
+     * Loads that are in flight, so that concurrent misses of the same key share one.
+     */
+    private final ConcurrentMap<K, LoadingTask> loading = new ConcurrentHashMap<K, LoadingTask>();
+
+    /**
+     * Late binding entry set.
+     */
+    private Set<Map.Entry<K, V>> entrySet;
+
+
+    /**
+     * Create a new {@code ConcurrentLRUMap} instance.
+     * @param maxSize the maximum number of entries
+     */
+    public ConcurrentLRUMap(int maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Create a new {@code ConcurrentLRUMap} instance.
+     * @param maxSize the maximum number of entries
+     * @param concurrencyLevel the expected number of threads that will concurrently
+     * access the map
+     */
+    public ConcurrentLRUMap(int maxSize, int concurrencyLevel) {
+        this(new Builder<K, V>(maxSize).concurrencyLevel(concurrencyLevel));
+    }
+
+    @SuppressWarnings("unchecked")
+    private ConcurrentLRUMap(Builder<K, V> builder) {
+        this.maximum = builder.maximum;
+        this.weigher = builder.weigher;
+        this.readBuffered = builder.readBuffered;
+        this.evictionPolicy = builder.evictionPolicy;
+        this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+        this.expireAfterAccessNanos = builder.expireAfterAccessNanos;
+        this.refreshAfterWriteNanos = builder.refreshAfterWriteNanos;
+        this.ticking = (isExpiring() || this.refreshAfterWriteNanos >= 0);
+        this.ticker = builder.ticker;
+        this.refreshExecutor = builder.refreshExecutor;
+        this.statsCounter = builder.statsCounter;
+        this.offHeapCapacity = builder.offHeapCapacity;
+        this.valueCodec = builder.valueCodec;
+        // the off-heap tier does not track write and access times
+        Assert.isTrue(this.offHeapCapacity == 0 || !isExpiring(), "Off-heap tier does not support expiration");
+        // never create more segments than budget units, otherwise some segments would have no budget
+        this.shift = calculateShift(
+                (int) Math.min(builder.concurrencyLevel, Long.highestOneBit(this.maximum)),
+                MAXIMUM_CONCURRENCY_LEVEL);
+        int size = 1 << this.shift;
+        // every segment gets its own off-heap store, which needs room for at least one chunk
+        Assert.isTrue(this.offHeapCapacity == 0 || this.offHeapCapacity / size >= OffHeapStore.MIN_CHUNK_SIZE,
+                "Off-heap capacity of " + this.offHeapCapacity + " bytes is too small for " + size +
+                        " segments, it must be at least " + (size * (long) OffHeapStore.MIN_CHUNK_SIZE) + " bytes");
+        this.segments = (Segment[]) Array.newInstance(Segment.class, size);
+        for (int i = 0; i < this.segments.length; i++) {
+            // spread the remainder over the first segments so the budgets add up to the maximum
+            long budget = this.maximum / size + (i < this.maximum % size ? 1 : 0);
+            this.segments[i] = new Segment(budget, this.evictionPolicy, this.readBuffered,
+                    this.offHeapCapacity / size);
+        }
+    }
+
+
+    /**
+     * @return the maximum number of entries, or {@code -1} if the map is bounded by weight
+     */
+    public int getMaxSize() {
+        return (this.weigher == null ? (int) this.maximum : -1);
+    }
+
+    /**
+     * @return the maximum total weight, the same as the maximum number of entries if the
+     * map has no {@link Weigher}
+     */
+    public long getMaxWeight() {
+        return this.maximum;
+    }
+
+    /**
+     * @return whether entries of this map can expire
+     */
+    public boolean isExpiring() {
+        return (this.expireAfterWriteNanos >= 0 || this.expireAfterAccessNanos >= 0);
+    }
+
+    /**
+     * Remove expired entries and replay buffered hits in every segment. Expired entries
+     * are otherwise only removed while the map is being written or read, so a map that
+     * sees no traffic keeps them until this method is called.
+     */
+    public void cleanUp() {
+        for (Segment segment : this.segments) {
+            segment.cleanUp();
+        }
+    }
+
+    public boolean isRecordingStats() {
+        return (this.statsCounter != StatsCounter.DISABLED);
+    }
+
+    /**
+     * @return a snapshot of the statistics, all zero unless they are recorded
+     */
+    public CacheStats stats() {
+        return this.statsCounter.snapshot();
+    }
+
+    /**
+     * Export the statistics of this map to the platform MBean server.
+     * @param name the name of the map, used as the {@code name} key of the object name
+     * @return the object name the MXBean was registered under
+     * @throws IllegalStateException if the MXBean could not be registered, for example
+     * because the name is already taken
+     */
+    public ObjectName registerMXBean(String name) {
+        Assert.isTrue(StringUtils.hasText(name), "Name must not be empty");
+        try {
+            ObjectName objectName = getObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StatsMXBean(), objectName);
+            return objectName;
+        }
+        catch (JMException ex) {
+            throw new IllegalStateException("Could not register MXBean for map [" + name + "]", ex);
+        }
+    }
+
+    /**
+     * Remove the MXBean registered by {@link #registerMXBean(String)}.
+     * @param name the name of the map
+     */
+    public void unregisterMXBean(String name) {
+        Assert.isTrue(StringUtils.hasText(name), "Name must not be empty");
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName(name));
+        }
+        catch (JMException ex) {
+            throw new IllegalStateException("Could not unregister MXBean for map [" + name + "]", ex);
+        }
+    }
+
+    private ObjectName getObjectName(String name) throws JMException {
+        return new ObjectName(getClass().getPackage().getName() + ":type=" + getClass().getSimpleName() +
+                ",name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Copy all entries. The copy is made without taking any segment lock, so it is as
+     * weakly consistent as the iterators of the views.
+     * @return the copied entries, in no particular order
+     */
+    public List<Map.Entry<K, V>> snapshot() {
+        final List<Map.Entry<K, V>> snapshot = new ArrayList<Map.Entry<K, V>>(size());
+        snapshot(Integer.MAX_VALUE, new CallBackNoReturn<List<Map.Entry<K, V>>>() {
+            @Override
+            public void execute(List<Map.Entry<K, V>> chunk) {
+                snapshot.addAll(chunk);
+            }
+        });
+        return snapshot;
+    }
+
+    /**
+     * Copy all entries in chunks of bounded size, handing every chunk to the consumer
+     * as soon as it is full. No lock is held while copying or while the consumer runs,
+     * so a large map can be scanned or persisted without holding up other threads and
+     * without materializing a copy of the whole map.
+     * @param chunkSize the maximum number of entries in a chunk
+     * @param consumer receives the chunks, each a new list it may keep
+     * @return the number of entries copied
+     */
+    public long snapshot(int chunkSize, CallBackNoReturn<List<Map.Entry<K, V>>> consumer) {
+        Assert.isTrue(chunkSize > 0, "Chunk size must be positive");
+        Assert.notNull(consumer, "Consumer must not be null");
+        long copied = 0;
+        int capacity = Math.min(chunkSize, Math.max(size(), 1));
+        List<Map.Entry<K, V>> chunk = new ArrayList<Map.Entry<K, V>>(capacity);
+        for (Iterator<Map.Entry<K, V>> iterator = new EntryIterator(); iterator.hasNext(); ) {
+            chunk.add(iterator.next());
+            copied++;
+            if (chunk.size() == chunkSize) {
+                consumer.execute(chunk);
+                chunk = new ArrayList<Map.Entry<K, V>>(capacity);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            consumer.execute(chunk);
+        }
+        return copied;
+    }
+
+    /**
+     * Copy all entries one segment at a time, each segment from its least to its most
+     * recently used entry, so that putting them into an empty map in the same order
+     * restores the recency of every segment. Only one segment is locked at a time.
+     * @param consumer receives the entries of one segment per call, each a new list
+     * @see MappedSnapshot#dump(ConcurrentLRUMap, java.io.File, Codec, Codec)
+     */
+    public void snapshotInAccessOrder(CallBackNoReturn<List<Map.Entry<K, V>>> consumer) {
+        Assert.notNull(consumer, "Consumer must not be null");
+        for (Segment segment : this.segments) {
+            List<Map.Entry<K, V>> entries = segment.copyEntriesInAccessOrder();
+            if (!entries.isEmpty()) {
+                consumer.execute(entries);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes of direct memory allocated by the off-heap tier
+     */
+    public long offHeapAllocated() {
+        long allocated = 0;
+        for (Segment segment : this.segments) {
+            allocated += segment.getOffHeapAllocated();
+        }
+        return allocated;
+    }
+
+    /**
+     * @return the number of values evicted from the heap that were not moved to the
+     * off-heap tier because they encode to more bytes than a page of it, also counted
+     * as evictions
+     */
+    public long offHeapRejectedCount() {
+        long rejected = 0;
+        for (Segment segment : this.segments) {
+            rejected += segment.getOffHeapRejected();
+        }
+        return rejected;
+    }
+
+    /**
+     * @return the total weight of all entries
+     */
+    public long weightedSize() {
+        long weight = 0;
+        for (Segment segment : this.segments) {
+            weight += segment.getWeight();
+        }
+        return weight;
+    }
+
+    public boolean isReadBuffered() {
+        return this.readBuffered;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return this.evictionPolicy;
+    }
+
+    protected final int getSegmentsSize() {
+        return this.segments.length;
+    }
+
+    /**
+     * Get the hash for a given object, apply an additional hash function to reduce
+     * collisions. Uses the same Wang/Jenkins algorithm as
+     * {@link com.shock.utils.opensource.ConcurrentReferenceHashMap}.
+     * @param o the object to hash
+     * @return the resulting hash code
+     */
+    protected int getHash(Object o) {
+        int hash = o.hashCode();
+        hash += (hash << 15) ^ 0xffffcd7d;
+        hash ^= (hash >>> 10);
+        hash += (hash << 3);
+        hash ^= (hash >>> 6);
+        hash += (hash << 2) + (hash << 14);
+        hash ^= (hash >>> 16);
+        return hash;
+    }
+
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        return getSegment(key).get(key);
+    }
+
+    /**
+     * Return the value of the key, loading it if there is none. Concurrent calls for the
+     * same key wait for a single load instead of each running the loader. When values
+     * are refreshed after write, a hit on a value older than that is served as is while
+     * the value is reloaded asynchronously.
+     * @param key the key
+     * @param loader computes the value of a missing key, may return {@code null} if there
+     * is none, in which case nothing is stored
+     * @return the current or the loaded value, {@code null} if the loader found none
+     * @throws RuntimeException the exception thrown by the loader
+     * @throws IllegalStateException if the loader gets the key it is loading through this method
+     */
+    public V get(K key, CallBack<? extends V, ? super K> loader) {
+        Assert.notNull(key, "Key must not be null");
+        Assert.notNull(loader, "Loader must not be null");
+        long now = currentTime();
+        Node<K, V> node = getSegment(key).getNode(key, now, true);
+        if (node != null) {
+            V value = node.value;
+            if (this.refreshAfterWriteNanos >= 0 && (now - node.writeTime) >= this.refreshAfterWriteNanos) {
+                refresh(key, loader);
+            }
+            return value;
+        }
+        LoadingTask task = new LoadingTask(key, loader, false);
+        LoadingTask existing = this.loading.putIfAbsent(key, task);
+        if (existing == null) {
+            // a load may have completed between the miss and registering the task
+            V value = peek(key);
+            if (value != null) {
+                this.loading.remove(key, task);
+                return value;
+            }
+            task.run();
+            existing = task;
+        }
+        else if (existing.runner == Thread.currentThread()) {
+            // the loader asks for its own key, waiting would never end
+            throw new IllegalStateException("Recursive load of key [" + key + "]");
+        }
+        return existing.getValue();
+    }
+
+    /**
+     * Reload the value of the key asynchronously, unless a load of it is already in flight.
+     * The reloaded value only replaces the current one if that has not been changed or
+     * removed in the meantime, a failed reload keeps the current value.
+     * @param key the key
+     * @param loader computes the new value
+     */
+    public void refresh(K key, CallBack<? extends V, ? super K> loader) {
+        Assert.notNull(key, "Key must not be null");
+        Assert.notNull(loader, "Loader must not be null");
+        LoadingTask task = new LoadingTask(key, loader, true);
+        if (this.loading.putIfAbsent(key, task) == null) {
+            try {
+                this.refreshExecutor.execute(task);
+            }
+            catch (RejectedExecutionException ex) {
+                this.loading.remove(key, task);
+            }
+        }
+    }
+
+    private long currentTime() {
+        return (this.ticking ? this.ticker.read() : 0L);
+    }
+
+    /**
+     * @return the live value of the key, without recording a hit or a miss
+     */
+    private V peek(Object key) {
+        Node<K, V> node = getSegment(key).getNode(key, currentTime(), false);
+        return (node != null ? node.value : null);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (key == null) {
+            return false;
+        }
+        return getSegment(key).containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        if (value == null) {
+            return false;
+        }
+        for (Segment segment : this.segments) {
+            if (segment.containsValue(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        Assert.notNull(key, "Key must not be null");
+        Assert.notNull(value, "Value must not be null");
+        return getSegment(key).put(key, value, true);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        Assert.notNull(key, "Key must not be null");
+        Assert.notNull(value, "Value must not be null");
+        return getSegment(key).put(key, value, false);
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+        return getSegment(key).remove(key, null);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (key == null || value == null) {
+            return false;
+        }
+        return getSegment(key).remove(key, value) != null;
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Assert.notNull(key, "Key must not be null");
+        Assert.notNull(oldValue, "Old value must not be null");
+        Assert.notNull(newValue, "New value must not be null");
+        return getSegment(key).replace(key, oldValue, newValue) != null;
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        Assert.notNull(key, "Key must not be null");
+        Assert.notNull(value, "Value must not be null");
+        return getSegment(key).replace(key, null, value);
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : this.segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            size += segment.getCount();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (Segment segment : this.segments) {
+            if (segment.getCount() != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (this.entrySet == null) {
+            this.entrySet = new EntrySet();
+        }
+        return this.entrySet;
+    }
+
+    private Segment getSegment(Object key) {
+        int hash = getHash(key);
+        return this.segments[(hash >>> (32 - this.shift)) & (this.segments.length - 1)];
+    }
+
+    /**
+     * Calculate a shift value that can be used to create a power-of-two value between
+     * the specified maximum and minimum values.
+     * @param minimumValue the minimum value
+     * @param maximumValue the maximum value
+     * @return the calculated shift (use {@code 1 << shift} to obtain a value)
+     */
+    protected static int calculateShift(int minimumValue, int maximumValue) {
+        int shift = 0;
+        int value = 1;
+        while (value < minimumValue && value < maximumValue) {
+            value <<= 1;
+            shift++;
+        }
+        return shift;
+    }
+
+
+    /**
+     * Eviction policies supported by this map.
+     */
+    public static enum EvictionPolicy {
+
+        /** Evict the least recently used entry */
+        LRU,
+
+        /**
+         * Window TinyLFU: new entries go through a small LRU admission window and only
+         * enter the main segmented LRU area when their estimated access frequency is
+         * higher than that of the entry they would replace
+         */
+        TINY_LFU
+    }
+
+
+    /**
+     * A single segment with its own lock, eviction queues and size budget.
+     * Lookups go through a {@link ConcurrentHashMap} and never take the lock; the
+     * lock only guards the eviction queues.
+     *
+     * <p>Nodes are added to the window queue. Whatever overflows the window becomes a
+     * candidate for the main area, which is split into a probation and a protected
+     * queue. With {@link EvictionPolicy#LRU} the window takes the whole budget, so
+     * every candidate is evicted straight away and the window is a plain LRU list.
+     */
+    @SuppressWarnings("serial")
+    protected final class Segment extends ReentrantLock {
+
+        private final long budget;
+
+        private final long windowBudget;
+
+        private final long mainBudget;
+
+        private final long protectedBudget;
+
+        private final ConcurrentHashMap<Object, Node<K, V>> data;
+
+        /**
+         * Access frequencies, {@code null} unless the eviction policy is TinyLFU.
+         */
+        private final FrequencySketch sketch;
+
+        /**
+         * Buffer of recent hits, {@code null} unless the map is read buffered.
+         */
+        private final ReadBuffer<Node<K, V>> readBuffer;
+
+        /**
+         * Replays a buffered hit into the eviction queues, only called while holding the lock.
+         */
+        private final CallBackNoReturn<Node<K, V>> accessRecorder = new CallBackNoReturn<Node<K, V>>() {
+            @Override
+            public void execute(Node<K, V> node) {
+                if (!node.retired) {
+                    onAccess(node);
+                }
+            }
+        };
+
+        /**
+         * Schedules expiration, {@code null} unless entries can expire.
+         */
+        private final TimerWheel timerWheel;
+
+        /**
+         * Removes a node whose expiration time has passed, only called while holding the lock.
+         */
+        private final CallBackNoReturn<TimerWheel.Timer> expirer = new CallBackNoReturn<TimerWheel.Timer>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void execute(TimerWheel.Timer timer) {
+                evictNode((Node<K, V>) timer);
+            }
+        };
+
+        /**
+         * Holds the entries evicted from this segment, {@code null} unless there is an
+         * off-heap tier. Guarded by the lock, except for checking whether it holds a key.
+         */
+        private final OffHeapStore<K> offHeapStore;
+
+        /**
+         * The number of values too large for the off-heap tier, guarded by the lock.
+         */
+        private long offHeapRejected;
+
+        private final AccessQueue<K, V> windowQueue = new AccessQueue<K, V>();
+
+        private final AccessQueue<K, V> probationQueue = new AccessQueue<K, V>();
+
+        private final AccessQueue<K, V> protectedQueue = new AccessQueue<K, V>();
+
+        private long windowWeight;
+
+        private long protectedWeight;
+
+        /**
+         * The total weight of this segment, guarded by the lock.
+         */
+        private long weight;
+
+        /**
+         * The number of entries in this segment, readable without holding the lock.
+         */
+        private volatile int count;
+
+        public Segment(long budget, EvictionPolicy evictionPolicy, boolean readBuffered, long offHeapCapacity) {
+            this.budget = budget;
+            int initialCapacity = (int) Math.min(budget, DEFAULT_WEIGHTED_CAPACITY);
+            if (evictionPolicy == EvictionPolicy.TINY_LFU) {
+                this.windowBudget = Math.max(1, budget / 100);
+                this.sketch = new FrequencySketch(initialCapacity);
+            }
+            else {
+                this.windowBudget = budget;
+                this.sketch = null;
+            }
+            this.mainBudget = budget - this.windowBudget;
+            this.protectedBudget = (long) (this.mainBudget * 0.8d);
+            this.data = new ConcurrentHashMap<Object, Node<K, V>>(
+                    (int) Math.ceil(initialCapacity / DEFAULT_LOAD_FACTOR) + 1, DEFAULT_LOAD_FACTOR, 1);
+            this.readBuffer = (readBuffered ? new ReadBuffer<Node<K, V>>() : null);
+            this.timerWheel = (isExpiring() ? new TimerWheel(ConcurrentLRUMap.this.ticker.read()) : null);
+            this.offHeapStore = (offHeapCapacity > 0 ?
+                    new OffHeapStore<K>(offHeapCapacity, ConcurrentLRUMap.this.statsCounter) : null);
+        }
+
+        public V get(Object key) {
+            Node<K, V> node = getNode(key, currentTime(), true);
+            return (node != null ? node.value : null);
+        }
+
+        /**
+         * Look up a live node without holding the lock.
+         * @param recordAccess whether the lookup counts as a hit or a miss
+         */
+        public Node<K, V> getNode(Object key, long now, boolean recordAccess) {
+            Node<K, V> node = this.data.get(key);
+            if (node != null && hasExpired(node, now)) {
+                tryCleanUp(now);
+                node = null;
+            }
+            if (node == null && this.offHeapStore != null && this.offHeapStore.containsKey(key)) {
+                node = promote(key, now);
+            }
+            if (!recordAccess) {
+                return node;
+            }
+            if (node == null) {
+                ConcurrentLRUMap.this.statsCounter.recordMisses(1);
+                return null;
+            }
+            ConcurrentLRUMap.this.statsCounter.recordHits(1);
+            recordAccess(node, now);
+            return node;
+        }
+
+        public boolean containsKey(Object key) {
+            Node<K, V> node = this.data.get(key);
+            if (node != null) {
+                return !hasExpired(node, currentTime());
+            }
+            return (this.offHeapStore != null && this.offHeapStore.containsKey(key));
+        }
+
+        public boolean containsValue(Object value) {
+            long now = currentTime();
+            for (Node<K, V> node : this.data.values()) {
+                if (value.equals(node.value) && !hasExpired(node, now)) {
+                    return true;
+                }
+            }
+            if (this.offHeapStore != null && this.offHeapStore.size() > 0) {
+                for (Map.Entry<K, V> entry : copyOffHeapEntries()) {
+                    if (value.equals(entry.getValue())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Decode the entries of the off-heap tier while holding the lock.
+         * @return the decoded entries, empty if there is no off-heap tier
+         */
+        public List<Map.Entry<K, V>> copyOffHeapEntries() {
+            if (this.offHeapStore == null || this.offHeapStore.size() == 0) {
+                return new ArrayList<Map.Entry<K, V>>(0);
+            }
+            lock();
+            try {
+                List<K> keys = this.offHeapStore.keys();
+                List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(keys.size());
+                for (K key : keys) {
+                    byte[] bytes = this.offHeapStore.get(key);
+                    entries.add(new SimpleImmutableEntry<K, V>(key, ConcurrentLRUMap.this.valueCodec.decode(bytes)));
+                }
+                return entries;
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        public V put(K key, V value, boolean overwriteExisting) {
+            long now = currentTime();
+            lock();
+            try {
+                runMaintenance(now);
+                Node<K, V> node = getLiveNode(key, now);
+                if (node != null) {
+                    V previous = node.value;
+                    if (overwriteExisting) {
+                        setValue(node, value, now);
+                        ConcurrentLRUMap.this.statsCounter.recordPuts(1);
+                    }
+                    node.accessTime = now;
+                    afterUpdate(node);
+                    return previous;
+                }
+                V previous = getOffHeap(key);
+                if (previous != null) {
+                    if (!overwriteExisting) {
+                        return previous;
+                    }
+                    this.offHeapStore.remove(key);
+                }
+                addNode(key, value, now);
+                ConcurrentLRUMap.this.statsCounter.recordPuts(1);
+                return previous;
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Remove the mapping for the key, only if it is mapped to {@code expected}
+         * when {@code expected} is not {@code null}.
+         * @return the removed value or {@code null}
+         */
+        public V remove(Object key, Object expected) {
+            if (getCount() == 0) {
+                return null;
+            }
+            long now = currentTime();
+            lock();
+            try {
+                runMaintenance(now);
+                Node<K, V> node = getLiveNode(key, now);
+                if (node == null) {
+                    V previous = getOffHeap(key);
+                    if (previous == null || (expected != null && !previous.equals(expected))) {
+                        return null;
+                    }
+                    this.offHeapStore.remove(key);
+                    return previous;
+                }
+                if (expected != null && !node.value.equals(expected)) {
+                    return null;
+                }
+                removeNode(node);
+                return node.value;
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Replace the value for the key, only if it is mapped to {@code expected}
+         * when {@code expected} is not {@code null}.
+         * @return the replaced value or {@code null}
+         */
+        public V replace(K key, V expected, V value) {
+            if (getCount() == 0) {
+                return null;
+            }
+            long now = currentTime();
+            lock();
+            try {
+                runMaintenance(now);
+                Node<K, V> node = getLiveNode(key, now);
+                if (node == null) {
+                    V previous = getOffHeap(key);
+                    if (previous == null || (expected != null && !previous.equals(expected))) {
+                        return null;
+                    }
+                    this.offHeapStore.remove(key);
+                    addNode(key, value, now);
+                    ConcurrentLRUMap.this.statsCounter.recordPuts(1);
+                    return previous;
+                }
+                if (expected != null && !node.value.equals(expected)) {
+                    return null;
+                }
+                V previous = node.value;
+                setValue(node, value, now);
+                ConcurrentLRUMap.this.statsCounter.recordPuts(1);
+                node.accessTime = now;
+                afterUpdate(node);
+                return previous;
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        public void clear() {
+            if (getCount() == 0) {
+                return;
+            }
+            lock();
+            try {
+                drainReadBuffer();
+                for (Node<K, V> node : this.data.values()) {
+                    node.retired = true;
+                }
+                this.data.clear();
+                this.windowQueue.clear();
+                this.probationQueue.clear();
+                this.protectedQueue.clear();
+                if (this.timerWheel != null) {
+                    this.timerWheel.clear();
+                }
+                if (this.offHeapStore != null) {
+                    this.offHeapStore.clear();
+                }
+                this.windowWeight = 0;
+                this.protectedWeight = 0;
+                this.weight = 0;
+                this.count = 0;
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Copy the entries of this segment from the least to the most recently used:
+         * the off-heap tier, the probation queue, the protected queue and the window.
+         */
+        public List<Map.Entry<K, V>> copyEntriesInAccessOrder() {
+            List<Map.Entry<K, V>> copy = copyOffHeapEntries();
+            long now = currentTime();
+            lock();
+            try {
+                runMaintenance(now);
+                copyEntries(this.probationQueue, copy);
+                copyEntries(this.protectedQueue, copy);
+                copyEntries(this.windowQueue, copy);
+                return copy;
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        private void copyEntries(AccessQueue<K, V> queue, List<Map.Entry<K, V>> copy) {
+            for (Node<K, V> node = queue.head; node != null; node = node.next) {
+                copy.add(new SimpleImmutableEntry<K, V>(node.key, node.value));
+            }
+        }
+
+        public void cleanUp() {
+            long now = currentTime();
+            lock();
+            try {
+                runMaintenance(now);
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        private void tryCleanUp(long now) {
+            if (tryLock()) {
+                try {
+                    runMaintenance(now);
+                }
+                finally {
+                    unlock();
+                }
+            }
+        }
+
+        /**
+         * Replay buffered hits and remove expired entries, only called while holding the lock.
+         */
+        private void runMaintenance(long now) {
+            drainReadBuffer();
+            if (this.timerWheel != null) {
+                this.timerWheel.advance(now, this.expirer);
+            }
+        }
+
+        private boolean hasExpired(Node<K, V> node, long now) {
+            return (this.timerWheel != null && (node.expirationTime - now) <= 0);
+        }
+
+        private Node<K, V> addNode(K key, V value, long now) {
+            Node<K, V> node = new Node<K, V>(key, value, weigh(key, value));
+            this.data.put(key, node);
+            this.count++;
+            onAdd(node, now);
+            return node;
+        }
+
+        /**
+         * Move the entry of the key from the off-heap tier back onto the heap. The node
+         * is returned even if it was evicted again right away, its value is still current.
+         * @return the node, {@code null} if the key is in neither tier
+         */
+        @SuppressWarnings("unchecked")
+        private Node<K, V> promote(Object key, long now) {
+            lock();
+            try {
+                Node<K, V> node = this.data.get(key);
+                if (node == null) {
+                    byte[] bytes = this.offHeapStore.remove(key);
+                    if (bytes != null) {
+                        node = addNode((K) key, ConcurrentLRUMap.this.valueCodec.decode(bytes), now);
+                    }
+                }
+                return node;
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Decode the value of the key in the off-heap tier, only called while holding the lock.
+         * @return the value, {@code null} if there is no off-heap tier or it does not hold the key
+         */
+        private V getOffHeap(Object key) {
+            if (this.offHeapStore == null) {
+                return null;
+            }
+            byte[] bytes = this.offHeapStore.get(key);
+            return (bytes != null ? ConcurrentLRUMap.this.valueCodec.decode(bytes) : null);
+        }
+
+        /**
+         * Look up a node while holding the lock, removing it if it has expired.
+         */
+        private Node<K, V> getLiveNode(Object key, long now) {
+            Node<K, V> node = this.data.get(key);
+            if (node != null && hasExpired(node, now)) {
+                evictNode(node);
+                return null;
+            }
+            return node;
+        }
+
+        /**
+         * Record a hit on the node. In read buffered mode the hit is only recorded,
+         * and replayed later by whichever thread gets the lock.
+         */
+        private void recordAccess(Node<K, V> node, long now) {
+            if (ConcurrentLRUMap.this.expireAfterAccessNanos >= 0) {
+                node.accessTime = now;
+            }
+            if (this.readBuffer == null) {
+                lock();
+                try {
+                    if (!node.retired) {
+                        onAccess(node);
+                    }
+                }
+                finally {
+                    unlock();
+                }
+            }
+            else if (this.readBuffer.offer(node)) {
+                tryCleanUp(now);
+            }
+        }
+
+        private void drainReadBuffer() {
+            if (this.readBuffer != null) {
+                this.readBuffer.drainTo(this.accessRecorder);
+            }
+        }
+
+        private void onAccess(Node<K, V> node) {
+            if (this.sketch != null) {
+                this.sketch.increment(node.key);
+            }
+            switch (node.queue) {
+                case Node.WINDOW:
+                    this.windowQueue.moveToTail(node);
+                    break;
+                case Node.PROBATION:
+                    // a second hit promotes the node, demoting the coldest protected node
+                    this.probationQueue.unlink(node);
+                    node.queue = Node.PROTECTED;
+                    this.protectedQueue.linkLast(node);
+                    this.protectedWeight += node.weight;
+                    while (this.protectedWeight > this.protectedBudget) {
+                        Node<K, V> demoted = this.protectedQueue.head;
+                        this.protectedQueue.unlink(demoted);
+                        this.protectedWeight -= demoted.weight;
+                        demoted.queue = Node.PROBATION;
+                        this.probationQueue.linkLast(demoted);
+                    }
+                    break;
+                default:
+                    this.protectedQueue.moveToTail(node);
+            }
+            if (ConcurrentLRUMap.this.expireAfterAccessNanos >= 0) {
+                scheduleExpiration(node);
+            }
+        }
+
+        private void onAdd(Node<K, V> node, long now) {
+            node.writeTime = now;
+            node.accessTime = now;
+            if (this.timerWheel != null) {
+                scheduleExpiration(node);
+            }
+            if (this.sketch != null) {
+                this.sketch.ensureCapacity(this.count);
+                this.sketch.increment(node.key);
+            }
+            node.queue = Node.WINDOW;
+            this.windowQueue.linkLast(node);
+            this.windowWeight += node.weight;
+            this.weight += node.weight;
+            if (node.weight > this.budget) {
+                // would flush the whole segment and still not fit
+                evictNode(node);
+                return;
+            }
+            evictIfNecessary();
+        }
+
+        private void afterUpdate(Node<K, V> node) {
+            if (node.weight > this.budget) {
+                evictNode(node);
+                return;
+            }
+            onAccess(node);
+            evictIfNecessary();
+        }
+
+        /**
+         * Move nodes that overflow the window into the probation queue. While the main
+         * area is over budget these candidates compete with the coldest probation nodes,
+         * and the one with the lower access frequency is evicted.
+         */
+        private void evictIfNecessary() {
+            Node<K, V> candidate = null;
+            while (this.windowWeight > this.windowBudget) {
+                Node<K, V> node = this.windowQueue.head;
+                this.windowQueue.unlink(node);
+                this.windowWeight -= node.weight;
+                node.queue = Node.PROBATION;
+                this.probationQueue.linkLast(node);
+                if (candidate == null) {
+                    candidate = node;
+                }
+            }
+            while (this.weight - this.windowWeight > this.mainBudget) {
+                Node<K, V> victim = this.probationQueue.head;
+                if (victim == null) {
+                    victim = this.protectedQueue.head;
+                }
+                if (candidate == null) {
+                    demoteNode(victim);
+                }
+                else if (victim == candidate || candidate.weight > this.mainBudget
+                        || !admit(candidate, victim)) {
+                    Node<K, V> next = candidate.next;
+                    demoteNode(candidate);
+                    candidate = next;
+                }
+                else {
+                    demoteNode(victim);
+                }
+            }
+        }
+
+        private boolean admit(Node<K, V> candidate, Node<K, V> victim) {
+            return (this.sketch.frequency(candidate.key) > this.sketch.frequency(victim.key));
+        }
+
+        private int weigh(K key, V value) {
+            if (ConcurrentLRUMap.this.weigher == null) {
+                return 1;
+            }
+            int weight = ConcurrentLRUMap.this.weigher.weigh(key, value);
+            Assert.isTrue(weight >= 0, "Weight must not be negative");
+            return weight;
+        }
+
+        /**
+         * Compute the expiration time from the last write and access time and move the
+         * node to the matching bucket of the timer wheel.
+         */
+        private void scheduleExpiration(Node<K, V> node) {
+            long expireAfterWriteNanos = ConcurrentLRUMap.this.expireAfterWriteNanos;
+            long expireAfterAccessNanos = ConcurrentLRUMap.this.expireAfterAccessNanos;
+            long expirationTime = node.writeTime + expireAfterWriteNanos;
+            if (expireAfterAccessNanos >= 0) {
+                long accessExpirationTime = node.accessTime + expireAfterAccessNanos;
+                if (expireAfterWriteNanos < 0 || (accessExpirationTime - expirationTime) < 0) {
+                    expirationTime = accessExpirationTime;
+                }
+            }
+            node.expirationTime = expirationTime;
+            this.timerWheel.reschedule(node);
+        }
+
+        private void setValue(Node<K, V> node, V value, long now) {
+            node.writeTime = now;
+            if (this.timerWheel != null && ConcurrentLRUMap.this.expireAfterAccessNanos < 0) {
+                scheduleExpiration(node);
+            }
+            int weight = weigh(node.key, value);
+            int delta = weight - node.weight;
+            node.value = value;
+            node.weight = weight;
+            this.weight += delta;
+            if (node.queue == Node.WINDOW) {
+                this.windowWeight += delta;
+            }
+            else if (node.queue == Node.PROTECTED) {
+                this.protectedWeight += delta;
+            }
+        }
+
+        /**
+         * Move a node evicted for lack of room to the off-heap tier, if there is one and
+         * it takes the value.
+         */
+        private void demoteNode(Node<K, V> node) {
+            if (this.offHeapStore == null) {
+                evictNode(node);
+                return;
+            }
+            removeNode(node);
+            byte[] bytes = ConcurrentLRUMap.this.valueCodec.encode(node.value);
+            if (!this.offHeapStore.put(node.key, bytes, node.weight)) {
+                this.offHeapRejected++;
+                ConcurrentLRUMap.this.statsCounter.recordEviction(node.weight);
+            }
+        }
+
+        /**
+         * Remove a node that was evicted or expired, as opposed to removed explicitly.
+         */
+        private void evictNode(Node<K, V> node) {
+            removeNode(node);
+            ConcurrentLRUMap.this.statsCounter.recordEviction(node.weight);
+        }
+
+        private void removeNode(Node<K, V> node) {
+            this.data.remove(node.key, node);
+            if (this.timerWheel != null) {
+                this.timerWheel.deschedule(node);
+            }
+            switch (node.queue) {
+                case Node.WINDOW:
+                    this.windowQueue.unlink(node);
+                    this.windowWeight -= node.weight;
+                    break;
+                case Node.PROBATION:
+                    this.probationQueue.unlink(node);
+                    break;
+                default:
+                    this.protectedQueue.unlink(node);
+                    this.protectedWeight -= node.weight;
+            }
+            this.weight -= node.weight;
+            node.retired = true;
+            this.count--;
+        }
+
+        /**
+         * @return the maximum number of entries, or the maximum weight, of this segment
+         */
+        public final long getBudget() {
+            return this.budget;
+        }
+
+        /**
+         * @return the total weight of this segment
+         */
+        public final long getWeight() {
+            lock();
+            try {
+                return this.weight;
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        /**
+         * @return the number of entries in this segment, including the off-heap tier
+         */
+        public final int getCount() {
+            return (this.offHeapStore != null ? this.count + this.offHeapStore.size() : this.count);
+        }
+
+        public final long getOffHeapAllocated() {
+            if (this.offHeapStore == null) {
+                return 0;
+            }
+            lock();
+            try {
+                return this.offHeapStore.getAllocated();
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        public final long getOffHeapRejected() {
+            lock();
+            try {
+                return this.offHeapRejected;
+            }
+            finally {
+                unlock();
+            }
+        }
+    }
+
+
+    /**
+     * A node of one of the eviction queues. The value and the times can be read without
+     * holding the segment lock, the links and the queue are guarded by it.
+     */
+    private static final class Node<K, V> extends TimerWheel.Timer {
+
+        static final byte WINDOW = 0;
+
+        static final byte PROBATION = 1;
+
+        static final byte PROTECTED = 2;
+
+        private final K key;
+
+        private volatile V value;
+
+        private Node<K, V> prev;
+
+        private Node<K, V> next;
+
+        private byte queue;
+
+        private int weight;
+
+        /**
+         * When the value was last written, only maintained if entries can expire or are
+         * refreshed. Hits read it without holding the lock.
+         */
+        private volatile long writeTime;
+
+        /**
+         * When the node was last read or written, only maintained if entries expire
+         * after access. Readers set it without holding the lock.
+         */
+        private volatile long accessTime;
+
+        /**
+         * Set once the node has been removed from its segment, so that buffered hits
+         * replayed later do not link it again.
+         */
+        private boolean retired;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+
+    /**
+     * Doubly linked queue of nodes, from least to most recently used.
+     */
+    private static final class AccessQueue<K, V> {
+
+        private Node<K, V> head;
+
+        private Node<K, V> tail;
+
+        void linkLast(Node<K, V> node) {
+            node.prev = this.tail;
+            node.next = null;
+            if (this.tail == null) {
+                this.head = node;
+            }
+            else {
+                this.tail.next = node;
+            }
+            this.tail = node;
+        }
+
+        void unlink(Node<K, V> node) {
+            if (node.prev == null) {
+                this.head = node.next;
+            }
+            else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                this.tail = node.prev;
+            }
+            else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToTail(Node<K, V> node) {
+            if (node != this.tail) {
+                unlink(node);
+                linkLast(node);
+            }
+        }
+
+        void clear() {
+            this.head = null;
+            this.tail = null;
+        }
+    }
+
+
+    /**
+     * Options used to create a {@link ConcurrentLRUMap}.
+     */
+    public static final class Builder<K, V> {
+
+        private final long maximum;
+
+        private final Weigher<? super K, ? super V> weigher;
+
+        private int concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
+
+        private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+
+        private boolean readBuffered;
+
+        private long expireAfterWriteNanos = -1;
+
+        private long expireAfterAccessNanos = -1;
+
+        private long refreshAfterWriteNanos = -1;
+
+        private Ticker ticker = Ticker.systemTicker();
+
+        private Executor refreshExecutor = ForkJoinPool.commonPool();
+
+        private StatsCounter statsCounter = StatsCounter.DISABLED;
+
+        private long offHeapCapacity;
+
+        private Codec<V> valueCodec;
+
+        /**
+         * @param maxSize the maximum number of entries
+         */
+        public Builder(int maxSize) {
+            Assert.isTrue(maxSize > 0, "Max size must be positive");
+            this.maximum = maxSize;
+            this.weigher = null;
+        }
+
+        /**
+         * Bound the map by the total weight of its entries instead of their number. Every
+         * segment gets an equal share of the weight, an entry heavier than that share is
+         * not retained.
+         * @param maxWeight the maximum total weight, for example a number of bytes
+         * @param weigher computes the weight of an entry
+         * @see ObjectSizeWeigher
+         */
+        public Builder(long maxWeight, Weigher<? super K, ? super V> weigher) {
+            Assert.isTrue(maxWeight > 0, "Max weight must be positive");
+            Assert.notNull(weigher, "Weigher must not be null");
+            this.maximum = maxWeight;
+            this.weigher = weigher;
+        }
+
+        /**
+         * @param concurrencyLevel the expected number of threads that will concurrently
+         * access the map
+         */
+        public Builder<K, V> concurrencyLevel(int concurrencyLevel) {
+            Assert.isTrue(concurrencyLevel > 0, "Concurrency level must be positive");
+            this.concurrencyLevel = concurrencyLevel;
+            return this;
+        }
+
+        /**
+         * @param evictionPolicy how to choose the entry to evict, {@link EvictionPolicy#LRU}
+         * by default
+         */
+        public Builder<K, V> evictionPolicy(EvictionPolicy evictionPolicy) {
+            Assert.notNull(evictionPolicy, "Eviction policy must not be null");
+            this.evictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * Record hits in a lossy buffer and replay them into the access order in batches,
+         * so that a hit does not take the segment lock. The access order becomes
+         * approximate: hits dropped from a full buffer are not reflected in it.
+         * @param readBuffered whether hits should be buffered
+         */
+        public Builder<K, V> readBuffered(boolean readBuffered) {
+            this.readBuffered = readBuffered;
+            return this;
+        }
+
+        /**
+         * Expire entries once the duration has passed since their value was last written.
+         * @param duration how long an entry lives after it was written
+         * @param unit the unit of the duration
+         */
+        public Builder<K, V> expireAfterWrite(long duration, TimeUnit unit) {
+            Assert.isTrue(duration >= 0, "Duration must not be negative");
+            this.expireAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Expire entries once the duration has passed since they were last read or written.
+         * In read buffered mode a read only extends the lifetime once it has been replayed.
+         * @param duration how long an entry lives after it was last accessed
+         * @param unit the unit of the duration
+         */
+        public Builder<K, V> expireAfterAccess(long duration, TimeUnit unit) {
+            Assert.isTrue(duration >= 0, "Duration must not be negative");
+            this.expireAfterAccessNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Reload a value asynchronously once the duration has passed since it was written,
+         * the first time it is hit through {@link ConcurrentLRUMap#get(Object, CallBack)}.
+         * The stale value is served until the reload completes.
+         * @param duration how long after it was written a value is refreshed
+         * @param unit the unit of the duration
+         */
+        public Builder<K, V> refreshAfterWrite(long duration, TimeUnit unit) {
+            Assert.isTrue(duration > 0, "Duration must be positive");
+            this.refreshAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * @param refreshExecutor runs the asynchronous refreshes,
+         * {@link ForkJoinPool#commonPool()} by default
+         */
+        public Builder<K, V> refreshExecutor(Executor refreshExecutor) {
+            Assert.notNull(refreshExecutor, "Refresh executor must not be null");
+            this.refreshExecutor = refreshExecutor;
+            return this;
+        }
+
+        /**
+         * @param ticker the time source used for expiration, {@link Ticker#systemTicker()}
+         * by default
+         */
+        public Builder<K, V> ticker(Ticker ticker) {
+            Assert.notNull(ticker, "Ticker must not be null");
+            this.ticker = ticker;
+            return this;
+        }
+
+        /**
+         * Record statistics with a {@link ConcurrentStatsCounter}.
+         */
+        public Builder<K, V> recordStats() {
+            return recordStats(new ConcurrentStatsCounter());
+        }
+
+        /**
+         * @param statsCounter records the statistics of the map
+         */
+        public Builder<K, V> recordStats(StatsCounter statsCounter) {
+            Assert.notNull(statsCounter, "Stats counter must not be null");
+            this.statsCounter = statsCounter;
+            return this;
+        }
+
+        /**
+         * Keep entries evicted from the heap in an off-heap tier of direct memory instead
+         * of dropping them. The capacity is split evenly over the segments and allocated in
+         * pages of at most 64 KB, which values of every size share. Values that encode to
+         * more bytes than a page are dropped like before and counted by
+         * {@link ConcurrentLRUMap#offHeapRejectedCount()}. Cannot be combined with expiration.
+         * Each segment needs at least 64 bytes, {@link #build()} fails if the capacity is
+         * smaller than that times the number of segments.
+         * @param capacity the bytes of direct memory the tier may allocate
+         * @param valueCodec encodes the values moved off the heap
+         */
+        public Builder<K, V> offHeap(long capacity, Codec<V> valueCodec) {
+            Assert.isTrue(capacity > 0, "Capacity must be positive");
+            Assert.notNull(valueCodec, "Value codec must not be null");
+            this.offHeapCapacity = capacity;
+            this.valueCodec = valueCodec;
+            return this;
+        }
+
+        public ConcurrentLRUMap<K, V> build() {
+            return new ConcurrentLRUMap<K, V>(this);
+        }
+
+        /**
+         * @param loader computes the value of a missing key
+         * @return a map that loads missing values with the loader
+         */
+        public LoadingLRUMap<K, V> build(CallBack<? extends V, ? super K> loader) {
+            return new LoadingLRUMap<K, V>(build(), loader);
+        }
+    }
+
+
+    /**
+     * A load of one key that concurrent misses share. Unregisters itself once it is done,
+     * after the loaded value has been stored.
+     */
+    private final class LoadingTask extends FutureTask<V> {
+
+        private final K key;
+
+        private final boolean refresh;
+
+        /**
+         * The thread running the loader, {@code null} before and after.
+         */
+        private volatile Thread runner;
+
+        LoadingTask(final K key, final CallBack<? extends V, ? super K> loader, final boolean refresh) {
+            super(new Callable<V>() {
+                @Override
+                public V call() {
+                    // only replace the value that was stale when the refresh started
+                    V current = (refresh ? peek(key) : null);
+                    long startTime = ConcurrentLRUMap.this.ticker.read();
+                    boolean loaded = false;
+                    V value;
+                    try {
+                        value = loader.execute(key);
+                        loaded = true;
+                    }
+                    finally {
+                        long loadTime = ConcurrentLRUMap.this.ticker.read() - startTime;
+                        if (loaded) {
+                            ConcurrentLRUMap.this.statsCounter.recordLoadSuccess(loadTime);
+                        }
+                        else {
+                            ConcurrentLRUMap.this.statsCounter.recordLoadFailure(loadTime);
+                        }
+                    }
+                    if (value == null) {
+                        return null;
+                    }
+                    if (!refresh) {
+                        ConcurrentLRUMap.this.put(key, value);
+                    }
+                    else if (current != null) {
+                        ConcurrentLRUMap.this.replace(key, current, value);
+                    }
+                    else {
+                        ConcurrentLRUMap.this.putIfAbsent(key, value);
+                    }
+                    return value;
+                }
+            });
+            this.key = key;
+            this.refresh = refresh;
+        }
+
+        @Override
+        public void run() {
+            this.runner = Thread.currentThread();
+            try {
+                super.run();
+            }
+            finally {
+                this.runner = null;
+            }
+        }
+
+        @Override
+        protected void done() {
+            ConcurrentLRUMap.this.loading.remove(this.key, this);
+            if (this.refresh && !isCancelled()) {
+                try {
+                    get();
+                }
+                catch (Exception ex) {
+                    logger.warn("Could not refresh value of key [" + this.key + "]", ex);
+                }
+            }
+        }
+
+        /**
+         * Wait for the load to complete, ignoring interrupts.
+         * @return the loaded value
+         */
+        V getValue() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return get();
+                    }
+                    catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+            }
+            catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException("Could not load value of key [" + this.key + "]", cause);
+            }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Exports the statistics of the map, see {@link #registerMXBean(String)}.
+     */
+    private final class StatsMXBean implements CacheStatsMXBean {
+
+        @Override
+        public long getHitCount() {
+            return stats().hitCount();
+        }
+
+        @Override
+        public long getMissCount() {
+            return stats().missCount();
+        }
+
+        @Override
+        public double getHitRate() {
+            return stats().hitRate();
+        }
+
+        @Override
+        public long getPutCount() {
+            return stats().putCount();
+        }
+
+        @Override
+        public long getEvictionCount() {
+            return stats().evictionCount();
+        }
+
+        @Override
+        public long getLoadSuccessCount() {
+            return stats().loadSuccessCount();
+        }
+
+        @Override
+        public long getLoadFailureCount() {
+            return stats().loadFailureCount();
+        }
+
+        @Override
+        public double getAverageLoadPenalty() {
+            return stats().averageLoadPenalty();
+        }
+
+        @Override
+        public long getLoadTime99thPercentile() {
+            return stats().loadTimePercentile(99);
+        }
+
+        @Override
+        public int getSize() {
+            return size();
+        }
+
+        @Override
+        public long getWeightedSize() {
+            return weightedSize();
+        }
+    }
+
+
+    /**
+     * Internal entry-set implementation.
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (o instanceof Map.Entry<?, ?>) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+                V value = (entry.getKey() != null ? ConcurrentLRUMap.this.get(entry.getKey()) : null);
+                return (value != null && value.equals(entry.getValue()));
+            }
+            return false;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (o instanceof Map.Entry<?, ?>) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+                return ConcurrentLRUMap.this.remove(entry.getKey(), entry.getValue());
+            }
+            return false;
+        }
+
+        @Override
+        public int size() {
+            return ConcurrentLRUMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentLRUMap.this.clear();
+        }
+    }
+
+
+    /**
+     * Internal entry iterator implementation. Walks the lookup table of one segment after
+     * the other without taking any lock, so it is weakly consistent: it never throws
+     * {@link java.util.ConcurrentModificationException} and never blocks writers, but
+     * may or may not see changes made after it was created. Expired entries are skipped.
+     * The off-heap tier of a segment is decoded in one go under the segment lock.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        private final long now = currentTime();
+
+        private int segmentIndex;
+
+        private Segment segment;
+
+        private Iterator<Node<K, V>> current;
+
+        private Iterator<Map.Entry<K, V>> offHeapEntries;
+
+        private Map.Entry<K, V> next;
+
+        private Map.Entry<K, V> last;
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null) {
+                if (this.current != null && this.current.hasNext()) {
+                    Node<K, V> node = this.current.next();
+                    if (!this.segment.hasExpired(node, this.now)) {
+                        this.next = new SimpleImmutableEntry<K, V>(node.key, node.value);
+                    }
+                }
+                else if (this.offHeapEntries != null && this.offHeapEntries.hasNext()) {
+                    this.next = this.offHeapEntries.next();
+                }
+                else if (this.segment != null && this.offHeapEntries == null) {
+                    // the off-heap tier of a segment is decoded once its heap is done
+                    this.offHeapEntries = this.segment.copyOffHeapEntries().iterator();
+                }
+                else if (this.segmentIndex < ConcurrentLRUMap.this.segments.length) {
+                    this.segment = ConcurrentLRUMap.this.segments[this.segmentIndex++];
+                    this.current = this.segment.data.values().iterator();
+                    this.offHeapEntries = null;
+                }
+                else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.next;
+            this.next = null;
+            return this.last;
+        }
+
+        @Override
+        public void remove() {
+            Assert.isTrue(this.last != null);
+            ConcurrentLRUMap.this.remove(this.last.getKey(), this.last.getValue());
+            this.last = null;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.shock.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于 {@link LongAdder} 的线程安全 {@link StatsCounter}
+ *
+ * {@link LongAdder} 在竞争时自动分成多个 cell 累加, 并发记录几乎不会互相阻塞, 代价是读取时需要
+ * 把所有 cell 加起来, 所以 {@link #snapshot()} 不是一个原子的快照。
+ *
+ * 加载耗时另外按 2 的幂纳秒分桶记录成直方图, 第 i 个桶统计耗时在 [2^i, 2^(i+1)) 纳秒之间的加载。
+ */
+public class ConcurrentStatsCounter implements StatsCounter {
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder putCount = new LongAdder();
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    private final LongAdder evictionWeight = new LongAdder();
+
+    private final LongAdder loadSuccessCount = new LongAdder();
+
+    private final LongAdder loadFailureCount = new LongAdder();
+
+    private final LongAdder totalLoadTime = new LongAdder();
+
+    private final LongAdder[] loadTimeHistogram = new LongAdder[CacheStats.HISTOGRAM_BUCKETS];
+
+
+    public ConcurrentStatsCounter() {
+        for (int i = 0; i < this.loadTimeHistogram.length; i++) {
+            this.loadTimeHistogram[i] = new LongAdder();
+        }
+    }
+
+
+    @Override
+    public void recordHits(int count) {
+        this.hitCount.add(count);
+    }
+
+    @Override
+    public void recordMisses(int count) {
+        this.missCount.add(count);
+    }
+
+    @Override
+    public void recordPuts(int count) {
+        this.putCount.add(count);
+    }
+
+    @Override
+    public void recordEviction(int weight) {
+        this.evictionCount.increment();
+        this.evictionWeight.add(weight);
+    }
+
+    @Override
+    public void recordLoadSuccess(long loadTime) {
+        this.loadSuccessCount.increment();
+        recordLoadTime(loadTime);
+    }
+
+    @Override
+    public void recordLoadFailure(long loadTime) {
+        this.loadFailureCount.increment();
+        recordLoadTime(loadTime);
+    }
+
+    private void recordLoadTime(long loadTime) {
+        loadTime = Math.max(loadTime, 0L);
+        this.totalLoadTime.add(loadTime);
+        this.loadTimeHistogram[CacheStats.histogramBucket(loadTime)].increment();
+    }
+
+    @Override
+    public CacheStats snapshot() {
+        long[] histogram = new long[this.loadTimeHistogram.length];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = this.loadTimeHistogram[i].sum();
+        }
+        return new CacheStats(this.hitCount.sum(), this.missCount.sum(), this.putCount.sum(),
+                this.evictionCount.sum(), this.evictionWeight.sum(), this.loadSuccessCount.sum(),
+                this.loadFailureCount.sum(), this.totalLoadTime.sum(), histogram);
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
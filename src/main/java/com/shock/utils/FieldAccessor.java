@@ -0,0 +1,887 @@
+package com.shock.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sun.misc.Unsafe;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * 预先绑定到一个字段上的读写器, 代替反复调用 {@link Field#get} 和 {@link Field#set}
+ *
+ * 能拿到 {@link JvmUtil#getUnsafe()} 的 jvm 上直接按字段偏移读写, 其他 jvm 上用 {@link MethodHandle}。
+ * {@code getInt/setInt} 等方法按基本类型读写, 不装箱; 访问检查只在创建时做一次。
+ *
+ * 字段类型和方法类型一致、目标对象类型正确时走快速路径; 其余情况 (基本类型的拓宽、错误的目标对象、
+ * 不可写的 static final 字段等) 交给 {@link Field} 处理, 行为和异常与 {@link Field} 相同,
+ * 只是 {@link IllegalAccessException} 会转换成 {@link IllegalStateException}。
+ *
+ * 通过 {@link ReflectionUtil#accessor(Field)} 获取, 同一个字段的读写器会被缓存。
+ */
+public abstract class FieldAccessor {
+
+    private static final Logger logger = LoggerFactory.getLogger(FieldAccessor.class);
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final Unsafe UNSAFE = findUnsafe();
+
+    private final Field field;
+
+    private final Class<?> type;
+
+    private final Class<?> declaringClass;
+
+    private final boolean isStatic;
+
+    /**
+     * Whether the fast path may write the field, static final fields are left to {@link Field}.
+     */
+    private final boolean writable;
+
+
+    FieldAccessor(Field field, boolean writable) {
+        this.field = field;
+        this.type = field.getType();
+        this.declaringClass = field.getDeclaringClass();
+        this.isStatic = Modifier.isStatic(field.getModifiers());
+        this.writable = writable;
+    }
+
+
+    private static Unsafe findUnsafe() {
+        try {
+            return JvmUtil.getUnsafe();
+        }
+        catch (Throwable ex) {
+            // JvmUtil refuses to initialize on jvms it does not know
+            logger.debug("Unsafe not available, fields are accessed through method handles", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Create an accessor for the field, making it accessible if needed.
+     */
+    static FieldAccessor create(Field field) {
+        return create(field, UNSAFE);
+    }
+
+    static FieldAccessor create(Field field, Unsafe unsafe) {
+        Assert.notNull(field, "Field must not be null");
+        ReflectionUtil.makeAccessible(field);
+        if (unsafe != null) {
+            try {
+                return new UnsafeAccessor(field, unsafe);
+            }
+            catch (UnsupportedOperationException ex) {
+                // no offset for fields of hidden classes and records
+            }
+        }
+        return new HandleAccessor(field);
+    }
+
+    private static IllegalStateException illegalAccess(IllegalAccessException ex) {
+        return new IllegalStateException("Could not access field: " + ex.getMessage());
+    }
+
+
+    /**
+     * @return the field this accessor reads and writes
+     */
+    public Field getField() {
+        return this.field;
+    }
+
+    private boolean isTarget(Object target) {
+        return this.isStatic || this.declaringClass.isInstance(target);
+    }
+
+    private boolean isReadable(Class<?> type, Object target) {
+        return this.type == type && isTarget(target);
+    }
+
+    private boolean isWritable(Class<?> type, Object target) {
+        return this.type == type && this.writable && isTarget(target);
+    }
+
+    /**
+     * Read the field, boxing primitives.
+     * @param target the object holding the field, ignored for a static field
+     * @return the value of the field
+     */
+    public Object get(Object target) {
+        if (isTarget(target)) {
+            return doGet(target);
+        }
+        try {
+            return this.field.get(target);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    /**
+     * Write the field, unboxing primitives.
+     * @param target the object holding the field, ignored for a static field
+     * @param value the new value of the field
+     */
+    public void set(Object target, Object value) {
+        if (this.writable && isTarget(target) && (this.type.isPrimitive()
+                ? value != null && value.getClass() == ReflectionUtil.getNonPrimitiveType(this.type)
+                : value == null || this.type.isInstance(value))) {
+            doSet(target, value);
+            return;
+        }
+        try {
+            this.field.set(target, value);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public boolean getBoolean(Object target) {
+        if (isReadable(boolean.class, target)) {
+            return doGetBoolean(target);
+        }
+        try {
+            return this.field.getBoolean(target);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public byte getByte(Object target) {
+        if (isReadable(byte.class, target)) {
+            return doGetByte(target);
+        }
+        try {
+            return this.field.getByte(target);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public char getChar(Object target) {
+        if (isReadable(char.class, target)) {
+            return doGetChar(target);
+        }
+        try {
+            return this.field.getChar(target);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public short getShort(Object target) {
+        if (isReadable(short.class, target)) {
+            return doGetShort(target);
+        }
+        try {
+            return this.field.getShort(target);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public int getInt(Object target) {
+        if (isReadable(int.class, target)) {
+            return doGetInt(target);
+        }
+        try {
+            return this.field.getInt(target);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public long getLong(Object target) {
+        if (isReadable(long.class, target)) {
+            return doGetLong(target);
+        }
+        try {
+            return this.field.getLong(target);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public float getFloat(Object target) {
+        if (isReadable(float.class, target)) {
+            return doGetFloat(target);
+        }
+        try {
+            return this.field.getFloat(target);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public double getDouble(Object target) {
+        if (isReadable(double.class, target)) {
+            return doGetDouble(target);
+        }
+        try {
+            return this.field.getDouble(target);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public void setBoolean(Object target, boolean value) {
+        if (isWritable(boolean.class, target)) {
+            doSetBoolean(target, value);
+            return;
+        }
+        try {
+            this.field.setBoolean(target, value);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public void setByte(Object target, byte value) {
+        if (isWritable(byte.class, target)) {
+            doSetByte(target, value);
+            return;
+        }
+        try {
+            this.field.setByte(target, value);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public void setChar(Object target, char value) {
+        if (isWritable(char.class, target)) {
+            doSetChar(target, value);
+            return;
+        }
+        try {
+            this.field.setChar(target, value);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public void setShort(Object target, short value) {
+        if (isWritable(short.class, target)) {
+            doSetShort(target, value);
+            return;
+        }
+        try {
+            this.field.setShort(target, value);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public void setInt(Object target, int value) {
+        if (isWritable(int.class, target)) {
+            doSetInt(target, value);
+            return;
+        }
+        try {
+            this.field.setInt(target, value);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public void setLong(Object target, long value) {
+        if (isWritable(long.class, target)) {
+            doSetLong(target, value);
+            return;
+        }
+        try {
+            this.field.setLong(target, value);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public void setFloat(Object target, float value) {
+        if (isWritable(float.class, target)) {
+            doSetFloat(target, value);
+            return;
+        }
+        try {
+            this.field.setFloat(target, value);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    public void setDouble(Object target, double value) {
+        if (isWritable(double.class, target)) {
+            doSetDouble(target, value);
+            return;
+        }
+        try {
+            this.field.setDouble(target, value);
+        }
+        catch (IllegalAccessException ex) {
+            throw illegalAccess(ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + this.field + "]";
+    }
+
+    // the fast path, only called with a valid target and the exact type of the field
+
+    abstract Object doGet(Object target);
+
+    abstract void doSet(Object target, Object value);
+
+    abstract boolean doGetBoolean(Object target);
+
+    abstract byte doGetByte(Object target);
+
+    abstract char doGetChar(Object target);
+
+    abstract short doGetShort(Object target);
+
+    abstract int doGetInt(Object target);
+
+    abstract long doGetLong(Object target);
+
+    abstract float doGetFloat(Object target);
+
+    abstract double doGetDouble(Object target);
+
+    abstract void doSetBoolean(Object target, boolean value);
+
+    abstract void doSetByte(Object target, byte value);
+
+    abstract void doSetChar(Object target, char value);
+
+    abstract void doSetShort(Object target, short value);
+
+    abstract void doSetInt(Object target, int value);
+
+    abstract void doSetLong(Object target, long value);
+
+    abstract void doSetFloat(Object target, float value);
+
+    abstract void doSetDouble(Object target, double value);
+
+
+    /**
+     * Reads and writes the field at its offset, volatile fields with volatile semantics.
+     */
+    private static final class UnsafeAccessor extends FieldAccessor {
+
+        private final Unsafe unsafe;
+
+        private final Class<?> type;
+
+        /**
+         * The object holding a static field, {@code null} for an instance field.
+         */
+        private final Object staticBase;
+
+        private final long offset;
+
+        private final boolean isVolatile;
+
+        UnsafeAccessor(Field field, Unsafe unsafe) {
+            super(field, !(Modifier.isStatic(field.getModifiers()) && Modifier.isFinal(field.getModifiers())));
+            this.unsafe = unsafe;
+            this.type = field.getType();
+            if (Modifier.isStatic(field.getModifiers())) {
+                initialize(field.getDeclaringClass());
+                this.staticBase = unsafe.staticFieldBase(field);
+                this.offset = unsafe.staticFieldOffset(field);
+            }
+            else {
+                this.staticBase = null;
+                this.offset = unsafe.objectFieldOffset(field);
+            }
+            this.isVolatile = Modifier.isVolatile(field.getModifiers());
+        }
+
+        /**
+         * Run the static initializer before reading the static field base, through
+         * Class.forName as Unsafe.ensureClassInitialized is going away.
+         */
+        private static void initialize(Class<?> clazz) {
+            try {
+                Class.forName(clazz.getName(), true, clazz.getClassLoader());
+            }
+            catch (ClassNotFoundException ex) {
+                // hidden classes cannot be found by name, leave them to method handles
+                throw new UnsupportedOperationException(ex);
+            }
+        }
+
+        private Object base(Object target) {
+            return (this.staticBase != null ? this.staticBase : target);
+        }
+
+        @Override
+        Object doGet(Object target) {
+            if (this.type == boolean.class) {
+                return doGetBoolean(target);
+            }
+            if (this.type == byte.class) {
+                return doGetByte(target);
+            }
+            if (this.type == char.class) {
+                return doGetChar(target);
+            }
+            if (this.type == short.class) {
+                return doGetShort(target);
+            }
+            if (this.type == int.class) {
+                return doGetInt(target);
+            }
+            if (this.type == long.class) {
+                return doGetLong(target);
+            }
+            if (this.type == float.class) {
+                return doGetFloat(target);
+            }
+            if (this.type == double.class) {
+                return doGetDouble(target);
+            }
+            return (this.isVolatile ? this.unsafe.getObjectVolatile(base(target), this.offset) :
+                    this.unsafe.getObject(base(target), this.offset));
+        }
+
+        @Override
+        void doSet(Object target, Object value) {
+            if (this.type == boolean.class) {
+                doSetBoolean(target, (Boolean) value);
+            }
+            else if (this.type == byte.class) {
+                doSetByte(target, (Byte) value);
+            }
+            else if (this.type == char.class) {
+                doSetChar(target, (Character) value);
+            }
+            else if (this.type == short.class) {
+                doSetShort(target, (Short) value);
+            }
+            else if (this.type == int.class) {
+                doSetInt(target, (Integer) value);
+            }
+            else if (this.type == long.class) {
+                doSetLong(target, (Long) value);
+            }
+            else if (this.type == float.class) {
+                doSetFloat(target, (Float) value);
+            }
+            else if (this.type == double.class) {
+                doSetDouble(target, (Double) value);
+            }
+            else if (this.isVolatile) {
+                this.unsafe.putObjectVolatile(base(target), this.offset, value);
+            }
+            else {
+                this.unsafe.putObject(base(target), this.offset, value);
+            }
+        }
+
+        @Override
+        boolean doGetBoolean(Object target) {
+            return (this.isVolatile ? this.unsafe.getBooleanVolatile(base(target), this.offset) :
+                    this.unsafe.getBoolean(base(target), this.offset));
+        }
+
+        @Override
+        byte doGetByte(Object target) {
+            return (this.isVolatile ? this.unsafe.getByteVolatile(base(target), this.offset) :
+                    this.unsafe.getByte(base(target), this.offset));
+        }
+
+        @Override
+        char doGetChar(Object target) {
+            return (this.isVolatile ? this.unsafe.getCharVolatile(base(target), this.offset) :
+                    this.unsafe.getChar(base(target), this.offset));
+        }
+
+        @Override
+        short doGetShort(Object target) {
+            return (this.isVolatile ? this.unsafe.getShortVolatile(base(target), this.offset) :
+                    this.unsafe.getShort(base(target), this.offset));
+        }
+
+        @Override
+        int doGetInt(Object target) {
+            return (this.isVolatile ? this.unsafe.getIntVolatile(base(target), this.offset) :
+                    this.unsafe.getInt(base(target), this.offset));
+        }
+
+        @Override
+        long doGetLong(Object target) {
+            return (this.isVolatile ? this.unsafe.getLongVolatile(base(target), this.offset) :
+                    this.unsafe.getLong(base(target), this.offset));
+        }
+
+        @Override
+        float doGetFloat(Object target) {
+            return (this.isVolatile ? this.unsafe.getFloatVolatile(base(target), this.offset) :
+                    this.unsafe.getFloat(base(target), this.offset));
+        }
+
+        @Override
+        double doGetDouble(Object target) {
+            return (this.isVolatile ? this.unsafe.getDoubleVolatile(base(target), this.offset) :
+                    this.unsafe.getDouble(base(target), this.offset));
+        }
+
+        @Override
+        void doSetBoolean(Object target, boolean value) {
+            if (this.isVolatile) {
+                this.unsafe.putBooleanVolatile(base(target), this.offset, value);
+            }
+            else {
+                this.unsafe.putBoolean(base(target), this.offset, value);
+            }
+        }
+
+        @Override
+        void doSetByte(Object target, byte value) {
+            if (this.isVolatile) {
+                this.unsafe.putByteVolatile(base(target), this.offset, value);
+            }
+            else {
+                this.unsafe.putByte(base(target), this.offset, value);
+            }
+        }
+
+        @Override
+        void doSetChar(Object target, char value) {
+            if (this.isVolatile) {
+                this.unsafe.putCharVolatile(base(target), this.offset, value);
+            }
+            else {
+                this.unsafe.putChar(base(target), this.offset, value);
+            }
+        }
+
+        @Override
+        void doSetShort(Object target, short value) {
+            if (this.isVolatile) {
+                this.unsafe.putShortVolatile(base(target), this.offset, value);
+            }
+            else {
+                this.unsafe.putShort(base(target), this.offset, value);
+            }
+        }
+
+        @Override
+        void doSetInt(Object target, int value) {
+            if (this.isVolatile) {
+                this.unsafe.putIntVolatile(base(target), this.offset, value);
+            }
+            else {
+                this.unsafe.putInt(base(target), this.offset, value);
+            }
+        }
+
+        @Override
+        void doSetLong(Object target, long value) {
+            if (this.isVolatile) {
+                this.unsafe.putLongVolatile(base(target), this.offset, value);
+            }
+            else {
+                this.unsafe.putLong(base(target), this.offset, value);
+            }
+        }
+
+        @Override
+        void doSetFloat(Object target, float value) {
+            if (this.isVolatile) {
+                this.unsafe.putFloatVolatile(base(target), this.offset, value);
+            }
+            else {
+                this.unsafe.putFloat(base(target), this.offset, value);
+            }
+        }
+
+        @Override
+        void doSetDouble(Object target, double value) {
+            if (this.isVolatile) {
+                this.unsafe.putDoubleVolatile(base(target), this.offset, value);
+            }
+            else {
+                this.unsafe.putDouble(base(target), this.offset, value);
+            }
+        }
+    }
+
+
+    /**
+     * Reads and writes the field through handles taking the target as an object, static
+     * fields ignore it. The typed handles are exact for the type of the field.
+     */
+    private static final class HandleAccessor extends FieldAccessor {
+
+        private final MethodHandle getter;
+
+        private final MethodHandle setter;
+
+        private final MethodHandle typedGetter;
+
+        private final MethodHandle typedSetter;
+
+        HandleAccessor(Field field) {
+            this(field, getter(field), setter(field));
+        }
+
+        private HandleAccessor(Field field, MethodHandle getter, MethodHandle setter) {
+            super(field, setter != null);
+            Class<?> type = field.getType();
+            this.typedGetter = getter.asType(MethodType.methodType(type, Object.class));
+            this.getter = getter.asType(MethodType.methodType(Object.class, Object.class));
+            if (setter != null) {
+                this.typedSetter = setter.asType(MethodType.methodType(void.class, Object.class, type));
+                this.setter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+            }
+            else {
+                this.typedSetter = null;
+                this.setter = null;
+            }
+        }
+
+        private static MethodHandle getter(Field field) {
+            try {
+                MethodHandle getter = LOOKUP.unreflectGetter(field);
+                if (Modifier.isStatic(field.getModifiers())) {
+                    getter = MethodHandles.dropArguments(getter, 0, Object.class);
+                }
+                return getter;
+            }
+            catch (IllegalAccessException ex) {
+                throw illegalAccess(ex);
+            }
+        }
+
+        private static MethodHandle setter(Field field) {
+            if (Modifier.isStatic(field.getModifiers()) && Modifier.isFinal(field.getModifiers())) {
+                return null;
+            }
+            try {
+                MethodHandle setter = LOOKUP.unreflectSetter(field);
+                if (Modifier.isStatic(field.getModifiers())) {
+                    setter = MethodHandles.dropArguments(setter, 0, Object.class);
+                }
+                return setter;
+            }
+            catch (IllegalAccessException ex) {
+                // a final field the jvm refuses to write, left to Field
+                return null;
+            }
+        }
+
+        private static RuntimeException propagate(Throwable ex) {
+            ReflectionUtil.rethrowRuntimeException(ex);
+            return new IllegalStateException("Should never get here");
+        }
+
+        @Override
+        Object doGet(Object target) {
+            try {
+                return (Object) this.getter.invokeExact(target);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        void doSet(Object target, Object value) {
+            try {
+                this.setter.invokeExact(target, value);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        boolean doGetBoolean(Object target) {
+            try {
+                return (boolean) this.typedGetter.invokeExact(target);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        byte doGetByte(Object target) {
+            try {
+                return (byte) this.typedGetter.invokeExact(target);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        char doGetChar(Object target) {
+            try {
+                return (char) this.typedGetter.invokeExact(target);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        short doGetShort(Object target) {
+            try {
+                return (short) this.typedGetter.invokeExact(target);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        int doGetInt(Object target) {
+            try {
+                return (int) this.typedGetter.invokeExact(target);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        long doGetLong(Object target) {
+            try {
+                return (long) this.typedGetter.invokeExact(target);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        float doGetFloat(Object target) {
+            try {
+                return (float) this.typedGetter.invokeExact(target);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        double doGetDouble(Object target) {
+            try {
+                return (double) this.typedGetter.invokeExact(target);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        void doSetBoolean(Object target, boolean value) {
+            try {
+                this.typedSetter.invokeExact(target, value);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        void doSetByte(Object target, byte value) {
+            try {
+                this.typedSetter.invokeExact(target, value);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        void doSetChar(Object target, char value) {
+            try {
+                this.typedSetter.invokeExact(target, value);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        void doSetShort(Object target, short value) {
+            try {
+                this.typedSetter.invokeExact(target, value);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        void doSetInt(Object target, int value) {
+            try {
+                this.typedSetter.invokeExact(target, value);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        void doSetLong(Object target, long value) {
+            try {
+                this.typedSetter.invokeExact(target, value);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        void doSetFloat(Object target, float value) {
+            try {
+                this.typedSetter.invokeExact(target, value);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+
+        @Override
+        void doSetDouble(Object target, double value) {
+            try {
+                this.typedSetter.invokeExact(target, value);
+            }
+            catch (Throwable ex) {
+                throw propagate(ex);
+            }
+        }
+    }
+}
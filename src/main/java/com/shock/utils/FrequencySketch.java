@@ -0,0 +1,121 @@
+package com.shock.utils;
+
+/**
+ * 基于 count-min sketch 的访问频率估算, 用于 TinyLFU 准入策略
+ *
+ * 每个 long 存放 16 个 4bit 计数器, 一个元素按 4 个 hash 各占一个计数器, 取最小值作为频率。
+ * 记录次数达到 {@code sampleSize} 后所有计数器减半, 使旧的热点逐渐老化。
+ *
+ * 非线程安全, 调用方需要自己加锁。
+ */
+final class FrequencySketch {
+
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private static final int MAXIMUM_TABLE_SIZE = 1 << 30;
+
+    private long[] table;
+
+    private int tableMask;
+
+    private int sampleSize;
+
+    private int size;
+
+    /**
+     * @param maximumSize the number of elements the owner can hold, used to size the table
+     */
+    FrequencySketch(int maximumSize) {
+        this.table = new long[0];
+        ensureCapacity(maximumSize);
+    }
+
+    /**
+     * Grow the table if the owner now holds more elements than it was sized for. Growing
+     * discards the frequencies recorded so far.
+     * @param maximumSize the number of elements the owner can hold
+     */
+    void ensureCapacity(int maximumSize) {
+        maximumSize = Math.max(maximumSize, 1);
+        if (maximumSize <= this.table.length || this.table.length >= MAXIMUM_TABLE_SIZE) {
+            return;
+        }
+        int capacity = 1;
+        while (capacity < maximumSize && capacity < MAXIMUM_TABLE_SIZE) {
+            capacity <<= 1;
+        }
+        this.table = new long[capacity];
+        this.tableMask = capacity - 1;
+        this.sampleSize = (int) Math.min(10L * maximumSize, Integer.MAX_VALUE);
+        this.size = 0;
+    }
+
+    /**
+     * @param e the element
+     * @return the estimated number of occurrences of the element, at most 15
+     */
+    int frequency(Object e) {
+        int hash = spread(e.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((this.table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increment the counters of the element, halving all counters once the sample
+     * size has been reached.
+     * @param e the element
+     */
+    void increment(Object e) {
+        int hash = spread(e.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++this.size == this.sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((this.table[index] & mask) != mask) {
+            this.table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < this.table.length; i++) {
+            odd += Long.bitCount(this.table[i] & ONE_MASK);
+            this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+        }
+        this.size = (this.size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & this.tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
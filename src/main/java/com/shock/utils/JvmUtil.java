@@ -1307,27 +1307,21 @@ public class JvmUtil {
                  * Consider an object. Push any references it has to the
                  * processing stack and accumulate this object's shallow size.
                  */
-                try {
-                    ClassInfo cachedInfo = classCache.get(obClazz);
-                    if (cachedInfo == null) {
-                        classCache.put(obClazz,
-                                cachedInfo = createClassInfo(obClazz));
-                    }
+                ClassInfo cachedInfo = classCache.get(obClazz);
+                if (cachedInfo == null) {
+                    classCache.put(obClazz,
+                            cachedInfo = createClassInfo(obClazz));
+                }
 
-                    for (Field f : cachedInfo.referenceFields) {
-                        // Fast path to eliminate redundancies.
-                        final Object o = f.get(obj);
-                        if (o != null && !seen.containsKey(id)) {
-                            stack.add(o);
-                        }
+                for (FieldAccessor f : cachedInfo.referenceFields) {
+                    // Fast path to eliminate redundancies.
+                    final Object o = f.get(obj);
+                    if (o != null && !seen.containsKey(id)) {
+                        stack.add(o);
                     }
-
-                    totalSize += cachedInfo.alignedShallowInstanceSize;
-                } catch (IllegalAccessException e) {
-                    // This should never happen as we enabled setAccessible().
-                    throw new RuntimeException(
-                            "Reflective field access failed?", e);
                 }
+
+                totalSize += cachedInfo.alignedShallowInstanceSize;
             }
         }
 
@@ -1342,7 +1336,7 @@ public class JvmUtil {
     private static ClassInfo createClassInfo(final Class<?> clazz) {
         ClassInfo cachedInfo;
         long shallowInstanceSize = headerSize;
-        final ArrayList<Field> referenceFields = new ArrayList<Field>(32);
+        final ArrayList<FieldAccessor> referenceFields = new ArrayList<FieldAccessor>(32);
         for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
             final Field[] fields = c.getDeclaredFields();
             for (final Field f : fields) {
@@ -1350,8 +1344,7 @@ public class JvmUtil {
                     shallowInstanceSize = adjustForField(shallowInstanceSize, f);
 
                     if (!f.getType().isPrimitive()) {
-                        f.setAccessible(true);
-                        referenceFields.add(f);
+                        referenceFields.add(ReflectionUtil.accessor(f));
                     }
                 }
             }
@@ -1363,7 +1356,7 @@ public class JvmUtil {
         int arrayIndexScale = unsafe.arrayIndexScale(array.getClass());
         long classAddress = addressOfClassInternal(clazz);
         cachedInfo = new ClassInfo(alignObjectSize(shallowInstanceSize),
-                referenceFields.toArray(new Field[referenceFields.size()]),
+                referenceFields.toArray(new FieldAccessor[referenceFields.size()]),
                 size, arrayBaseOffset, arrayIndexScale, classAddress);
         return cachedInfo;
     }
@@ -1816,13 +1809,13 @@ public class JvmUtil {
     private static final class ClassInfo {
 
         final long alignedShallowInstanceSize;
-        final Field[] referenceFields;
+        final FieldAccessor[] referenceFields;
         final long size;
         final int arrayBaseOffset;
         final int arrayIndexScale;
         final long classAddress;
 
-        ClassInfo(long alignedShallowInstanceSize, Field[] referenceFields,
+        ClassInfo(long alignedShallowInstanceSize, FieldAccessor[] referenceFields,
                 long size, int arrayBaseOffset, int arrayIndexScale,
                 long classAddress) {
             this.alignedShallowInstanceSize = alignedShallowInstanceSize;
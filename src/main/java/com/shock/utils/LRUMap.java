@@ -1,18 +1,34 @@
 package com.shock.utils;
 
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
  * 自定义的lrumap实现
+ * 所有方法共用一把锁, 高并发读写时请使用 {@link ConcurrentLRUMap}
+ * keySet、values、entrySet 视图的迭代器遍历的是加锁复制出的快照, 遍历时不持有锁,
+ * 也不会抛出 {@link java.util.ConcurrentModificationException}; entrySet 迭代出的条目调用 setValue 时
+ * 通过 put 写回 map, 和 put 一样算作一次访问。
+ * 注意每创建一个迭代器都要在锁内复制整个 map, 耗时和条目数成正比, 期间其他线程的读写都要等待:
+ * 按访问排序的 map 每次 get 都会调整顺序, 释放锁之后无法从原来的位置接着遍历, 所以不能分块复制。
+ * 需要经常遍历大 map 时请使用 {@link ConcurrentLRUMap}, 它的快照按段分块复制。
  * @param <K>
  * @param <V>
  */
 public class LRUMap<K, V> extends LinkedHashMap<K, V> implements Map<K, V> {
 	private static final long serialVersionUID = -188971896404993320L;
 	private int maxSize;
+	private transient Set<K> keySetView;
+	private transient Collection<V> valuesView;
+	private transient Set<Map.Entry<K, V>> entrySetView;
 
 	public LRUMap(int maxSize) {
 		super((int) Math.ceil((1f * maxSize) / 0.75f) + 16, 0.75f, true);
@@ -71,18 +87,244 @@ public class LRUMap<K, V> extends LinkedHashMap<K, V> implements Map<K, V> {
 		super.putAll(m);
 	}
 
+	@Override
+	public synchronized V putIfAbsent(K key, V value) {
+		return super.putIfAbsent(key, value);
+	}
+
 	@Override
 	public synchronized Set<K> keySet() {
-		return super.keySet();
+		if (keySetView == null) {
+			keySetView = new KeySet();
+		}
+		return keySetView;
 	}
 
 	@Override
 	public synchronized Collection<V> values() {
-		return super.values();
+		if (valuesView == null) {
+			valuesView = new Values();
+		}
+		return valuesView;
 	}
 
 	@Override
 	public synchronized Set<Map.Entry<K, V>> entrySet() {
-		return super.entrySet();
+		if (entrySetView == null) {
+			entrySetView = new EntrySet();
+		}
+		return entrySetView;
+	}
+
+	/**
+	 * The clone gets its own views, the ones of this map would read this map.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized LRUMap<K, V> clone() {
+		LRUMap<K, V> clone = (LRUMap<K, V>) super.clone();
+		clone.keySetView = null;
+		clone.valuesView = null;
+		clone.entrySetView = null;
+		return clone;
+	}
+
+	/**
+	 * Copy all entries while holding the lock, from least to most recently used.
+	 * Copying does not count as an access. The lock is held for the whole copy, which
+	 * takes time linear in the size of the map.
+	 * @return the copied entries
+	 */
+	public synchronized List<Map.Entry<K, V>> snapshot() {
+		List<Map.Entry<K, V>> snapshot = new ArrayList<Map.Entry<K, V>>(super.size());
+		for (Map.Entry<K, V> entry : super.entrySet()) {
+			snapshot.add(new SimpleImmutableEntry<K, V>(entry));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Copy the keys only, cheaper than {@link #snapshot()} as no entry is created.
+	 */
+	private synchronized List<K> keySnapshot() {
+		return new ArrayList<K>(super.keySet());
+	}
+
+	/**
+	 * Iterates over a copy, removes from the map by key.
+	 * @param <E> the copied elements
+	 * @param <T> the elements returned
+	 */
+	private abstract class SnapshotIterator<E, T> implements Iterator<T> {
+		private final Iterator<E> elements;
+		private E last;
+
+		SnapshotIterator(List<E> snapshot) {
+			this.elements = snapshot.iterator();
+		}
+
+		public boolean hasNext() {
+			return elements.hasNext();
+		}
+
+		public T next() {
+			if (!elements.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = elements.next();
+			return extract(last);
+		}
+
+		public void remove() {
+			Assert.isTrue(last != null);
+			LRUMap.this.remove(keyOf(last));
+			last = null;
+		}
+
+		protected abstract T extract(E element);
+
+		protected abstract Object keyOf(E element);
+	}
+
+	private abstract class EntrySnapshotIterator<T> extends SnapshotIterator<Map.Entry<K, V>, T> {
+		EntrySnapshotIterator() {
+			super(snapshot());
+		}
+
+		@Override
+		protected Object keyOf(Map.Entry<K, V> entry) {
+			return entry.getKey();
+		}
+	}
+
+	/**
+	 * A copied entry whose setValue puts the value into the map.
+	 */
+	private final class WriteThroughEntry extends SimpleEntry<K, V> {
+		private static final long serialVersionUID = 2918452710634137519L;
+
+		WriteThroughEntry(Map.Entry<K, V> entry) {
+			super(entry);
+		}
+
+		@Override
+		public V setValue(V value) {
+			LRUMap.this.put(getKey(), value);
+			return super.setValue(value);
+		}
+	}
+
+	private final class KeySet extends AbstractSet<K> {
+		@Override
+		public Iterator<K> iterator() {
+			return new SnapshotIterator<K, K>(keySnapshot()) {
+				@Override
+				protected K extract(K key) {
+					return key;
+				}
+
+				@Override
+				protected Object keyOf(K key) {
+					return key;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return LRUMap.this.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return LRUMap.this.containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			synchronized (LRUMap.this) {
+				if (!LRUMap.super.containsKey(o)) {
+					return false;
+				}
+				LRUMap.super.remove(o);
+				return true;
+			}
+		}
+
+		@Override
+		public void clear() {
+			LRUMap.this.clear();
+		}
+	}
+
+	private final class Values extends AbstractCollection<V> {
+		@Override
+		public Iterator<V> iterator() {
+			return new EntrySnapshotIterator<V>() {
+				@Override
+				protected V extract(Map.Entry<K, V> entry) {
+					return entry.getValue();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return LRUMap.this.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return LRUMap.this.containsValue(o);
+		}
+
+		@Override
+		public void clear() {
+			LRUMap.this.clear();
+		}
+	}
+
+	private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			return new EntrySnapshotIterator<Map.Entry<K, V>>() {
+				@Override
+				protected Map.Entry<K, V> extract(Map.Entry<K, V> entry) {
+					return new WriteThroughEntry(entry);
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return LRUMap.this.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?, ?>)) {
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+			synchronized (LRUMap.this) {
+				return LRUMap.super.entrySet().contains(entry);
+			}
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (!(o instanceof Map.Entry<?, ?>)) {
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+			synchronized (LRUMap.this) {
+				return LRUMap.super.entrySet().remove(entry);
+			}
+		}
+
+		@Override
+		public void clear() {
+			LRUMap.this.clear();
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+package com.shock.utils;
+
+/**
+ * 绑定了加载逻辑的 {@link ConcurrentLRUMap}
+ *
+ * {@link #get(Object)} 未命中时用构造时给定的 loader 加载, 同一个 key 并发的未命中共享一次加载,
+ * 冷启动时不会有大量线程同时回源。如果 map 配置了 {@link ConcurrentLRUMap.Builder#refreshAfterWrite},
+ * 过旧的值会在后台重新加载, 期间仍然返回旧值。
+ *
+ * 通过 {@link ConcurrentLRUMap.Builder#build(CallBack)} 创建。
+ * @param <K>
+ * @param <V>
+ */
+public class LoadingLRUMap<K, V> {
+
+    private final ConcurrentLRUMap<K, V> map;
+
+    private final CallBack<? extends V, ? super K> loader;
+
+
+    /**
+     * Create a new {@code LoadingLRUMap} instance.
+     * @param map the map holding the loaded values
+     * @param loader computes the value of a missing key, may return {@code null} if there is none
+     */
+    public LoadingLRUMap(ConcurrentLRUMap<K, V> map, CallBack<? extends V, ? super K> loader) {
+        Assert.notNull(map, "Map must not be null");
+        Assert.notNull(loader, "Loader must not be null");
+        this.map = map;
+        this.loader = loader;
+    }
+
+
+    /**
+     * Return the value of the key, loading it if there is none.
+     * @param key the key
+     * @return the value, {@code null} if the loader found none
+     * @see ConcurrentLRUMap#get(Object, CallBack)
+     */
+    public V get(K key) {
+        return this.map.get(key, this.loader);
+    }
+
+    /**
+     * @param key the key
+     * @return the value of the key, {@code null} if there is none, never loads
+     */
+    public V getIfPresent(Object key) {
+        return this.map.get(key);
+    }
+
+    /**
+     * Reload the value of the key asynchronously.
+     * @param key the key
+     * @see ConcurrentLRUMap#refresh(Object, CallBack)
+     */
+    public void refresh(K key) {
+        this.map.refresh(key, this.loader);
+    }
+
+    /**
+     * @param key the key whose value is discarded
+     */
+    public void invalidate(Object key) {
+        this.map.remove(key);
+    }
+
+    /**
+     * @return the underlying map, changes to it are visible through this instance
+     */
+    public ConcurrentLRUMap<K, V> asMap() {
+        return this.map;
+    }
+}
@@ -0,0 +1,331 @@
+package com.shock.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 把 lru map 的内容连同访问顺序导出到文件, 并在重启后重新加载
+ *
+ * 导出和加载都通过 {@link FileChannel#map} 按窗口 (默认 64MB) 映射文件, 一次只映射一个窗口,
+ * 不需要把整个文件读进堆里。条目按从最久未使用到最近使用的顺序写入, 依次放回空 map 后访问顺序也就恢复了。
+ * key 和 value 的编码由 {@link Codec} 决定。
+ *
+ * 导出先写到同目录的临时文件, 完成后再替换目标文件, 中途失败不会留下半个快照。
+ * 重启时可以用 {@link #warmUp} 在后台流式加载, 期间 map 已经可以正常读写, 加载不会覆盖新写入的值。
+ *
+ * 文件格式: 魔数、版本号和条目数组成的头部, 之后每个条目依次是 key 的长度和字节、value 的长度和字节。
+ */
+public final class MappedSnapshot {
+
+    private static final int MAGIC = 0x4c525553;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int DEFAULT_WINDOW_SIZE = 64 << 20;
+
+
+    private MappedSnapshot() {
+    }
+
+
+    /**
+     * Write the entries of the map to the file, segment by segment, from the least to
+     * the most recently used.
+     * @param map the map to dump
+     * @param file the file to write, replaced if it exists
+     * @param keyCodec encodes the keys
+     * @param valueCodec encodes the values
+     * @return the number of entries written
+     * @throws IOException if the file could not be written
+     */
+    public static <K, V> long dump(ConcurrentLRUMap<K, V> map, File file, Codec<? super K> keyCodec,
+            Codec<? super V> valueCodec) throws IOException {
+        return dump(map, file, keyCodec, valueCodec, DEFAULT_WINDOW_SIZE);
+    }
+
+    static <K, V> long dump(ConcurrentLRUMap<K, V> map, File file, Codec<? super K> keyCodec,
+            Codec<? super V> valueCodec, int windowSize) throws IOException {
+        Assert.notNull(map, "Map must not be null");
+        final Writer<K, V> writer = new Writer<K, V>(file, keyCodec, valueCodec, windowSize);
+        try {
+            map.snapshotInAccessOrder(new CallBackNoReturn<List<Map.Entry<K, V>>>() {
+                @Override
+                public void execute(List<Map.Entry<K, V>> entries) {
+                    writer.write(entries);
+                }
+            });
+            return writer.commit();
+        }
+        catch (SnapshotIOException ex) {
+            throw ex.getCause();
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write the entries of the map to the file, from the least to the most recently used.
+     * The entries are copied with {@link LRUMap#snapshot()}, which holds the lock of the map
+     * for the whole copy, the writing happens after the lock is released.
+     * @param map the map to dump
+     * @param file the file to write, replaced if it exists
+     * @param keyCodec encodes the keys
+     * @param valueCodec encodes the values
+     * @return the number of entries written
+     * @throws IOException if the file could not be written
+     */
+    public static <K, V> long dump(LRUMap<K, V> map, File file, Codec<? super K> keyCodec,
+            Codec<? super V> valueCodec) throws IOException {
+        Assert.notNull(map, "Map must not be null");
+        Writer<K, V> writer = new Writer<K, V>(file, keyCodec, valueCodec, DEFAULT_WINDOW_SIZE);
+        try {
+            writer.write(map.snapshot());
+            return writer.commit();
+        }
+        catch (SnapshotIOException ex) {
+            throw ex.getCause();
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Read the entries of the file into the map in the order they were written, keeping
+     * the values the map already holds. Only one window of the file is mapped at a time.
+     * @param file a file written by one of the {@code dump} methods
+     * @param map the map to fill
+     * @param keyCodec decodes the keys
+     * @param valueCodec decodes the values
+     * @return the number of entries read
+     * @throws IOException if the file could not be read or is not a snapshot
+     */
+    public static <K, V> long load(File file, Map<K, V> map, Codec<? extends K> keyCodec,
+            Codec<? extends V> valueCodec) throws IOException {
+        return load(file, map, keyCodec, valueCodec, DEFAULT_WINDOW_SIZE);
+    }
+
+    static <K, V> long load(File file, Map<K, V> map, Codec<? extends K> keyCodec,
+            Codec<? extends V> valueCodec, int windowSize) throws IOException {
+        Assert.notNull(file, "File must not be null");
+        Assert.notNull(map, "Map must not be null");
+        Assert.notNull(keyCodec, "Key codec must not be null");
+        Assert.notNull(valueCodec, "Value codec must not be null");
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            long count = header.getLong();
+            long read = 0;
+            long position = HEADER_SIZE;
+            long mappedSize = windowSize;
+            while (read < count) {
+                mappedSize = Math.min(mappedSize, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, mappedSize);
+                int consumed = 0;
+                while (read < count && window.remaining() >= 4) {
+                    int keyLength = window.getInt();
+                    if (keyLength < 0) {
+                        throw new IOException("Corrupt snapshot file: " + file);
+                    }
+                    if (window.remaining() < (long) keyLength + 4) {
+                        break;
+                    }
+                    byte[] key = new byte[keyLength];
+                    window.get(key);
+                    int valueLength = window.getInt();
+                    if (valueLength < 0) {
+                        throw new IOException("Corrupt snapshot file: " + file);
+                    }
+                    if (window.remaining() < valueLength) {
+                        break;
+                    }
+                    byte[] value = new byte[valueLength];
+                    window.get(value);
+                    map.putIfAbsent(keyCodec.decode(key), valueCodec.decode(value));
+                    consumed = window.position();
+                    read++;
+                }
+                if (consumed == 0) {
+                    if (position + mappedSize >= size) {
+                        throw new IOException("Truncated snapshot file: " + file);
+                    }
+                    // a single entry larger than the window
+                    mappedSize = Math.min(mappedSize << 1, Integer.MAX_VALUE);
+                    continue;
+                }
+                position += consumed;
+                mappedSize = windowSize;
+            }
+            return read;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Load the file into the map in the background, so that the map can serve requests
+     * while it is being warmed up.
+     * @param file a file written by one of the {@code dump} methods
+     * @param map the map to fill, values written to it in the meantime are kept
+     * @param keyCodec decodes the keys
+     * @param valueCodec decodes the values
+     * @param executor runs the load
+     * @return the number of entries read, or the exception that stopped the load
+     */
+    public static <K, V> Future<Long> warmUp(final File file, final Map<K, V> map, final Codec<? extends K> keyCodec,
+            final Codec<? extends V> valueCodec, Executor executor) {
+        Assert.notNull(executor, "Executor must not be null");
+        FutureTask<Long> task = new FutureTask<Long>(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return load(file, map, keyCodec, valueCodec);
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+
+    /**
+     * Carries an {@link IOException} out of a callback.
+     */
+    @SuppressWarnings("serial")
+    private static final class SnapshotIOException extends RuntimeException {
+
+        SnapshotIOException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+
+    /**
+     * Writes entries to a temporary file through a sliding mapped window, and moves it
+     * in place of the target file on commit.
+     */
+    private static final class Writer<K, V> {
+
+        private final File file;
+
+        private final File tempFile;
+
+        private final Codec<? super K> keyCodec;
+
+        private final Codec<? super V> valueCodec;
+
+        private final int windowSize;
+
+        private final RandomAccessFile out;
+
+        private final FileChannel channel;
+
+        /**
+         * Where the current window starts in the file.
+         */
+        private long position;
+
+        private MappedByteBuffer window;
+
+        private long count;
+
+        Writer(File file, Codec<? super K> keyCodec, Codec<? super V> valueCodec, int windowSize) throws IOException {
+            Assert.notNull(file, "File must not be null");
+            Assert.notNull(keyCodec, "Key codec must not be null");
+            Assert.notNull(valueCodec, "Value codec must not be null");
+            this.file = file;
+            this.tempFile = new File(file.getPath() + ".tmp");
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+            this.windowSize = windowSize;
+            this.out = new RandomAccessFile(this.tempFile, "rw");
+            this.out.setLength(0);
+            this.channel = this.out.getChannel();
+            this.window = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, windowSize);
+            // through Buffer, MappedByteBuffer.position(int) only exists since java 9
+            ((Buffer) this.window).position(HEADER_SIZE);
+        }
+
+        void write(List<Map.Entry<K, V>> entries) {
+            try {
+                for (Map.Entry<K, V> entry : entries) {
+                    write(this.keyCodec.encode(entry.getKey()), this.valueCodec.encode(entry.getValue()));
+                }
+            }
+            catch (IOException ex) {
+                throw new SnapshotIOException(ex);
+            }
+        }
+
+        private void write(byte[] key, byte[] value) throws IOException {
+            int length = 8 + key.length + value.length;
+            if (this.window.remaining() < length) {
+                this.position += this.window.position();
+                this.window = this.channel.map(FileChannel.MapMode.READ_WRITE, this.position,
+                        Math.max(this.windowSize, length));
+            }
+            this.window.putInt(key.length);
+            this.window.put(key);
+            this.window.putInt(value.length);
+            this.window.put(value);
+            this.count++;
+        }
+
+        /**
+         * Write the header, cut the file to its content and move it in place.
+         * @return the number of entries written
+         */
+        long commit() throws IOException {
+            long end = this.position + this.window.position();
+            this.window.force();
+            MappedByteBuffer header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(this.count);
+            header.force();
+            this.channel.truncate(end);
+            this.out.close();
+            Files.move(this.tempFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return this.count;
+        }
+
+        void close() throws IOException {
+            this.out.close();
+            if (this.tempFile.exists() && !this.tempFile.delete()) {
+                throw new IOException("Could not delete temporary file: " + this.tempFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.shock.utils;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * 预先绑定到一个方法上的调用器, 代替反复调用 {@link Method#invoke}
+ *
+ * 公开类的公开实例方法 (有返回值, 最多两个参数) 通过 {@link LambdaMetafactory} 生成实现类, 调用和手写代码一样
+ * 直接; 其余方法用适配成 {@code (Object, Object...)Object} 的 {@link MethodHandle}。{@code invoke0/1/2}
+ * 按参数个数调用, 除了基本类型的装箱外不分配对象, 也不再做访问检查。
+ *
+ * 方法抛出的异常按 {@link ReflectionUtil#handleReflectionException} 的规则转换: 运行时异常和 Error 原样抛出,
+ * 受检异常包装成 {@link java.lang.reflect.UndeclaredThrowableException}。参数类型不对时抛出的是
+ * {@link ClassCastException}, 基本类型参数传入 null 时抛出 {@link NullPointerException},
+ * 而不是 {@link IllegalArgumentException}。
+ *
+ * 通过 {@link ReflectionUtil#invoker(Method)} 获取, 同一个方法的调用器会被缓存。
+ */
+public abstract class MethodInvoker {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final Method method;
+
+    private final int parameterCount;
+
+
+    MethodInvoker(Method method) {
+        this.method = method;
+        this.parameterCount = method.getParameterTypes().length;
+    }
+
+
+    /**
+     * Create an invoker for the method, making it accessible if needed.
+     */
+    static MethodInvoker create(Method method) {
+        Assert.notNull(method, "Method must not be null");
+        ReflectionUtil.makeAccessible(method);
+        MethodHandle handle;
+        try {
+            handle = LOOKUP.unreflect(method);
+        }
+        catch (IllegalAccessException ex) {
+            throw new IllegalStateException("Could not access method: " + ex.getMessage());
+        }
+        if (isLinkable(method)) {
+            try {
+                return new LambdaInvoker(method, handle);
+            }
+            catch (Throwable ex) {
+                // not linkable from here after all, the handle still works
+            }
+        }
+        return new HandleInvoker(method, handle);
+    }
+
+    /**
+     * Whether a lambda class defined next to this one can call the method directly.
+     */
+    private static boolean isLinkable(Method method) {
+        if (Modifier.isStatic(method.getModifiers()) || method.getReturnType() == void.class
+                || method.getParameterTypes().length > 2) {
+            return false;
+        }
+        if (!Modifier.isPublic(method.getModifiers()) || !Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+            return false;
+        }
+        if (!isVisible(method.getDeclaringClass()) || !isVisible(method.getReturnType())) {
+            return false;
+        }
+        for (Class<?> type : method.getParameterTypes()) {
+            if (!isVisible(type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isVisible(Class<?> type) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        if (type.isPrimitive()) {
+            return true;
+        }
+        try {
+            return Class.forName(type.getName(), false, MethodInvoker.class.getClassLoader()) == type;
+        }
+        catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+
+    /**
+     * @return the method this invoker calls
+     */
+    public Method getMethod() {
+        return this.method;
+    }
+
+    /**
+     * Call a method taking no argument.
+     * @param target the object to call the method on, ignored for a static method
+     * @return the result, {@code null} for a void method
+     */
+    public Object invoke0(Object target) {
+        checkParameterCount(0);
+        try {
+            return doInvoke0(target);
+        }
+        catch (Throwable ex) {
+            ReflectionUtil.rethrowRuntimeException(ex);
+        }
+        throw new IllegalStateException("Should never get here");
+    }
+
+    /**
+     * Call a method taking one argument.
+     * @param target the object to call the method on, ignored for a static method
+     * @param arg the argument
+     * @return the result, {@code null} for a void method
+     */
+    public Object invoke1(Object target, Object arg) {
+        checkParameterCount(1);
+        try {
+            return doInvoke1(target, arg);
+        }
+        catch (Throwable ex) {
+            ReflectionUtil.rethrowRuntimeException(ex);
+        }
+        throw new IllegalStateException("Should never get here");
+    }
+
+    /**
+     * Call a method taking two arguments.
+     * @param target the object to call the method on, ignored for a static method
+     * @param arg1 the first argument
+     * @param arg2 the second argument
+     * @return the result, {@code null} for a void method
+     */
+    public Object invoke2(Object target, Object arg1, Object arg2) {
+        checkParameterCount(2);
+        try {
+            return doInvoke2(target, arg1, arg2);
+        }
+        catch (Throwable ex) {
+            ReflectionUtil.rethrowRuntimeException(ex);
+        }
+        throw new IllegalStateException("Should never get here");
+    }
+
+    /**
+     * Call the method with any number of arguments, the arity-specific methods avoid the array.
+     * @param target the object to call the method on, ignored for a static method
+     * @param args the arguments
+     * @return the result, {@code null} for a void method
+     */
+    public Object invoke(Object target, Object... args) {
+        if (args == null) {
+            args = new Object[0];
+        }
+        checkParameterCount(args.length);
+        try {
+            switch (args.length) {
+                case 0:
+                    return doInvoke0(target);
+                case 1:
+                    return doInvoke1(target, args[0]);
+                case 2:
+                    return doInvoke2(target, args[0], args[1]);
+                default:
+                    return doInvoke(target, args);
+            }
+        }
+        catch (Throwable ex) {
+            ReflectionUtil.rethrowRuntimeException(ex);
+        }
+        throw new IllegalStateException("Should never get here");
+    }
+
+    private void checkParameterCount(int count) {
+        if (count != this.parameterCount) {
+            throw new IllegalArgumentException("Wrong number of arguments for " + this.method
+                    + ": expected " + this.parameterCount + " but got " + count);
+        }
+    }
+
+    abstract Object doInvoke0(Object target) throws Throwable;
+
+    abstract Object doInvoke1(Object target, Object arg) throws Throwable;
+
+    abstract Object doInvoke2(Object target, Object arg1, Object arg2) throws Throwable;
+
+    abstract Object doInvoke(Object target, Object[] args) throws Throwable;
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + this.method + "]";
+    }
+
+
+    /**
+     * Functional interfaces implemented by the lambda classes, the target comes first.
+     */
+    interface Call0 {
+
+        Object call(Object target);
+    }
+
+    interface Call1 {
+
+        Object call(Object target, Object arg);
+    }
+
+    interface Call2 {
+
+        Object call(Object target, Object arg1, Object arg2);
+    }
+
+
+    /**
+     * Calls the method through a class spun by {@link LambdaMetafactory}, which the jit
+     * can inline like a hand-written call.
+     */
+    private static final class LambdaInvoker extends MethodInvoker {
+
+        private final Call0 call0;
+
+        private final Call1 call1;
+
+        private final Call2 call2;
+
+        LambdaInvoker(Method method, MethodHandle handle) throws Throwable {
+            super(method);
+            int count = method.getParameterTypes().length;
+            this.call0 = (count == 0 ? (Call0) spin(Call0.class, handle) : null);
+            this.call1 = (count == 1 ? (Call1) spin(Call1.class, handle) : null);
+            this.call2 = (count == 2 ? (Call2) spin(Call2.class, handle) : null);
+        }
+
+        private static Object spin(Class<?> callType, MethodHandle handle) throws Throwable {
+            // the instantiated type is the method type with the receiver first and primitives boxed
+            MethodType methodType = handle.type();
+            Class<?>[] parameterTypes = new Class<?>[methodType.parameterCount()];
+            for (int i = 0; i < parameterTypes.length; i++) {
+                parameterTypes[i] = ReflectionUtil.getNonPrimitiveType(methodType.parameterType(i));
+            }
+            MethodType instantiatedType = MethodType.methodType(
+                    ReflectionUtil.getNonPrimitiveType(methodType.returnType()), parameterTypes);
+            CallSite site = LambdaMetafactory.metafactory(LOOKUP, "call", MethodType.methodType(callType),
+                    MethodType.genericMethodType(parameterTypes.length), handle, instantiatedType);
+            return site.getTarget().invoke();
+        }
+
+        @Override
+        Object doInvoke0(Object target) {
+            return this.call0.call(target);
+        }
+
+        @Override
+        Object doInvoke1(Object target, Object arg) {
+            return this.call1.call(target, arg);
+        }
+
+        @Override
+        Object doInvoke2(Object target, Object arg1, Object arg2) {
+            return this.call2.call(target, arg1, arg2);
+        }
+
+        @Override
+        Object doInvoke(Object target, Object[] args) {
+            throw new IllegalStateException("Should never get here");
+        }
+    }
+
+
+    /**
+     * Calls the method through a handle adapted to take the target and the arguments as
+     * objects, static methods ignore the target.
+     */
+    private static final class HandleInvoker extends MethodInvoker {
+
+        private final MethodHandle handle;
+
+        private final MethodHandle spreader;
+
+        HandleInvoker(Method method, MethodHandle handle) {
+            super(method);
+            if (Modifier.isStatic(method.getModifiers())) {
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+            int count = method.getParameterTypes().length;
+            this.handle = handle.asType(MethodType.genericMethodType(count + 1));
+            this.spreader = this.handle.asSpreader(Object[].class, count);
+        }
+
+        @Override
+        Object doInvoke0(Object target) throws Throwable {
+            return (Object) this.handle.invokeExact(target);
+        }
+
+        @Override
+        Object doInvoke1(Object target, Object arg) throws Throwable {
+            return (Object) this.handle.invokeExact(target, arg);
+        }
+
+        @Override
+        Object doInvoke2(Object target, Object arg1, Object arg2) throws Throwable {
+            return (Object) this.handle.invokeExact(target, arg1, arg2);
+        }
+
+        @Override
+        Object doInvoke(Object target, Object[] args) throws Throwable {
+            return (Object) this.spreader.invokeExact(target, args);
+        }
+    }
+}
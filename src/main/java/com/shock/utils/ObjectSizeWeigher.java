@@ -0,0 +1,213 @@
+package com.shock.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 基于 {@link JvmUtil} 估算条目占用堆内存字节数的 {@link Weigher}
+ *
+ * 每个类的浅大小和引用字段只计算一次并缓存, 称重时只沿引用字段向下走 {@code maxDepth} 层,
+ * 不会像 {@link JvmUtil#sizeOf(Object)} 那样遍历整个对象图, 所以结果是一个估算值:
+ * 共享的对象会被重复计算, 超过深度的对象只计入引用本身。
+ *
+ * 浅大小由 {@link JvmUtil} 计算; 在它不支持的 jvm 上 (比如 java 9 以上) 按开启压缩指针的 64 位 jvm 的布局,
+ * 由字段类型估算: 12 字节对象头、4 字节引用、按 8 字节对齐。jvm 不允许访问的字段 (比如 java 9 以上
+ * {@code java.*} 中的类的私有字段) 不再向下走, 只计入引用本身。
+ * @param <K>
+ * @param <V>
+ */
+public class ObjectSizeWeigher<K, V> implements Weigher<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ObjectSizeWeigher.class);
+
+    private static final int DEFAULT_MAX_DEPTH = 3;
+
+    private static final int OBJECT_HEADER_SIZE = 12;
+
+    private static final int ARRAY_HEADER_SIZE = 16;
+
+    private static final int REFERENCE_SIZE = 4;
+
+    private static final int OBJECT_ALIGNMENT = 8;
+
+    private static final boolean jvmUtilAvailable = isJvmUtilAvailable();
+
+    private final int maxDepth;
+
+    private final boolean includeKeys;
+
+    private final ConcurrentMap<Class<?>, ClassLayout> layouts = new ConcurrentHashMap<Class<?>, ClassLayout>();
+
+
+    /**
+     * Create a new {@code ObjectSizeWeigher} that weighs keys and values up to three
+     * levels deep.
+     */
+    public ObjectSizeWeigher() {
+        this(DEFAULT_MAX_DEPTH, true);
+    }
+
+    /**
+     * Create a new {@code ObjectSizeWeigher} instance.
+     * @param maxDepth how many levels of references are followed below the key and the value
+     * @param includeKeys whether the key is weighed as well as the value
+     */
+    public ObjectSizeWeigher(int maxDepth, boolean includeKeys) {
+        Assert.isTrue(maxDepth >= 0, "Max depth must not be negative");
+        this.maxDepth = maxDepth;
+        this.includeKeys = includeKeys;
+    }
+
+
+    @Override
+    public int weigh(K key, V value) {
+        long size = sizeOf(value, this.maxDepth);
+        if (this.includeKeys) {
+            size += sizeOf(key, this.maxDepth);
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Estimate the size of an object and of what it references up to {@code depth} levels.
+     * @param obj the object (may be {@code null})
+     * @param depth the remaining number of levels to follow
+     * @return the estimated size in bytes
+     */
+    protected long sizeOf(Object obj, int depth) {
+        if (obj == null) {
+            return 0;
+        }
+        Class<?> clazz = obj.getClass();
+        if (clazz.isArray()) {
+            // the shallow size of an array only depends on its length, no need to cache it
+            long size = shallowSizeOfArray(obj);
+            if (depth > 0 && !clazz.getComponentType().isPrimitive()) {
+                int length = Array.getLength(obj);
+                for (int i = 0; i < length; i++) {
+                    size += sizeOf(Array.get(obj, i), depth - 1);
+                }
+            }
+            return size;
+        }
+        ClassLayout layout = getLayout(clazz);
+        long size = layout.shallowSize;
+        if (depth > 0) {
+            for (FieldAccessor field : layout.referenceFields) {
+                size += sizeOf(field.get(obj), depth - 1);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of classes whose layout is cached
+     */
+    int getCachedClassCount() {
+        return this.layouts.size();
+    }
+
+    private ClassLayout getLayout(Class<?> clazz) {
+        ClassLayout layout = this.layouts.get(clazz);
+        if (layout == null) {
+            layout = new ClassLayout(clazz);
+            ClassLayout existing = this.layouts.putIfAbsent(clazz, layout);
+            if (existing != null) {
+                layout = existing;
+            }
+        }
+        return layout;
+    }
+
+    private static boolean isJvmUtilAvailable() {
+        try {
+            JvmUtil.shallowSizeOf(new Object());
+            return true;
+        }
+        catch (Throwable ex) {
+            // JvmUtil refuses to initialize on jvms it does not know
+            logger.debug("JvmUtil not available, sizes are estimated from the field types", ex);
+            return false;
+        }
+    }
+
+    private static long shallowSizeOfArray(Object array) {
+        if (jvmUtilAvailable) {
+            return JvmUtil.shallowSizeOf(array);
+        }
+        return align(ARRAY_HEADER_SIZE + (long) Array.getLength(array) * sizeOfType(array.getClass().getComponentType()));
+    }
+
+    private static long shallowSizeOfInstance(Class<?> clazz) {
+        if (jvmUtilAvailable) {
+            // JvmUtil keeps its own class cache in a plain HashMap
+            synchronized (JvmUtil.class) {
+                return JvmUtil.sizeOf(clazz);
+            }
+        }
+        long size = OBJECT_HEADER_SIZE;
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    size += sizeOfType(field.getType());
+                }
+            }
+        }
+        return align(size);
+    }
+
+    private static int sizeOfType(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return REFERENCE_SIZE;
+    }
+
+    private static long align(long size) {
+        return (size + OBJECT_ALIGNMENT - 1) & -OBJECT_ALIGNMENT;
+    }
+
+
+    /**
+     * Cached size data of a class: its shallow instance size and the instance fields
+     * that hold references.
+     */
+    private static final class ClassLayout {
+
+        private final long shallowSize;
+
+        private final FieldAccessor[] referenceFields;
+
+        ClassLayout(Class<?> clazz) {
+            this.shallowSize = shallowSizeOfInstance(clazz);
+            List<FieldAccessor> fields = new ArrayList<FieldAccessor>();
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    // fields the jvm refuses to open, like the ones of java.lang on java 9+, only count as references
+                    if (!Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive()
+                            && ReflectionUtil.trySetAccessible(field)) {
+                        fields.add(ReflectionUtil.accessor(field));
+                    }
+                }
+            }
+            this.referenceFields = fields.toArray(new FieldAccessor[fields.size()]);
+        }
+    }
+}
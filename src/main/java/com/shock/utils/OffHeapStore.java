@@ -0,0 +1,454 @@
+package com.shock.utils;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 堆外的值存储, 作为 {@link ConcurrentLRUMap} 的第二级
+ *
+ * 内存按页 (最大 64KB 的直接 {@link ByteBuffer}) 向操作系统申请, 页的大小和总容量无关。每页在使用中时属于一个
+ * 大小级别, 被切成等长的块, 块的长度从 64 字节开始按 2 的幂增长, 最大为一页。值按编码后的长度放进最小的能装下
+ * 它的块中; 页上的块全部释放后, 页回到所有级别共用的空闲页池, 可以被任何级别重新使用。
+ *
+ * 总容量用完之后, 级别先按 lru 淘汰自己最久未使用的条目来腾出块; 自己没有条目时, 从占用页最多的级别中
+ * 清空一页。比一页还大的值不会被存储, 由调用方决定如何处理。
+ *
+ * key 仍然放在堆上的索引中, 可以不加锁判断 key 是否存在。其他操作非线程安全, 调用方需要自己加锁。
+ * @param <K>
+ */
+final class OffHeapStore<K> {
+
+    static final int MIN_CHUNK_SIZE = 64;
+
+    static final int MAX_PAGE_SIZE = 1 << 16;
+
+    private final long capacity;
+
+    private final int pageSize;
+
+    private final SizeClass<K>[] sizeClasses;
+
+    private final ConcurrentMap<Object, Slot<K>> index = new ConcurrentHashMap<Object, Slot<K>>();
+
+    /**
+     * Allocated pages no size class is using.
+     */
+    private final List<Page> freePages = new ArrayList<Page>();
+
+    private final StatsCounter statsCounter;
+
+    /**
+     * Bytes of direct memory allocated so far.
+     */
+    private long allocated;
+
+
+    /**
+     * @param capacity the maximum number of bytes of direct memory to allocate
+     * @param statsCounter records the entries evicted to make room
+     */
+    OffHeapStore(long capacity, StatsCounter statsCounter) {
+        Assert.isTrue(capacity >= MIN_CHUNK_SIZE, "Capacity must be at least " + MIN_CHUNK_SIZE + " bytes");
+        this.capacity = capacity;
+        this.pageSize = (int) Math.min(MAX_PAGE_SIZE, Long.highestOneBit(capacity));
+        int count = Integer.numberOfTrailingZeros(this.pageSize) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE) + 1;
+        this.sizeClasses = newSizeClasses(count);
+        for (int i = 0; i < count; i++) {
+            this.sizeClasses[i] = new SizeClass<K>(MIN_CHUNK_SIZE << i);
+        }
+        this.statsCounter = statsCounter;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> SizeClass<K>[] newSizeClasses(int count) {
+        return (SizeClass<K>[]) new SizeClass<?>[count];
+    }
+
+
+    /**
+     * @return the number of entries, can be called without holding the lock
+     */
+    int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Can be called without holding the lock.
+     */
+    boolean containsKey(Object key) {
+        return this.index.containsKey(key);
+    }
+
+    /**
+     * @return the bytes of direct memory allocated so far
+     */
+    long getAllocated() {
+        return this.allocated;
+    }
+
+    /**
+     * @return the size of the largest value that can be stored
+     */
+    int getMaxValueSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * Store the bytes of a value, replacing the ones stored for the key, evicting the
+     * least recently stored entries if there is no room.
+     * @param key the key
+     * @param bytes the encoded value
+     * @param weight the weight of the entry, only used for the statistics
+     * @return whether the bytes were stored, {@code false} if they are larger than
+     * {@link #getMaxValueSize()}
+     */
+    boolean put(K key, byte[] bytes, int weight) {
+        remove(key);
+        if (bytes.length > this.pageSize) {
+            return false;
+        }
+        Slot<K> slot = allocate(this.sizeClasses[sizeClassIndex(bytes.length)], key, bytes.length, weight);
+        ByteBuffer buffer = slot.page.buffer;
+        // through Buffer, ByteBuffer.position(int) only exists since java 9
+        ((Buffer) buffer).position(slot.offset);
+        buffer.put(bytes);
+        slot.sizeClass.linkLast(slot);
+        this.index.put(key, slot);
+        return true;
+    }
+
+    /**
+     * @return the bytes stored for the key, {@code null} if there are none
+     */
+    byte[] get(Object key) {
+        Slot<K> slot = this.index.get(key);
+        return (slot != null ? read(slot) : null);
+    }
+
+    /**
+     * Remove the entry of the key and free its chunk.
+     * @return the bytes that were stored for the key, {@code null} if there were none
+     */
+    byte[] remove(Object key) {
+        Slot<K> slot = this.index.remove(key);
+        if (slot == null) {
+            return null;
+        }
+        byte[] bytes = read(slot);
+        slot.sizeClass.unlink(slot);
+        free(slot);
+        return bytes;
+    }
+
+    /**
+     * @return a copy of the keys
+     */
+    List<K> keys() {
+        List<K> keys = new ArrayList<K>(this.index.size());
+        for (Slot<K> slot : this.index.values()) {
+            keys.add(slot.key);
+        }
+        return keys;
+    }
+
+    /**
+     * Remove all entries and release the direct memory to the garbage collector.
+     */
+    void clear() {
+        this.index.clear();
+        for (SizeClass<K> sizeClass : this.sizeClasses) {
+            sizeClass.clear();
+        }
+        this.freePages.clear();
+        this.allocated = 0;
+    }
+
+    private Slot<K> allocate(SizeClass<K> sizeClass, K key, int length, int weight) {
+        while (true) {
+            Page page = sizeClass.partial;
+            if (page == null) {
+                page = takePage();
+                if (page != null) {
+                    sizeClass.addPage(page);
+                }
+            }
+            if (page != null) {
+                return new Slot<K>(key, sizeClass, page, sizeClass.take(page), length, weight);
+            }
+            Slot<K> victim = sizeClass.head;
+            if (victim != null) {
+                // reuse the chunk of the victim directly
+                evict(victim);
+                return new Slot<K>(key, sizeClass, victim.page, victim.offset, length, weight);
+            }
+            // every page is taken by other size classes, empty one of the largest
+            SizeClass<K> largest = null;
+            for (SizeClass<K> candidate : this.sizeClasses) {
+                if (candidate.head != null && (largest == null || candidate.pageCount > largest.pageCount)) {
+                    largest = candidate;
+                }
+            }
+            // cannot be null, the capacity holds at least one page
+            largest.emptyPage(largest.head.page, this);
+        }
+    }
+
+    /**
+     * @return a free or a new page, {@code null} if the capacity is taken
+     */
+    private Page takePage() {
+        if (!this.freePages.isEmpty()) {
+            return this.freePages.remove(this.freePages.size() - 1);
+        }
+        if (this.allocated + this.pageSize <= this.capacity) {
+            this.allocated += this.pageSize;
+            return new Page(ByteBuffer.allocateDirect(this.pageSize));
+        }
+        return null;
+    }
+
+    private void evict(Slot<K> slot) {
+        this.index.remove(slot.key);
+        slot.sizeClass.unlink(slot);
+        this.statsCounter.recordEviction(slot.weight);
+    }
+
+    private void free(Slot<K> slot) {
+        if (slot.sizeClass.release(slot.page, slot.offset)) {
+            this.freePages.add(slot.page);
+        }
+    }
+
+    private static byte[] read(Slot<?> slot) {
+        byte[] bytes = new byte[slot.length];
+        ByteBuffer buffer = slot.page.buffer;
+        // through Buffer, ByteBuffer.position(int) only exists since java 9
+        ((Buffer) buffer).position(slot.offset);
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static int sizeClassIndex(int length) {
+        if (length <= MIN_CHUNK_SIZE) {
+            return 0;
+        }
+        return (32 - Integer.numberOfLeadingZeros(length - 1)) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    }
+
+
+    /**
+     * A page of direct memory and, while a size class uses it, its chunks.
+     */
+    private static final class Page {
+
+        private final ByteBuffer buffer;
+
+        /**
+         * The chunks in use.
+         */
+        private int used;
+
+        /**
+         * Where the chunks that were never used start.
+         */
+        private int top;
+
+        private int[] freeOffsets = new int[16];
+
+        private int freeCount;
+
+        /**
+         * The neighbours in the list of pages with free chunks of the size class.
+         */
+        private Page prev;
+
+        private Page next;
+
+        Page(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+
+    /**
+     * The chunks of one size, the pages of them with free chunks and the entries stored
+     * in them from least to most recently stored.
+     */
+    private static final class SizeClass<K> {
+
+        private final int chunkSize;
+
+        private Page partial;
+
+        private int pageCount;
+
+        private Slot<K> head;
+
+        private Slot<K> tail;
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        void addPage(Page page) {
+            page.used = 0;
+            page.top = 0;
+            page.freeCount = 0;
+            linkPartial(page);
+            this.pageCount++;
+        }
+
+        /**
+         * @return the offset of a free chunk of a page with free chunks
+         */
+        int take(Page page) {
+            int offset;
+            if (page.freeCount > 0) {
+                offset = page.freeOffsets[--page.freeCount];
+            }
+            else {
+                offset = page.top;
+                page.top += this.chunkSize;
+            }
+            if (++page.used == page.buffer.capacity() / this.chunkSize) {
+                unlinkPartial(page);
+            }
+            return offset;
+        }
+
+        /**
+         * @return whether the page is empty now and no longer belongs to this size class
+         */
+        boolean release(Page page, int offset) {
+            boolean wasFull = (page.used == page.buffer.capacity() / this.chunkSize);
+            if (--page.used == 0) {
+                if (!wasFull) {
+                    unlinkPartial(page);
+                }
+                this.pageCount--;
+                return true;
+            }
+            if (page.freeCount == page.freeOffsets.length) {
+                page.freeOffsets = Arrays.copyOf(page.freeOffsets, page.freeCount << 1);
+            }
+            page.freeOffsets[page.freeCount++] = offset;
+            if (wasFull) {
+                linkPartial(page);
+            }
+            return false;
+        }
+
+        /**
+         * Evict the entries stored in a page, oldest first, until it goes back to the store.
+         */
+        void emptyPage(Page page, OffHeapStore<K> store) {
+            Slot<K> slot = this.head;
+            while (slot != null) {
+                Slot<K> next = slot.next;
+                if (slot.page == page) {
+                    store.evict(slot);
+                    store.free(slot);
+                    if (page.used == 0) {
+                        return;
+                    }
+                }
+                slot = next;
+            }
+        }
+
+        private void linkPartial(Page page) {
+            page.prev = null;
+            page.next = this.partial;
+            if (this.partial != null) {
+                this.partial.prev = page;
+            }
+            this.partial = page;
+        }
+
+        private void unlinkPartial(Page page) {
+            if (page.prev == null) {
+                this.partial = page.next;
+            }
+            else {
+                page.prev.next = page.next;
+            }
+            if (page.next != null) {
+                page.next.prev = page.prev;
+            }
+            page.prev = null;
+            page.next = null;
+        }
+
+        void linkLast(Slot<K> slot) {
+            slot.prev = this.tail;
+            if (this.tail == null) {
+                this.head = slot;
+            }
+            else {
+                this.tail.next = slot;
+            }
+            this.tail = slot;
+        }
+
+        void unlink(Slot<K> slot) {
+            if (slot.prev == null) {
+                this.head = slot.next;
+            }
+            else {
+                slot.prev.next = slot.next;
+            }
+            if (slot.next == null) {
+                this.tail = slot.prev;
+            }
+            else {
+                slot.next.prev = slot.prev;
+            }
+            slot.prev = null;
+            slot.next = null;
+        }
+
+        void clear() {
+            this.partial = null;
+            this.pageCount = 0;
+            this.head = null;
+            this.tail = null;
+        }
+    }
+
+
+    /**
+     * Where the bytes of one entry are stored.
+     */
+    private static final class Slot<K> {
+
+        private final K key;
+
+        private final SizeClass<K> sizeClass;
+
+        private final Page page;
+
+        private final int offset;
+
+        private final int length;
+
+        private final int weight;
+
+        private Slot<K> prev;
+
+        private Slot<K> next;
+
+        Slot(K key, SizeClass<K> sizeClass, Page page, int offset, int length, int weight) {
+            this.key = key;
+            this.sizeClass = sizeClass;
+            this.page = page;
+            this.offset = offset;
+            this.length = length;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.shock.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有损的条带化环形缓冲区, 用于记录缓存命中
+ *
+ * 读线程只做一次 cas 就把元素放进自己线程对应的条带, 缓冲区满或者 cas 失败时直接丢弃,
+ * 调用方不会被阻塞。持有锁的线程通过 {@link #drainTo} 批量回放这些记录。
+ * @param <E>
+ */
+final class ReadBuffer<E> {
+
+    private static final int BUFFER_SIZE = 16;
+
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    /**
+     * Number of pending elements in a stripe that makes {@link #offer} ask for a drain.
+     */
+    private static final int DRAIN_THRESHOLD = BUFFER_SIZE / 2;
+
+    private static final int MAXIMUM_STRIPES = 4;
+
+    private final Stripe<E>[] stripes;
+
+    ReadBuffer() {
+        int size = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (size < processors && size < MAXIMUM_STRIPES) {
+            size <<= 1;
+        }
+        this.stripes = newStripes(size);
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe<E>();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> Stripe<E>[] newStripes(int size) {
+        return (Stripe<E>[]) new Stripe<?>[size];
+    }
+
+    /**
+     * Record an element. The element is silently dropped when the stripe is full
+     * or another thread is writing to it at the same time.
+     * @param e the element to record
+     * @return {@code true} if the buffer should be drained
+     */
+    boolean offer(E e) {
+        Stripe<E> stripe = this.stripes[probe() & (this.stripes.length - 1)];
+        long tail = stripe.writeCounter.get();
+        long size = tail - stripe.readCounter;
+        if (size >= BUFFER_SIZE) {
+            return true;
+        }
+        if (stripe.writeCounter.compareAndSet(tail, tail + 1)) {
+            stripe.slots.lazySet((int) (tail & BUFFER_MASK), e);
+            return (size + 1 >= DRAIN_THRESHOLD);
+        }
+        return false;
+    }
+
+    /**
+     * Replay all published elements. Must only be called by one thread at a time,
+     * usually while holding the owner's lock.
+     * @param consumer receives every drained element
+     */
+    void drainTo(CallBackNoReturn<E> consumer) {
+        for (Stripe<E> stripe : this.stripes) {
+            long head = stripe.readCounter;
+            long tail = stripe.writeCounter.get();
+            while (head != tail) {
+                int index = (int) (head & BUFFER_MASK);
+                E e = stripe.slots.get(index);
+                if (e == null) {
+                    // claimed but not yet published, pick it up on the next drain
+                    break;
+                }
+                stripe.slots.lazySet(index, null);
+                consumer.execute(e);
+                head++;
+            }
+            stripe.readCounter = head;
+        }
+    }
+
+    private static int probe() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+
+    private static final class Stripe<E> {
+
+        private final AtomicReferenceArray<E> slots = new AtomicReferenceArray<E>(BUFFER_SIZE);
+
+        private final AtomicLong writeCounter = new AtomicLong();
+
+        private volatile long readCounter;
+    }
+}
@@ -3,6 +3,7 @@ package com.shock.utils;
 
 import com.shock.utils.exception.ConstructionException;
 import com.shock.utils.opensource.ConcurrentReferenceHashMap;
+import com.shock.utils.opensource.ReferenceCleaner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,10 +16,32 @@ public class ReflectionUtil {
 	private static final Logger logger = LoggerFactory.getLogger(ReflectionUtil.class);
 
 	/**
-	 * cache declaredMethods use softrefrence
+	 * cache declaredMethods use softrefrence, mostly read so collected entries are purged in the background
 	 */
 	private static final Map<Class<?>, Method[]> declaredMethodsCache =
-			new ConcurrentReferenceHashMap<Class<?>, Method[]>(256);
+			ReferenceCleaner.getShared().register(new ConcurrentReferenceHashMap<Class<?>, Method[]>(
+					256, 0.75f, 16, ConcurrentReferenceHashMap.ReferenceType.SOFT, true));
+
+	/**
+	 * cache invokers per method, softly referenced like the declared methods
+	 */
+	private static final ConcurrentReferenceHashMap<Method, MethodInvoker> invokerCache =
+			ReferenceCleaner.getShared().register(new ConcurrentReferenceHashMap<Method, MethodInvoker>(
+					256, 0.75f, 16, ConcurrentReferenceHashMap.ReferenceType.SOFT, false));
+
+	/**
+	 * cache the model of each class, softly referenced like the declared methods
+	 */
+	private static final Map<Class<?>, ClassModel> classModelCache =
+			ReferenceCleaner.getShared().register(new ConcurrentReferenceHashMap<Class<?>, ClassModel>(
+					256, 0.75f, 16, ConcurrentReferenceHashMap.ReferenceType.SOFT, true));
+
+	/**
+	 * cache accessors per field, softly referenced like the invokers
+	 */
+	private static final ConcurrentReferenceHashMap<Field, FieldAccessor> accessorCache =
+			ReferenceCleaner.getShared().register(new ConcurrentReferenceHashMap<Field, FieldAccessor>(
+					256, 0.75f, 16, ConcurrentReferenceHashMap.ReferenceType.SOFT, false));
 
 
 	public static ClassLoader getDefaultClassLoader() {
@@ -68,98 +91,93 @@ public class ReflectionUtil {
 
 	public static void makeAccessible(Constructor<?> ctor) {
 		if ((!Modifier.isPublic(ctor.getModifiers()) ||
-				!Modifier.isPublic(ctor.getDeclaringClass().getModifiers())) && !ctor.isAccessible()) {
+				!Modifier.isPublic(ctor.getDeclaringClass().getModifiers())) && !isAccessible(ctor)) {
 			ctor.setAccessible(true);
 		}
 	}
 
 
+	public static void makeAccessible(Method method) {
+		if ((!Modifier.isPublic(method.getModifiers()) ||
+				!Modifier.isPublic(method.getDeclaringClass().getModifiers())) && !isAccessible(method)) {
+			method.setAccessible(true);
+		}
+	}
+
+
+	public static void makeAccessible(Field field) {
+		if ((!Modifier.isPublic(field.getModifiers()) ||
+				!Modifier.isPublic(field.getDeclaringClass().getModifiers()) ||
+				Modifier.isFinal(field.getModifiers())) && !isAccessible(field)) {
+			field.setAccessible(true);
+		}
+	}
+
+	/**
+	 * Make the member accessible if it is not yet, like {@code AccessibleObject.trySetAccessible}
+	 * on java 9+: a jvm refusing it, for a member of a module that is not opened, is not an error.
+	 * @return whether the member is now accessible
+	 */
+	public static boolean trySetAccessible(AccessibleObject member) {
+		if (isAccessible(member)) {
+			return true;
+		}
+		try {
+			member.setAccessible(true);
+			return true;
+		}
+		catch (RuntimeException ex) {
+			// InaccessibleObjectException on java 9+, SecurityException under a security manager
+			return false;
+		}
+	}
+
+	// deprecated since java 9 for canAccess(Object), which does not exist on java 8
+	@SuppressWarnings("deprecation")
+	private static boolean isAccessible(AccessibleObject member) {
+		return member.isAccessible();
+	}
+
+
+	/**
+	 * Find the first field with this name from the class up to, not including, {@link Object}.
+	 * Misses are answered from the cached model of the class, without walking the hierarchy again.
+	 * @return the field, made accessible unless the jvm refuses, or {@code null}
+	 */
 	public static Field getField(Class<?> cls, String fieldName) {
-		while (cls != null && cls.equals(Object.class) == false) {
-			Field field = null;
-			try {
-				field = cls.getDeclaredField(fieldName);
-			} catch (SecurityException e) {
-				logger.error("Unable to get field " + fieldName
-						+ " from class " + cls.getName(), e);
-			} catch (NoSuchFieldException e) {
-				logger.debug("Unable to get field " + fieldName
-						+ " from class " + cls.getName() + ". "
-						+ "If there is any super class for class "
-						+ cls.getName()
-						+ ", it will be tried for getting field ...");
-			}
-			if (field != null) {
-				field.setAccessible(true);
-				return field;
-			}
-			cls = cls.getSuperclass();
+		if (cls == null) {
+			return null;
 		}
-		return null;
+		return classModel(cls).getField(fieldName);
 	}
 
-	@SuppressWarnings("unchecked")
 	public static List<Field> getAllFields(Class<?> cls) {
-		List<Field> fields = new ArrayList<Field>();
-		createFields(cls, fields);
-		return fields;
+		if (cls == null) {
+			return new ArrayList<Field>();
+		}
+		return new ArrayList<Field>(classModel(cls).getFields());
 	}
 
-	@SuppressWarnings("unchecked")
+	@SafeVarargs
 	public static List<Field> getAllFields(Class<?> cls,
 										   Class<? extends Annotation>... annotationFilters) {
-		List<Field> fields = new ArrayList<Field>();
-		createFields(cls, fields, annotationFilters);
-		return fields;
-	}
-
-	@SuppressWarnings("unchecked")
-	private static void createFields(Class<?> cls, List<Field> fields,
-									 Class<? extends Annotation>... annotationFilters) {
-		if (cls == null || cls.equals(Object.class)) {
-			return;
-		}
-
-		Class<?> superCls = cls.getSuperclass();
-		createFields(superCls, fields, annotationFilters);
-
-		for (Field f : cls.getDeclaredFields()) {
-			f.setAccessible(true);
-			if (annotationFilters == null || annotationFilters.length == 0) {
-				fields.add(f);
-			} else {
-				for (Class<? extends Annotation> annotationFilter : annotationFilters) {
-					if (f.getAnnotation(annotationFilter) != null) {
-						fields.add(f);
-						break;
-					}
-				}
-			}
+		if (cls == null) {
+			return new ArrayList<Field>();
 		}
+		return new ArrayList<Field>(classModel(cls).getFields(annotationFilters));
 	}
 
+
+	/**
+	 * Find the first method with this name from the class up to, not including, {@link Object}.
+	 * Misses are answered from the cached model of the class, without walking the hierarchy again.
+	 * @return the method, made accessible unless the jvm refuses, or {@code null}
+	 */
 	public static Method getMethod(Class<?> cls, String methodName) {
-		while (cls != null && cls.equals(Object.class) == false) {
-			Method method = null;
-			for (Method m : cls.getDeclaredMethods()) {
-				if (m.getName().equals(methodName)) {
-					method = m;
-					break;
-				}
-			}
-			if (method == null) {
-				logger.warn("Unable to get method " + methodName
-						+ " from class " + cls.getName() + ". "
-						+ "If there is any super class for class "
-						+ cls.getName()
-						+ ", it will be tried for getting method ...");
-			} else {
-				method.setAccessible(true);
-				return method;
-			}
-			cls = cls.getSuperclass();
+		if (cls == null) {
+			return null;
 		}
-		return null;
+		return classModel(cls).getMethod(methodName);
 	}
 
 
@@ -185,44 +203,20 @@ public class ReflectionUtil {
 	}
 
 
-	@SuppressWarnings("unchecked")
 	public static List<Method> getAllMethods(Class<?> cls) {
-		List<Method> methods = new ArrayList<Method>();
-		createMethods(cls, methods);
-		return methods;
+		if (cls == null) {
+			return new ArrayList<Method>();
+		}
+		return new ArrayList<Method>(classModel(cls).getMethods());
 	}
 
-	@SuppressWarnings("unchecked")
+	@SafeVarargs
 	public static List<Method> getAllMethods(Class<?> cls,
 											 Class<? extends Annotation>... annotationFilters) {
-		List<Method> methods = new ArrayList<Method>();
-		createMethods(cls, methods, annotationFilters);
-		return methods;
-	}
-
-	@SuppressWarnings("unchecked")
-	private static void createMethods(Class<?> cls, List<Method> methods,
-									  Class<? extends Annotation>... annotationFilters) {
-		if (cls == null || cls.equals(Object.class)) {
-			return;
-		}
-
-		Class<?> superCls = cls.getSuperclass();
-		createMethods(superCls, methods, annotationFilters);
-
-		for (Method m : cls.getDeclaredMethods()) {
-			m.setAccessible(true);
-			if (annotationFilters == null || annotationFilters.length == 0) {
-				methods.add(m);
-			} else {
-				for (Class<? extends Annotation> annotationFilter : annotationFilters) {
-					if (m.getAnnotation(annotationFilter) != null) {
-						methods.add(m);
-						break;
-					}
-				}
-			}
+		if (cls == null) {
+			return new ArrayList<Method>();
 		}
+		return new ArrayList<Method>(classModel(cls).getMethods(annotationFilters));
 	}
 
 	public static boolean isPrimitiveType(String clsName) {
@@ -388,6 +382,44 @@ public class ReflectionUtil {
 		throw new IllegalStateException("Should never get here");
 	}
 
+	/**
+	 * Return a cached invoker for the method, calling it without the per-call cost of
+	 * {@link Method#invoke}.
+	 * @param method the method to call, made accessible if needed
+	 * @return the invoker
+	 */
+	public static MethodInvoker invoker(Method method) {
+		Assert.notNull(method, "Method must not be null");
+		MethodInvoker invoker = invokerCache.get(method);
+		if (invoker == null) {
+			invoker = MethodInvoker.create(method);
+			MethodInvoker existing = invokerCache.putIfAbsent(method, invoker);
+			if (existing != null) {
+				invoker = existing;
+			}
+		}
+		return invoker;
+	}
+
+	/**
+	 * Return a cached accessor for the field, reading and writing it without the per-call
+	 * cost of {@link Field#get} and {@link Field#set}.
+	 * @param field the field to access, made accessible if needed
+	 * @return the accessor
+	 */
+	public static FieldAccessor accessor(Field field) {
+		Assert.notNull(field, "Field must not be null");
+		FieldAccessor accessor = accessorCache.get(field);
+		if (accessor == null) {
+			accessor = FieldAccessor.create(field);
+			FieldAccessor existing = accessorCache.putIfAbsent(field, accessor);
+			if (existing != null) {
+				accessor = existing;
+			}
+		}
+		return accessor;
+	}
+
 	public static void handleReflectionException(Exception ex) {
 		if (ex instanceof NoSuchMethodException) {
 			throw new IllegalStateException("Method not found: " + ex.getMessage());
@@ -425,4 +457,20 @@ public class ReflectionUtil {
 		}
 		return result;
 	}
+
+	/**
+	 * Return the cached model of the class, its fields and methods flattened and indexed by
+	 * name and annotation.
+	 * @param clazz the class to describe
+	 * @return the model
+	 */
+	public static ClassModel classModel(Class<?> clazz) {
+		Assert.notNull(clazz, "Class must not be null");
+		ClassModel result = classModelCache.get(clazz);
+		if (result == null) {
+			result = new ClassModel(clazz);
+			classModelCache.put(clazz, result);
+		}
+		return result;
+	}
 }
@@ -0,0 +1,51 @@
+package com.shock.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * 基于 jdk 序列化的 {@link Codec}, 值必须实现 {@link java.io.Serializable}
+ *
+ * 通用但是慢而且占空间, 对性能敏感的场景请实现专门的 {@link Codec}。
+ * @param <T>
+ */
+public class SerializableCodec<T> implements Codec<T> {
+
+    @Override
+    public byte[] encode(T value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.close();
+        }
+        catch (IOException ex) {
+            throw new IllegalArgumentException("Could not serialize value of type [" +
+                    value.getClass().getName() + "]", ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T decode(byte[] bytes) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return (T) in.readObject();
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ex) {
+            throw new IllegalArgumentException("Could not deserialize value", ex);
+        }
+        catch (ClassNotFoundException ex) {
+            throw new IllegalArgumentException("Could not deserialize value", ex);
+        }
+    }
+}
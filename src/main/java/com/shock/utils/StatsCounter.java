@@ -0,0 +1,73 @@
+package com.shock.utils;
+
+/**
+ * {@link ConcurrentLRUMap} 的统计记录器
+ *
+ * 没有开启统计时使用 {@link #DISABLED}, 所有方法都是空实现, 调用点会被 jit 内联掉。
+ */
+public interface StatsCounter {
+
+    /**
+     * A counter that records nothing.
+     */
+    public static final StatsCounter DISABLED = new StatsCounter() {
+
+        @Override
+        public void recordHits(int count) {
+        }
+
+        @Override
+        public void recordMisses(int count) {
+        }
+
+        @Override
+        public void recordPuts(int count) {
+        }
+
+        @Override
+        public void recordEviction(int weight) {
+        }
+
+        @Override
+        public void recordLoadSuccess(long loadTime) {
+        }
+
+        @Override
+        public void recordLoadFailure(long loadTime) {
+        }
+
+        @Override
+        public CacheStats snapshot() {
+            return CacheStats.EMPTY;
+        }
+    };
+
+    public void recordHits(int count);
+
+    public void recordMisses(int count);
+
+    /**
+     * @param count the number of values written, new or replacing an existing one
+     */
+    public void recordPuts(int count);
+
+    /**
+     * @param weight the weight of the entry that was evicted or expired
+     */
+    public void recordEviction(int weight);
+
+    /**
+     * @param loadTime how long the load took, in nanoseconds
+     */
+    public void recordLoadSuccess(long loadTime);
+
+    /**
+     * @param loadTime how long the load took before it failed, in nanoseconds
+     */
+    public void recordLoadFailure(long loadTime);
+
+    /**
+     * @return the values recorded so far
+     */
+    public CacheStats snapshot();
+}
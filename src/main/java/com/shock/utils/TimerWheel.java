@@ -0,0 +1,199 @@
+package com.shock.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分层时间轮, 用于过期条目的调度
+ *
+ * 每一层的桶覆盖 2 的幂纳秒(约 1 秒、1 分钟、1 小时、1 天、4 天), 条目按距离过期的时间放进对应层的桶里,
+ * 时间轮推进时高层桶中的条目会逐级下落到低层, 到期时才交给回调处理。调度、取消和过期都是摊还 O(1),
+ * 不需要为每个条目创建定时任务。
+ *
+ * 非线程安全, 调用方需要自己加锁。
+ */
+final class TimerWheel {
+
+    private static final int[] BUCKETS = {64, 64, 32, 4, 1};
+
+    private static final long[] SPANS = {
+            ceilingPowerOfTwo(TimeUnit.SECONDS.toNanos(1)),
+            ceilingPowerOfTwo(TimeUnit.MINUTES.toNanos(1)),
+            ceilingPowerOfTwo(TimeUnit.HOURS.toNanos(1)),
+            ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),
+            BUCKETS[3] * ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),
+            BUCKETS[3] * ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1))};
+
+    private static final long[] SHIFT = {
+            Long.numberOfTrailingZeros(SPANS[0]),
+            Long.numberOfTrailingZeros(SPANS[1]),
+            Long.numberOfTrailingZeros(SPANS[2]),
+            Long.numberOfTrailingZeros(SPANS[3]),
+            Long.numberOfTrailingZeros(SPANS[4])};
+
+    private final Timer[][] wheel;
+
+    /**
+     * The time the wheel was last advanced to.
+     */
+    private long nanos;
+
+    /**
+     * @param nanos the current time
+     */
+    TimerWheel(long nanos) {
+        this.nanos = nanos;
+        this.wheel = new Timer[BUCKETS.length][];
+        for (int i = 0; i < BUCKETS.length; i++) {
+            this.wheel[i] = new Timer[BUCKETS[i]];
+            for (int j = 0; j < BUCKETS[i]; j++) {
+                this.wheel[i][j] = new Sentinel();
+            }
+        }
+    }
+
+    /**
+     * Advance the wheel to the current time, handing every timer that expired to the
+     * callback. Timers found in a coarser bucket that are not due yet move to a finer one.
+     * @param currentTimeNanos the current time
+     * @param expirer receives the expired timers, which are no longer scheduled
+     */
+    void advance(long currentTimeNanos, CallBackNoReturn<Timer> expirer) {
+        long previousTimeNanos = this.nanos;
+        this.nanos = currentTimeNanos;
+        for (int i = 0; i < SHIFT.length; i++) {
+            long previousTicks = (previousTimeNanos >>> SHIFT[i]);
+            long currentTicks = (currentTimeNanos >>> SHIFT[i]);
+            if ((currentTicks - previousTicks) <= 0L) {
+                break;
+            }
+            expire(i, previousTicks, currentTicks - previousTicks, expirer);
+        }
+    }
+
+    private void expire(int index, long previousTicks, long delta, CallBackNoReturn<Timer> expirer) {
+        Timer[] timerWheel = this.wheel[index];
+        int mask = timerWheel.length - 1;
+        int steps = (int) Math.min(1 + delta, timerWheel.length);
+        int start = (int) (previousTicks & mask);
+        int end = start + steps;
+        for (int i = start; i < end; i++) {
+            Timer sentinel = timerWheel[i & mask];
+            Timer timer = sentinel.nextInTimer;
+            sentinel.previousInTimer = sentinel;
+            sentinel.nextInTimer = sentinel;
+            while (timer != sentinel) {
+                Timer next = timer.nextInTimer;
+                timer.previousInTimer = null;
+                timer.nextInTimer = null;
+                if ((timer.expirationTime - this.nanos) > 0) {
+                    schedule(timer);
+                }
+                else {
+                    expirer.execute(timer);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    /**
+     * Schedule the timer, or move it if it is already scheduled.
+     * @param timer the timer, with its expiration time set
+     */
+    void reschedule(Timer timer) {
+        if (timer.nextInTimer != null) {
+            unlink(timer);
+        }
+        schedule(timer);
+    }
+
+    /**
+     * Remove the timer from the wheel if it is scheduled.
+     * @param timer the timer
+     */
+    void deschedule(Timer timer) {
+        if (timer.nextInTimer != null) {
+            unlink(timer);
+        }
+    }
+
+    /**
+     * Remove all timers.
+     */
+    void clear() {
+        for (Timer[] timerWheel : this.wheel) {
+            for (Timer sentinel : timerWheel) {
+                Timer timer = sentinel.nextInTimer;
+                while (timer != sentinel) {
+                    Timer next = timer.nextInTimer;
+                    timer.previousInTimer = null;
+                    timer.nextInTimer = null;
+                    timer = next;
+                }
+                sentinel.previousInTimer = sentinel;
+                sentinel.nextInTimer = sentinel;
+            }
+        }
+    }
+
+    private void schedule(Timer timer) {
+        // already due: the current bucket is the next one to be expired
+        long time = Math.max(timer.expirationTime - this.nanos, 0L) + this.nanos;
+        Timer sentinel = findBucket(time);
+        Timer last = sentinel.previousInTimer;
+        timer.previousInTimer = last;
+        timer.nextInTimer = sentinel;
+        last.nextInTimer = timer;
+        sentinel.previousInTimer = timer;
+    }
+
+    private Timer findBucket(long time) {
+        long duration = time - this.nanos;
+        int length = this.wheel.length - 1;
+        for (int i = 0; i < length; i++) {
+            if (duration < SPANS[i + 1]) {
+                long ticks = (time >>> SHIFT[i]);
+                int index = (int) (ticks & (this.wheel[i].length - 1));
+                return this.wheel[i][index];
+            }
+        }
+        return this.wheel[length][0];
+    }
+
+    private static void unlink(Timer timer) {
+        timer.previousInTimer.nextInTimer = timer.nextInTimer;
+        timer.nextInTimer.previousInTimer = timer.previousInTimer;
+        timer.previousInTimer = null;
+        timer.nextInTimer = null;
+    }
+
+    private static long ceilingPowerOfTwo(long x) {
+        return 1L << -Long.numberOfLeadingZeros(x - 1);
+    }
+
+
+    /**
+     * Something that can be scheduled on a {@link TimerWheel}. The links are guarded by
+     * the owner of the wheel, the expiration time can be read without holding its lock.
+     */
+    abstract static class Timer {
+
+        volatile long expirationTime;
+
+        Timer previousInTimer;
+
+        Timer nextInTimer;
+    }
+
+
+    /**
+     * Head of the circular list of a bucket.
+     */
+    private static final class Sentinel extends Timer {
+
+        Sentinel() {
+            this.previousInTimer = this;
+            this.nextInTimer = this;
+        }
+    }
+}
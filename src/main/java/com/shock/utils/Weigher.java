@@ -0,0 +1,19 @@
+package com.shock.utils;
+
+/**
+ * 计算缓存条目的权重, 配合 {@link ConcurrentLRUMap.Builder#Builder(long, Weigher)} 按权重而不是
+ * 条目数限制容量
+ * @param <K>
+ * @param <V>
+ */
+public interface Weigher<K, V> {
+
+    /**
+     * Return the weight of an entry. The weight is computed once when the entry is
+     * added or its value replaced, and must not be negative.
+     * @param key the key
+     * @param value the value
+     * @return the weight of the entry
+     */
+    public int weigh(K key, V value);
+}
@@ -10,20 +10,35 @@ import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.EnumSet;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
  * 软引用和弱引用concurrencymap 来源于 spring
+ * 除了引用整个条目, 也可以只弱引用 key, 或者只弱引用/软引用 value, key 也可以按 identity 比较
  * @param <K>
  * @param <V>
  */
@@ -42,6 +57,11 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
 
     private static final int MAXIMUM_SEGMENT_SIZE = 1 << 30;
 
+    /**
+     * The number of buckets a writer migrates each time it helps with a resize.
+     */
+    private static final int TRANSFER_STRIDE = 64;
+
 
     /**
      * Array of segments indexed using the high order bits from the hash.
@@ -54,20 +74,43 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
     private final float loadFactor;
 
     /**
-     * The reference type: SOFT or WEAK.
+     * The reference type, see {@link ReferenceType}.
      */
     private final ReferenceType referenceType;
 
+    /**
+     * Whether keys are compared with {@code ==} and hashed with
+     * {@link System#identityHashCode} instead of {@code equals} and {@code hashCode}.
+     */
+    private final boolean identityKeys;
+
     /**
      * The shift value used to calculate the size of the segments array and an index from the hash.
      */
     private final int shift;
 
+    /**
+     * The number of references in all segments, updated with the {@code count} of each
+     * segment so that the size can be read without visiting them.
+     */
+    private final LongAdder sizeCounter = new LongAdder();
+
     /**
      * Late binding entry set.
      */
     private Set<Map.Entry<K, V>> entrySet;
 
+    /**
+     * Whether segments count their lock acquisitions, see {@link #setRecordingStatistics}.
+     */
+    private volatile boolean recordingStatistics;
+
+    /**
+     * The segment {@link #drainReferenceQueues} starts with, so that a small budget
+     * does not always go to the first segments.
+     */
+    private int drainIndex;
+
 
     /**
      * Create a new {@code ConcurrentReferenceHashMap} instance.
@@ -134,9 +177,25 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
      * write to the map
      * @param referenceType the reference type used for entries (soft or weak)
      */
-    @SuppressWarnings("unchecked")
     public ConcurrentReferenceHashMap(int initialCapacity, float loadFactor, int concurrencyLevel,
                                       ReferenceType referenceType) {
+        this(initialCapacity, loadFactor, concurrencyLevel, referenceType, false);
+    }
+
+    /**
+     * Create a new {@code ConcurrentReferenceHashMap} instance.
+     * @param initialCapacity the initial capacity of the map
+     * @param loadFactor the load factor. When the average number of references per
+     * table exceeds this value, resize will be attempted.
+     * @param concurrencyLevel the expected number of threads that will concurrently
+     * write to the map
+     * @param referenceType the reference type used for entries, keys or values
+     * @param identityKeys whether keys are compared by identity, e.g. for keys such as
+     * {@link Class} that do not override {@code equals}
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentReferenceHashMap(int initialCapacity, float loadFactor, int concurrencyLevel,
+                                      ReferenceType referenceType, boolean identityKeys) {
 
         Assert.isTrue(initialCapacity >= 0, "Initial capacity must not be negative");
         Assert.isTrue(loadFactor > 0f, "Load factor must be positive");
@@ -146,6 +205,7 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
         this.shift = calculateShift(concurrencyLevel, MAXIMUM_CONCURRENCY_LEVEL);
         int size = 1 << this.shift;
         this.referenceType = referenceType;
+        this.identityKeys = identityKeys;
         int roundedUpSegmentCapacity = (int) ((initialCapacity + size - 1L) / size);
         this.segments = (Segment[]) Array.newInstance(Segment.class, size);
         for (int i = 0; i < this.segments.length; i++) {
@@ -158,6 +218,47 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
         return this.loadFactor;
     }
 
+    protected final ReferenceType getReferenceType() {
+        return this.referenceType;
+    }
+
+    protected final boolean isIdentityKeys() {
+        return this.identityKeys;
+    }
+
+    /**
+     * Start or stop counting lock acquisitions and contended acquisitions per segment.
+     * Off by default as it adds a {@code tryLock} to every write. Resizes, purges and
+     * chain lengths are always available.
+     */
+    public void setRecordingStatistics(boolean recordingStatistics) {
+        this.recordingStatistics = recordingStatistics;
+    }
+
+    public boolean isRecordingStatistics() {
+        return this.recordingStatistics;
+    }
+
+    /**
+     * @return a snapshot of each segment, in segment order
+     */
+    public List<SegmentStatistics> segmentStatistics() {
+        List<SegmentStatistics> statistics = new ArrayList<SegmentStatistics>(this.segments.length);
+        for (Segment segment : this.segments) {
+            statistics.add(segment.getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Suggest the constructor arguments for a map seeing the same load as this one,
+     * based on the statistics recorded so far.
+     * @see SizingAdvice
+     */
+    public SizingAdvice adviseSizing() {
+        return SizingAdvice.of(segmentStatistics(), this.loadFactor);
+    }
+
     protected final int getSegmentsSize() {
         return this.segments.length;
     }
@@ -183,7 +284,7 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
      * @return the resulting hash code
      */
     protected int getHash(Object o) {
-        int hash = o == null ? 0 : o.hashCode();
+        int hash = o == null ? 0 : (this.identityKeys ? System.identityHashCode(o) : o.hashCode());
         hash += (hash << 15) ^ 0xffffcd7d;
         hash ^= (hash >>> 10);
         hash += (hash << 3);
@@ -204,7 +305,7 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
     public boolean containsKey(Object key) {
         Reference<K, V> reference = getReference(key, Restructure.WHEN_NECESSARY);
         Entry<K, V> entry = (reference != null ? reference.get() : null);
-        return (entry != null && ObjectUtils.nullSafeEquals(entry.getKey(), key));
+        return (entry != null && keyEquals(entry.getKey(), key));
     }
 
     /**
@@ -252,8 +353,10 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
             @Override
             protected V execute(Reference<K, V> reference, Entry<K, V> entry) {
                 if (entry != null) {
+                    // read first, releasing a value reference clears the value
+                    V previousValue = entry.getValue();
                     reference.release();
-                    return entry.value;
+                    return previousValue;
                 }
                 return null;
             }
@@ -303,6 +406,242 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
         });
     }
 
+    /**
+     * Compute the value of an absent key while holding the lock of its segment, so the
+     * function is called at most once per key even when threads race for it. The
+     * function must not update other mappings of this map.
+     * @throws IllegalStateException if the function updates a mapping of the same segment
+     */
+    @Override
+    public V computeIfAbsent(final K key, final Function<? super K, ? extends V> mappingFunction) {
+        Assert.notNull(mappingFunction, "Mapping function must not be null");
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        return doTask(key, new Task<V>(TaskOption.RESTRUCTURE_BEFORE, TaskOption.RESIZE) {
+            @Override
+            protected V execute(Reference<K, V> reference, Entry<K, V> entry, Entries entries) {
+                V value = (entry != null ? entry.getValue() : null);
+                if (value != null) {
+                    return value;
+                }
+                value = mappingFunction.apply(key);
+                if (value != null) {
+                    setOrAdd(entry, entries, value);
+                }
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Compute the new value of a present key while holding the lock of its segment. The
+     * function must not update other mappings of this map.
+     * @throws IllegalStateException if the function updates a mapping of the same segment
+     */
+    @Override
+    public V computeIfPresent(final K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Assert.notNull(remappingFunction, "Remapping function must not be null");
+        return doTask(key, new Task<V>(TaskOption.RESTRUCTURE_AFTER, TaskOption.SKIP_IF_EMPTY) {
+            @Override
+            protected V execute(Reference<K, V> reference, Entry<K, V> entry) {
+                V oldValue = (entry != null ? entry.getValue() : null);
+                if (oldValue == null) {
+                    return null;
+                }
+                V value = remappingFunction.apply(key, oldValue);
+                setOrRelease(reference, entry, value);
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Compute the new value of a key while holding the lock of its segment, a
+     * {@code null} result removes the mapping. The function must not update other
+     * mappings of this map.
+     * @throws IllegalStateException if the function updates a mapping of the same segment
+     */
+    @Override
+    public V compute(final K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Assert.notNull(remappingFunction, "Remapping function must not be null");
+        return doTask(key, new Task<V>(TaskOption.RESTRUCTURE_BEFORE, TaskOption.RESIZE) {
+            @Override
+            protected V execute(Reference<K, V> reference, Entry<K, V> entry, Entries entries) {
+                V oldValue = (entry != null ? entry.getValue() : null);
+                V value = remappingFunction.apply(key, oldValue);
+                if (entry != null) {
+                    setOrRelease(reference, entry, value);
+                }
+                else if (value != null) {
+                    entries.add(value);
+                }
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Merge the value into the present one while holding the lock of its segment, a
+     * {@code null} result removes the mapping. The function must not update other
+     * mappings of this map.
+     * @throws IllegalStateException if the function updates a mapping of the same segment
+     */
+    @Override
+    public V merge(K key, final V value, final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Assert.notNull(value, "Value must not be null");
+        Assert.notNull(remappingFunction, "Remapping function must not be null");
+        return doTask(key, new Task<V>(TaskOption.RESTRUCTURE_BEFORE, TaskOption.RESIZE) {
+            @Override
+            protected V execute(Reference<K, V> reference, Entry<K, V> entry, Entries entries) {
+                V oldValue = (entry != null ? entry.getValue() : null);
+                if (oldValue == null) {
+                    setOrAdd(entry, entries, value);
+                    return value;
+                }
+                V newValue = remappingFunction.apply(oldValue, value);
+                setOrRelease(reference, entry, newValue);
+                return newValue;
+            }
+        });
+    }
+
+    /**
+     * Walk the entries without locking, entries added or removed concurrently may or
+     * may not be seen.
+     */
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Assert.notNull(action, "Action must not be null");
+        Iterator<Map.Entry<K, V>> iterator = new EntryIterator();
+        while (iterator.hasNext()) {
+            Map.Entry<K, V> entry = iterator.next();
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Perform the action for each entry, in parallel on the common {@link ForkJoinPool}
+     * if the map holds at least {@code parallelismThreshold} entries. Like
+     * {@link #forEach(BiConsumer)} the walk is weakly consistent.
+     * @param parallelismThreshold the estimated number of entries needed to run in
+     * parallel, {@link Long#MAX_VALUE} to always run in the calling thread
+     * @param action the action, may be called concurrently
+     */
+    public void forEach(long parallelismThreshold, final BiConsumer<? super K, ? super V> action) {
+        Assert.notNull(action, "Action must not be null");
+        entryStream(parallelismThreshold).forEach(new Consumer<Map.Entry<K, V>>() {
+            @Override
+            public void accept(Map.Entry<K, V> entry) {
+                action.accept(entry.getKey(), entry.getValue());
+            }
+        });
+    }
+
+    /**
+     * Return the first non-null result of the function found for any entry, the other
+     * entries are not visited once a result has been found.
+     * @param parallelismThreshold the estimated number of entries needed to run in
+     * parallel, {@link Long#MAX_VALUE} to always run in the calling thread
+     * @param searchFunction returns the result or {@code null}, may be called concurrently
+     * @return a non-null result or {@code null} if there is none
+     */
+    public <U> U search(long parallelismThreshold, final BiFunction<? super K, ? super V, ? extends U> searchFunction) {
+        Assert.notNull(searchFunction, "Search function must not be null");
+        return entryStream(parallelismThreshold)
+                .map(new Function<Map.Entry<K, V>, U>() {
+                    @Override
+                    public U apply(Map.Entry<K, V> entry) {
+                        return searchFunction.apply(entry.getKey(), entry.getValue());
+                    }
+                })
+                .filter(ConcurrentReferenceHashMap.<U>nonNull())
+                .findAny()
+                .orElse(null);
+    }
+
+    /**
+     * Combine the results of the transformer for all entries with the reducer.
+     * @param parallelismThreshold the estimated number of entries needed to run in
+     * parallel, {@link Long#MAX_VALUE} to always run in the calling thread
+     * @param transformer returns the result of an entry or {@code null} to skip it, may
+     * be called concurrently
+     * @param reducer combines two results, must be associative
+     * @return the combined result or {@code null} if there is none
+     */
+    public <U> U reduce(long parallelismThreshold, final BiFunction<? super K, ? super V, ? extends U> transformer,
+            final BiFunction<? super U, ? super U, ? extends U> reducer) {
+        Assert.notNull(transformer, "Transformer must not be null");
+        Assert.notNull(reducer, "Reducer must not be null");
+        return entryStream(parallelismThreshold)
+                .map(new Function<Map.Entry<K, V>, U>() {
+                    @Override
+                    public U apply(Map.Entry<K, V> entry) {
+                        return transformer.apply(entry.getKey(), entry.getValue());
+                    }
+                })
+                .filter(ConcurrentReferenceHashMap.<U>nonNull())
+                .reduce(new BinaryOperator<U>() {
+                    @Override
+                    public U apply(U a, U b) {
+                        return reducer.apply(a, b);
+                    }
+                })
+                .orElse(null);
+    }
+
+    /**
+     * Drops the {@code null} results of the bulk operations, findAny and reduce reject them.
+     */
+    private static <U> Predicate<U> nonNull() {
+        return new Predicate<U>() {
+            @Override
+            public boolean test(U result) {
+                return (result != null);
+            }
+        };
+    }
+
+    private Stream<Map.Entry<K, V>> entryStream(long parallelismThreshold) {
+        return StreamSupport.stream(entrySpliterator(), mappingCount() >= parallelismThreshold);
+    }
+
+    private Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        return new EntrySpliterator(0, this.segments.length, mappingCount());
+    }
+
+    /**
+     * @return whether the key of an entry matches the given key
+     */
+    private boolean keyEquals(Object entryKey, Object key) {
+        return (entryKey == key || (!this.identityKeys && entryKey != null && entryKey.equals(key)));
+    }
+
+    /**
+     * Set the value of an entry holding {@code null}, or add a new one.
+     */
+    private void setOrAdd(Entry<K, V> entry, Entries entries, V value) {
+        if (entry != null) {
+            entry.setValue(value);
+        }
+        else {
+            entries.add(value);
+        }
+    }
+
+    /**
+     * Set the value of an entry, or remove it when the value is {@code null}.
+     */
+    private void setOrRelease(Reference<K, V> reference, Entry<K, V> entry, V value) {
+        if (value != null) {
+            entry.setValue(value);
+        }
+        else {
+            reference.release();
+        }
+    }
+
     @Override
     public void clear() {
         for (Segment segment : this.segments) {
@@ -318,18 +657,48 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
      */
     public void purgeUnreferencedEntries() {
         for (Segment segment : this.segments) {
+            segment.completeResize();
             segment.restructureIfNecessary(false);
         }
     }
 
+    /**
+     * Purge collected entries of the segments whose lock is free, without resizing or
+     * waiting for writers. Used by {@link ReferenceCleaner}.
+     * @param max the maximum number of references to drain
+     * @return the number of references drained
+     */
+    int drainReferenceQueues(int max) {
+        int drained = 0;
+        int start = this.drainIndex;
+        for (int i = 0; i < this.segments.length && drained < max; i++) {
+            drained += this.segments[(start + i) & (this.segments.length - 1)].drainPurgeQueue(max - drained);
+        }
+        this.drainIndex = start + 1;
+        return drained;
+    }
+
 
+    /**
+     * Return the number of mappings, see {@link #mappingCount()}.
+     */
     @Override
     public int size() {
-        int size = 0;
-        for (Segment segment : this.segments) {
-            size += segment.getCount();
-        }
-        return size;
+        long count = mappingCount();
+        return (count > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) count);
+    }
+
+    /**
+     * Return the number of mappings without visiting the segments. Like
+     * {@link ConcurrentHashMap#mappingCount()} this is an estimate while other threads
+     * are writing: it reflects updates that completed before the call and may or may
+     * not reflect updates running concurrently. Entries whose keys or values have been
+     * garbage collected are counted until they are purged.
+     * @return the number of mappings
+     */
+    public long mappingCount() {
+        long count = this.sizeCounter.sum();
+        return (count < 0 ? 0 : count);
     }
 
     @Override
@@ -376,12 +745,37 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
         SOFT,
 
         /** Use {@link WeakReference}s */
-        WEAK
+        WEAK,
+
+        /**
+         * Use {@link WeakReference}s to the keys and hold the values strongly, an entry
+         * lives as long as its key is used elsewhere. Keys must not be {@code null}.
+         */
+        WEAK_KEYS,
+
+        /**
+         * Hold the keys strongly and use {@link WeakReference}s to the values. Values
+         * must not be {@code null}.
+         */
+        WEAK_VALUES,
+
+        /**
+         * Hold the keys strongly and use {@link SoftReference}s to the values. Values
+         * must not be {@code null}.
+         */
+        SOFT_VALUES
     }
 
 
     /**
      * A single segment used to divide the map to allow better concurrent performance.
+     *
+     * <p>Reads never take the lock. A resize does not rebuild the table in one go: the
+     * new table is published next to the old one and buckets are migrated a stride at a
+     * time, from the highest index down, by every thread that writes to the segment
+     * while the resize is in progress. A migrated bucket of the old table holds a
+     * {@link ForwardingReference}, so readers and writers of any bucket keep going
+     * during the resize and only find their way to the new table when they need to.
      */
     @SuppressWarnings("serial")
     protected final class Segment extends ReentrantLock {
@@ -393,9 +787,22 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
         /**
          * Array of references indexed using the low order bits from the hash. This
          * property should only be set via {@link #setReferences} to ensure that the
-         * {@code resizeThreshold} is maintained.
+         * {@code resizeThreshold} is maintained. Buckets are read and written with
+         * volatile semantics, so that a reader seeing a {@link ForwardingReference} also
+         * sees the buckets it forwards to.
+         */
+        private volatile AtomicReferenceArray<Reference<K, V>> references;
+
+        /**
+         * The table being migrated to, {@code null} unless a resize is in progress.
          */
-        private volatile Reference<K, V>[] references;
+        private volatile AtomicReferenceArray<Reference<K, V>> nextReferences;
+
+        /**
+         * Buckets of {@code references} at or above this index have been migrated to
+         * {@code nextReferences}. Guarded by the lock.
+         */
+        private int transferIndex;
 
         /**
          * The total number of references contained in this segment. This includes chained
@@ -403,6 +810,18 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
          */
         private volatile int count = 0;
 
+        /**
+         * Counters guarded by the lock and read without it. Lock acquisitions are only
+         * counted while the map records statistics.
+         */
+        private long lockAcquisitions;
+
+        private long contendedAcquisitions;
+
+        private long resizes;
+
+        private long purges;
+
         /**
          * The threshold when resizing of the references should occur. When {@code count}
          * exceeds this value references will be resized.
@@ -423,12 +842,30 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
                 return null;
             }
             // Use a local copy to protect against other threads writing
-            Reference<K, V>[] references = this.references;
-            int index = getIndex(hash, references);
-            Reference<K, V> head = references[index];
+            AtomicReferenceArray<Reference<K, V>> references = this.references;
+            Reference<K, V> head = references.get(getIndex(hash, references));
+            while (head instanceof ForwardingReference) {
+                references = ((ForwardingReference<K, V>) head).nextReferences;
+                head = references.get(getIndex(hash, references));
+            }
             return findInChain(head, key, hash);
         }
 
+        /**
+         * Acquire the lock, counting whether it had to wait if the map records statistics.
+         */
+        private void lockSegment() {
+            if (!ConcurrentReferenceHashMap.this.recordingStatistics) {
+                lock();
+                return;
+            }
+            if (!tryLock()) {
+                lock();
+                this.contendedAcquisitions++;
+            }
+            this.lockAcquisitions++;
+        }
+
         /**
          * Apply an update operation to this segment.
          * The segment will be locked during the update.
@@ -438,6 +875,10 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
          * @return the result of the operation
          */
         public <T> T doTask(final int hash, final Object key, final Task<T> task) {
+            if (isHeldByCurrentThread()) {
+                // a compute function updating this segment, the running task holds on to its bucket
+                throw new IllegalStateException("Recursive update");
+            }
             boolean resize = task.hasOption(TaskOption.RESIZE);
             if (task.hasOption(TaskOption.RESTRUCTURE_BEFORE)) {
                 restructureIfNecessary(resize);
@@ -445,20 +886,32 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
             if (task.hasOption(TaskOption.SKIP_IF_EMPTY) && this.count == 0) {
                 return task.execute(null, null, null);
             }
-            lock();
+            lockSegment();
             try {
-                final int index = getIndex(hash, this.references);
-                final Reference<K, V> head = this.references[index];
+                if (this.nextReferences != null) {
+                    transfer();
+                }
+                AtomicReferenceArray<Reference<K, V>> references = this.references;
+                int bucket = getIndex(hash, references);
+                Reference<K, V> bucketHead = references.get(bucket);
+                if (bucketHead instanceof ForwardingReference) {
+                    references = ((ForwardingReference<K, V>) bucketHead).nextReferences;
+                    bucket = getIndex(hash, references);
+                    bucketHead = references.get(bucket);
+                }
+                final AtomicReferenceArray<Reference<K, V>> table = references;
+                final int index = bucket;
+                final Reference<K, V> head = bucketHead;
                 Reference<K, V> reference = findInChain(head, key, hash);
                 Entry<K, V> entry = (reference != null ? reference.get() : null);
                 Entries entries = new Entries() {
                     @Override
                     public void add(V value) {
                         @SuppressWarnings("unchecked")
-                        Entry<K, V> newEntry = new Entry<K, V>((K) key, value);
-                        Reference<K, V> newReference = Segment.this.referenceManager.createReference(newEntry, hash, head);
-                        Segment.this.references[index] = newReference;
+                        Reference<K, V> newReference = Segment.this.referenceManager.createReference((K) key, value, hash, head);
+                        table.set(index, newReference);
                         Segment.this.count++;
+                        ConcurrentReferenceHashMap.this.sizeCounter.increment();
                     }
                 };
                 return task.execute(reference, entry, entries);
@@ -478,9 +931,11 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
             if (this.count == 0) {
                 return;
             }
-            lock();
+            lockSegment();
             try {
+                this.nextReferences = null;
                 setReferences(createReferenceArray(this.initialSize));
+                ConcurrentReferenceHashMap.this.sizeCounter.add(-this.count);
                 this.count = 0;
             }
             finally {
@@ -490,63 +945,43 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
 
         /**
          * Restructure the underlying data structure when it becomes necessary. This
-         * method can increase the size of the references table as well as purge any
-         * references that have been garbage collected.
+         * method can start an incremental resize of the references table as well as
+         * purge any references that have been garbage collected. While a resize is in
+         * progress writers help it along. Purged references are unlinked from their
+         * chains in place, so purging allocates nothing. Does nothing when called by a
+         * read from a compute function, which already holds the lock.
          * @param allowResize if resizing is permitted
          */
         protected final void restructureIfNecessary(boolean allowResize) {
+            if (isHeldByCurrentThread()) {
+                // the running task holds on to the head of its bucket, unlinking could relink a purged reference
+                return;
+            }
             boolean needsResize = ((this.count > 0) && (this.count >= this.resizeThreshold));
             Reference<K, V> reference = this.referenceManager.pollForPurge();
-            if ((reference != null) || (needsResize && allowResize)) {
-                lock();
+            if ((reference != null) || (allowResize && (needsResize || this.nextReferences != null))) {
+                lockSegment();
                 try {
-                    int countAfterRestructure = this.count;
-
-                    Set<Reference<K, V>> toPurge = Collections.emptySet();
-                    if (reference != null) {
-                        toPurge = new HashSet<Reference<K, V>>();
-                        while (reference != null) {
-                            toPurge.add(reference);
-                            reference = this.referenceManager.pollForPurge();
+                    while (reference != null) {
+                        if (unlink(reference)) {
+                            this.count--;
+                            this.purges++;
+                            ConcurrentReferenceHashMap.this.sizeCounter.decrement();
                         }
+                        reference = this.referenceManager.pollForPurge();
                     }
-                    countAfterRestructure -= toPurge.size();
-
-                    // Recalculate taking into account count inside lock and items that
-                    // will be purged
-                    needsResize = (countAfterRestructure > 0 && countAfterRestructure >= this.resizeThreshold);
-                    boolean resizing = false;
-                    int restructureSize = this.references.length;
-                    if (allowResize && needsResize && restructureSize < MAXIMUM_SEGMENT_SIZE) {
-                        restructureSize <<= 1;
-                        resizing = true;
-                    }
-
-                    // Either create a new table or reuse the existing one
-                    Reference<K, V>[] restructured = (resizing ? createReferenceArray(restructureSize) : this.references);
-
-                    // Restructure
-                    for (int i = 0; i < this.references.length; i++) {
-                        reference = this.references[i];
-                        if (!resizing) {
-                            restructured[i] = null;
+                    if (allowResize) {
+                        if (this.nextReferences != null) {
+                            transfer();
                         }
-                        while (reference != null) {
-                            if (!toPurge.contains(reference) && (reference.get() != null)) {
-                                int index = getIndex(reference.getHash(), restructured);
-                                restructured[index] = this.referenceManager.createReference(
-                                        reference.get(), reference.getHash(),
-                                        restructured[index]);
-                            }
-                            reference = reference.getNext();
+                        else if (this.count > 0 && this.count >= this.resizeThreshold &&
+                                this.references.length() < MAXIMUM_SEGMENT_SIZE) {
+                            this.transferIndex = this.references.length();
+                            this.nextReferences = createReferenceArray(this.references.length() << 1);
+                            this.resizes++;
+                            transfer();
                         }
                     }
-
-                    // Replace volatile members
-                    if (resizing) {
-                        setReferences(restructured);
-                    }
-                    this.count = Math.max(countAfterRestructure, 0);
                 }
                 finally {
                     unlock();
@@ -554,54 +989,233 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
             }
         }
 
-        private Reference<K, V> findInChain(Reference<K, V> reference, Object key, int hash) {
-            while (reference != null) {
-                if (reference.getHash() == hash) {
-                    Entry<K, V> entry = reference.get();
-                    if (entry != null) {
-                        K entryKey = entry.getKey();
-                        if (entryKey == key || entryKey.equals(key)) {
-                            return reference;
-                        }
+        /**
+         * Purge up to {@code max} collected references if the lock is free.
+         * @return the number of references drained from the queue
+         */
+        final int drainPurgeQueue(int max) {
+            if (!tryLock()) {
+                return 0;
+            }
+            if (ConcurrentReferenceHashMap.this.recordingStatistics) {
+                this.lockAcquisitions++;
+            }
+            try {
+                int drained = 0;
+                Reference<K, V> reference;
+                while (drained < max && (reference = this.referenceManager.pollForPurge()) != null) {
+                    if (unlink(reference)) {
+                        this.count--;
+                        this.purges++;
+                        ConcurrentReferenceHashMap.this.sizeCounter.decrement();
                     }
+                    drained++;
                 }
-                reference = reference.getNext();
+                return drained;
+            }
+            finally {
+                unlock();
             }
-            return null;
-        }
-
-        @SuppressWarnings("unchecked")
-        private Reference<K, V>[] createReferenceArray(int size) {
-            return (Reference<K, V>[]) Array.newInstance(Reference.class, size);
-        }
-
-        private int getIndex(int hash, Reference<K, V>[] references) {
-            return (hash & (references.length - 1));
         }
 
         /**
-         * Replace the references with a new value, recalculating the resizeThreshold.
-         * @param references the new references
+         * Migrate all remaining buckets if a resize is in progress.
          */
-        private void setReferences(Reference<K, V>[] references) {
-            this.references = references;
-            this.resizeThreshold = (int) (references.length * getLoadFactor());
+        public void completeResize() {
+            if (this.nextReferences == null) {
+                return;
+            }
+            lockSegment();
+            try {
+                while (this.nextReferences != null) {
+                    transfer();
+                }
+            }
+            finally {
+                unlock();
+            }
         }
 
         /**
-         * @return the size of the current references array
+         * Unlink a purged reference from its chain, in the new table if its bucket has
+         * already been migrated. Readers walking the chain still reach the references
+         * behind it. Only called while holding the lock.
+         * @return whether the reference was found, references dropped while migrating a
+         * bucket are not
          */
-        public final int getSize() {
-            return this.references.length;
+        private boolean unlink(Reference<K, V> purged) {
+            AtomicReferenceArray<Reference<K, V>> references = this.references;
+            int index = getIndex(purged.getHash(), references);
+            Reference<K, V> reference = references.get(index);
+            if (reference instanceof ForwardingReference) {
+                references = ((ForwardingReference<K, V>) reference).nextReferences;
+                index = getIndex(purged.getHash(), references);
+                reference = references.get(index);
+            }
+            if (reference == purged) {
+                references.set(index, purged.getNext());
+                return true;
+            }
+            while (reference != null) {
+                Reference<K, V> next = reference.getNext();
+                if (next == purged) {
+                    reference.setNext(purged.getNext());
+                    return true;
+                }
+                reference = next;
+            }
+            return false;
         }
 
         /**
-         * @return the total number of references in this segment
+         * Migrate the next stride of buckets to the new table, and install the new table
+         * once every bucket has been migrated. Only called while holding the lock.
          */
-        public final int getCount() {
-            return this.count;
+        private void transfer() {
+            AtomicReferenceArray<Reference<K, V>> references = this.references;
+            AtomicReferenceArray<Reference<K, V>> nextReferences = this.nextReferences;
+            int bound = Math.max(this.transferIndex - TRANSFER_STRIDE, 0);
+            ForwardingReference<K, V> forwarding = new ForwardingReference<K, V>(nextReferences);
+            for (int i = this.transferIndex - 1; i >= bound; i--) {
+                transferBucket(references, i, nextReferences);
+                references.set(i, forwarding);
+            }
+            this.transferIndex = bound;
+            if (bound == 0) {
+                setReferences(nextReferences);
+                this.nextReferences = null;
+            }
         }
-    }
+
+        /**
+         * Split the chain of a bucket into the two buckets it maps to in the new table.
+         * The old chain is left intact for readers still walking it: the trailing run of
+         * references that all map to the same new bucket is reused, and only the live
+         * references in front of it are copied.
+         */
+        private void transferBucket(AtomicReferenceArray<Reference<K, V>> references, int index,
+                AtomicReferenceArray<Reference<K, V>> nextReferences) {
+            Reference<K, V> head = references.get(index);
+            if (head == null) {
+                return;
+            }
+            int bit = references.length();
+            Reference<K, V> lastRun = head;
+            int runBit = head.getHash() & bit;
+            for (Reference<K, V> reference = head.getNext(); reference != null; reference = reference.getNext()) {
+                int b = reference.getHash() & bit;
+                if (b != runBit) {
+                    runBit = b;
+                    lastRun = reference;
+                }
+            }
+            Reference<K, V> low = (runBit == 0 ? lastRun : null);
+            Reference<K, V> high = (runBit != 0 ? lastRun : null);
+            int dropped = 0;
+            for (Reference<K, V> reference = head; reference != lastRun; reference = reference.getNext()) {
+                Entry<K, V> entry = reference.get();
+                boolean toLow = ((reference.getHash() & bit) == 0);
+                Reference<K, V> copy = (entry != null ?
+                        this.referenceManager.createReference(entry, reference.getHash(), toLow ? low : high) : null);
+                if (copy == null) {
+                    dropped++;
+                }
+                else if (toLow) {
+                    low = copy;
+                }
+                else {
+                    high = copy;
+                }
+            }
+            nextReferences.set(index, low);
+            nextReferences.set(index + bit, high);
+            this.count -= dropped;
+            ConcurrentReferenceHashMap.this.sizeCounter.add(-dropped);
+        }
+
+        private Reference<K, V> findInChain(Reference<K, V> reference, Object key, int hash) {
+            while (reference != null) {
+                if (reference.getHash() == hash) {
+                    Entry<K, V> entry = reference.get();
+                    if (entry != null) {
+                        K entryKey = entry.getKey();
+                        if (keyEquals(entryKey, key)) {
+                            return reference;
+                        }
+                    }
+                }
+                reference = reference.getNext();
+            }
+            return null;
+        }
+
+        private AtomicReferenceArray<Reference<K, V>> createReferenceArray(int size) {
+            return new AtomicReferenceArray<Reference<K, V>>(size);
+        }
+
+        private int getIndex(int hash, AtomicReferenceArray<Reference<K, V>> references) {
+            return (hash & (references.length() - 1));
+        }
+
+        /**
+         * Replace the references with a new value, recalculating the resizeThreshold.
+         * @param references the new references
+         */
+        private void setReferences(AtomicReferenceArray<Reference<K, V>> references) {
+            this.references = references;
+            this.resizeThreshold = (int) (references.length() * getLoadFactor());
+        }
+
+        /**
+         * @return the size of the current references array
+         */
+        public final int getSize() {
+            return this.references.length();
+        }
+
+        /**
+         * @return whether a resize of this segment is in progress
+         */
+        public final boolean isResizing() {
+            return (this.nextReferences != null);
+        }
+
+        /**
+         * @return the total number of references in this segment
+         */
+        public final int getCount() {
+            return this.count;
+        }
+
+        /**
+         * @return a snapshot of the counters and the chain lengths of this segment
+         */
+        public final SegmentStatistics getStatistics() {
+            long[] chainLengths = new long[SegmentStatistics.CHAIN_LENGTHS];
+            AtomicReferenceArray<Reference<K, V>> references = this.references;
+            for (int i = 0; i < references.length(); i++) {
+                addChainLengths(chainLengths, references, i);
+            }
+            return new SegmentStatistics(this.lockAcquisitions, this.contendedAcquisitions, this.resizes,
+                    this.purges, this.count, references.length(), chainLengths);
+        }
+
+        private void addChainLengths(long[] chainLengths, AtomicReferenceArray<Reference<K, V>> references, int index) {
+            Reference<K, V> reference = references.get(index);
+            if (reference instanceof ForwardingReference) {
+                AtomicReferenceArray<Reference<K, V>> nextReferences =
+                        ((ForwardingReference<K, V>) reference).nextReferences;
+                addChainLengths(chainLengths, nextReferences, index);
+                addChainLengths(chainLengths, nextReferences, index + references.length());
+                return;
+            }
+            int length = 0;
+            for (; reference != null; reference = reference.getNext()) {
+                length++;
+            }
+            chainLengths[Math.min(length, SegmentStatistics.CHAIN_LENGTHS - 1)]++;
+        }
+    }
 
 
     /**
@@ -629,6 +1243,13 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
          */
         Reference<K, V> getNext();
 
+        /**
+         * Replace the next reference in the chain, used to unlink purged references in
+         * place. Called while holding the segment lock, readers must see the new value.
+         * @param next the new next reference or {@code null}
+         */
+        void setNext(Reference<K, V> next);
+
         /**
          * Release this entry and ensure that it will be returned from
          * {@code ReferenceManager#pollForPurge()}.
@@ -640,7 +1261,7 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
     /**
      * A single map entry.
      */
-    protected static final class Entry<K, V> implements Map.Entry<K, V> {
+    protected static class Entry<K, V> implements Map.Entry<K, V> {
 
         private final K key;
 
@@ -670,7 +1291,7 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
 
         @Override
         public String toString() {
-            return (this.key + "=" + this.value);
+            return (getKey() + "=" + getValue());
         }
 
         @Override
@@ -689,7 +1310,7 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
 
         @Override
         public final int hashCode() {
-            return (ObjectUtils.nullSafeHashCode(this.key) ^ ObjectUtils.nullSafeHashCode(this.value));
+            return (ObjectUtils.nullSafeHashCode(getKey()) ^ ObjectUtils.nullSafeHashCode(getValue()));
         }
     }
 
@@ -766,6 +1387,11 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
             return new EntryIterator();
         }
 
+        @Override
+        public Spliterator<Map.Entry<K, V>> spliterator() {
+            return entrySpliterator();
+        }
+
         @Override
         public boolean contains(Object o) {
             if (o != null && o instanceof Map.Entry<?, ?>) {
@@ -801,7 +1427,8 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
 
 
     /**
-     * Internal entry iterator implementation.
+     * Internal entry iterator implementation. A bucket that has already been migrated by
+     * a resize is followed into the two buckets of the new table it was split into.
      */
     private class EntryIterator implements Iterator<Map.Entry<K, V>> {
 
@@ -809,10 +1436,15 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
 
         private int referenceIndex;
 
-        private Reference<K, V>[] references;
+        private AtomicReferenceArray<Reference<K, V>> references;
 
         private Reference<K, V> reference;
 
+        /**
+         * Chains of migrated buckets still to be walked.
+         */
+        private final Deque<Reference<K, V>> pending = new ArrayDeque<Reference<K, V>>();
+
         private Entry<K, V> next;
 
         private Entry<K, V> last;
@@ -853,12 +1485,15 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
                 this.reference = this.reference.getNext();
             }
             while (this.reference == null && this.references != null) {
-                if (this.referenceIndex >= this.references.length) {
+                if (!this.pending.isEmpty()) {
+                    this.reference = this.pending.pop();
+                }
+                else if (this.referenceIndex >= this.references.length()) {
                     moveToNextSegment();
                     this.referenceIndex = 0;
                 }
                 else {
-                    this.reference = this.references[this.referenceIndex];
+                    pushBucket(this.pending, this.references, this.referenceIndex);
                     this.referenceIndex++;
                 }
             }
@@ -881,6 +1516,138 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
     }
 
 
+    /**
+     * Push the chain of a bucket, or the chains it has been migrated to, onto the stack
+     * of chains to walk.
+     */
+    private static <K, V> void pushBucket(Deque<Reference<K, V>> pending,
+            AtomicReferenceArray<Reference<K, V>> references, int index) {
+        Reference<K, V> head = references.get(index);
+        if (head instanceof ForwardingReference) {
+            AtomicReferenceArray<Reference<K, V>> nextReferences = ((ForwardingReference<K, V>) head).nextReferences;
+            pushBucket(pending, nextReferences, index + references.length());
+            pushBucket(pending, nextReferences, index);
+        }
+        else if (head != null) {
+            pending.push(head);
+        }
+    }
+
+
+    /**
+     * Weakly consistent {@link Spliterator} over the entries. It splits a range of
+     * segments in halves, and the buckets of the table of the last segment once a single
+     * segment remains. Buckets migrated by a concurrent resize are followed into the new
+     * table.
+     */
+    private final class EntrySpliterator implements Spliterator<Map.Entry<K, V>> {
+
+        private int segmentIndex;
+
+        private final int segmentFence;
+
+        /**
+         * The table of the segment being walked, {@code null} before it is bound.
+         */
+        private AtomicReferenceArray<Reference<K, V>> references;
+
+        private int referenceIndex;
+
+        private int referenceFence;
+
+        private final Deque<Reference<K, V>> pending = new ArrayDeque<Reference<K, V>>();
+
+        private Reference<K, V> reference;
+
+        private long estimate;
+
+        EntrySpliterator(int segmentIndex, int segmentFence, long estimate) {
+            this.segmentIndex = segmentIndex;
+            this.segmentFence = segmentFence;
+            this.estimate = estimate;
+        }
+
+        private EntrySpliterator(int segmentIndex, AtomicReferenceArray<Reference<K, V>> references, int referenceIndex,
+                int referenceFence, long estimate) {
+            this(segmentIndex, segmentIndex + 1, estimate);
+            this.references = references;
+            this.referenceIndex = referenceIndex;
+            this.referenceFence = referenceFence;
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, V>> trySplit() {
+            if (this.references == null && this.segmentFence - this.segmentIndex > 1) {
+                int mid = (this.segmentIndex + this.segmentFence) >>> 1;
+                EntrySpliterator prefix = new EntrySpliterator(this.segmentIndex, mid, this.estimate >>>= 1);
+                this.segmentIndex = mid;
+                return prefix;
+            }
+            if (this.segmentIndex >= this.segmentFence || this.reference != null || !this.pending.isEmpty()) {
+                return null;
+            }
+            if (this.references == null) {
+                bindSegment();
+            }
+            if (this.referenceFence - this.referenceIndex <= 1) {
+                return null;
+            }
+            int mid = (this.referenceIndex + this.referenceFence) >>> 1;
+            EntrySpliterator prefix = new EntrySpliterator(this.segmentIndex, this.references, this.referenceIndex,
+                    mid, this.estimate >>>= 1);
+            this.referenceIndex = mid;
+            return prefix;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            Assert.notNull(action, "Action must not be null");
+            while (true) {
+                if (this.reference != null) {
+                    Entry<K, V> entry = this.reference.get();
+                    this.reference = this.reference.getNext();
+                    if (entry != null) {
+                        action.accept(entry);
+                        return true;
+                    }
+                }
+                else if (!this.pending.isEmpty()) {
+                    this.reference = this.pending.pop();
+                }
+                else if (this.references != null && this.referenceIndex < this.referenceFence) {
+                    pushBucket(this.pending, this.references, this.referenceIndex++);
+                }
+                else if (this.references != null) {
+                    this.references = null;
+                    this.segmentIndex++;
+                }
+                else if (this.segmentIndex < this.segmentFence) {
+                    bindSegment();
+                }
+                else {
+                    return false;
+                }
+            }
+        }
+
+        private void bindSegment() {
+            this.references = ConcurrentReferenceHashMap.this.segments[this.segmentIndex].references;
+            this.referenceIndex = 0;
+            this.referenceFence = this.references.length();
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return (Spliterator.CONCURRENT | Spliterator.DISTINCT | Spliterator.NONNULL);
+        }
+    }
+
+
     /**
      * The types of restructuring that can be performed.
      */
@@ -896,20 +1663,66 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
      */
     protected class ReferenceManager {
 
-        private final ReferenceQueue<Entry<K, V>> queue = new ReferenceQueue<Entry<K, V>>();
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
 
         /**
-         * Factory method used to create a new {@link Reference}.
+         * Factory method used to create a new {@link Reference} for an existing entry,
+         * e.g. when it is moved to a new table.
          * @param entry the entry contained in the reference
          * @param hash the hash
          * @param next the next reference in the chain or {@code null}
-         * @return a new {@link Reference}
+         * @return a new {@link Reference}, or {@code null} if the entry is a chain node
+         * whose key or value has been collected since it was read
          */
         public Reference<K, V> createReference(Entry<K, V> entry, int hash, Reference<K, V> next) {
-            if (ConcurrentReferenceHashMap.this.referenceType == ReferenceType.WEAK) {
-                return new WeakEntryReference<K, V>(entry, hash, next, this.queue);
+            switch (ConcurrentReferenceHashMap.this.referenceType) {
+                case WEAK:
+                    return new WeakEntryReference<K, V>(entry, hash, next, this.queue);
+                case SOFT:
+                    return new SoftEntryReference<K, V>(entry, hash, next, this.queue);
+                case WEAK_KEYS:
+                    // read once, a node created with a collected key would never be purged
+                    K key = entry.getKey();
+                    return (key != null ? createNode(key, entry.getValue(), hash, next) : null);
+                default:
+                    V value = entry.getValue();
+                    return (value != null ? createNode(entry.getKey(), value, hash, next) : null);
+            }
+        }
+
+        /**
+         * Factory method used to create a new {@link Reference} for a new mapping. The
+         * modes that only hold the key or the value through a reference use the chain
+         * node as the entry, so no separate {@link Entry} is allocated for them.
+         * @param key the key
+         * @param value the value
+         * @param hash the hash
+         * @param next the next reference in the chain or {@code null}
+         * @return a new {@link Reference}
+         */
+        public Reference<K, V> createReference(K key, V value, int hash, Reference<K, V> next) {
+            switch (ConcurrentReferenceHashMap.this.referenceType) {
+                case WEAK:
+                case SOFT:
+                    return createReference(new Entry<K, V>(key, value), hash, next);
+                case WEAK_KEYS:
+                    Assert.notNull(key, "Weak keys must not be null");
+                    return createNode(key, value, hash, next);
+                default:
+                    Assert.notNull(value, "Referenced values must not be null");
+                    return createNode(key, value, hash, next);
+            }
+        }
+
+        private Reference<K, V> createNode(K key, V value, int hash, Reference<K, V> next) {
+            switch (ConcurrentReferenceHashMap.this.referenceType) {
+                case WEAK_KEYS:
+                    return new WeakKeyEntry<K, V>(key, value, hash, next, this.queue);
+                case WEAK_VALUES:
+                    return new ValueReferenceEntry<K, V>(key, value, false, hash, next, this.queue);
+                default:
+                    return new ValueReferenceEntry<K, V>(key, value, true, hash, next, this.queue);
             }
-            return new SoftEntryReference<K, V>(entry, hash, next, this.queue);
         }
 
         /**
@@ -921,7 +1734,56 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
          */
         @SuppressWarnings("unchecked")
         public Reference<K, V> pollForPurge() {
-            return (Reference<K, V>) this.queue.poll();
+            java.lang.ref.Reference<?> polled;
+            while ((polled = this.queue.poll()) != null) {
+                if (polled instanceof Reference) {
+                    return (Reference<K, V>) polled;
+                }
+                // the key or value of a chain node, unless the value has been replaced since
+                Reference<K, V> owner = ((OwnedReference<K, V>) polled).getOwner();
+                if (owner != null) {
+                    return owner;
+                }
+            }
+            return null;
+        }
+    }
+
+
+    /**
+     * Placed in a bucket of the old table once it has been migrated during a resize.
+     * Holds no entry; lookups continue in the new table.
+     */
+    private static final class ForwardingReference<K, V> implements Reference<K, V> {
+
+        private final AtomicReferenceArray<Reference<K, V>> nextReferences;
+
+        public ForwardingReference(AtomicReferenceArray<Reference<K, V>> nextReferences) {
+            this.nextReferences = nextReferences;
+        }
+
+        @Override
+        public Entry<K, V> get() {
+            return null;
+        }
+
+        @Override
+        public int getHash() {
+            return 0;
+        }
+
+        @Override
+        public Reference<K, V> getNext() {
+            return null;
+        }
+
+        @Override
+        public void setNext(Reference<K, V> next) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void release() {
         }
     }
 
@@ -933,9 +1795,9 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
 
         private final int hash;
 
-        private final Reference<K, V> nextReference;
+        private volatile Reference<K, V> nextReference;
 
-        public SoftEntryReference(Entry<K, V> entry, int hash, Reference<K, V> next, ReferenceQueue<Entry<K, V>> queue) {
+        public SoftEntryReference(Entry<K, V> entry, int hash, Reference<K, V> next, ReferenceQueue<Object> queue) {
             super(entry, queue);
             this.hash = hash;
             this.nextReference = next;
@@ -951,6 +1813,11 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
             return this.nextReference;
         }
 
+        @Override
+        public void setNext(Reference<K, V> next) {
+            this.nextReference = next;
+        }
+
         @Override
         public void release() {
             enqueue();
@@ -966,9 +1833,9 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
 
         private final int hash;
 
-        private final Reference<K, V> nextReference;
+        private volatile Reference<K, V> nextReference;
 
-        public WeakEntryReference(Entry<K, V> entry, int hash, Reference<K, V> next, ReferenceQueue<Entry<K, V>> queue) {
+        public WeakEntryReference(Entry<K, V> entry, int hash, Reference<K, V> next, ReferenceQueue<Object> queue) {
             super(entry, queue);
             this.hash = hash;
             this.nextReference = next;
@@ -984,6 +1851,11 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
             return this.nextReference;
         }
 
+        @Override
+        public void setNext(Reference<K, V> next) {
+            this.nextReference = next;
+        }
+
         @Override
         public void release() {
             enqueue();
@@ -991,4 +1863,203 @@ public class ConcurrentReferenceHashMap<K, V> extends AbstractMap<K, V> implemen
         }
     }
 
+
+    /**
+     * A {@link java.lang.ref.Reference} to the key or value of a chain node, enqueued in
+     * place of the node.
+     */
+    private static interface OwnedReference<K, V> {
+
+        /**
+         * @return the node to purge or {@code null} if this reference no longer belongs
+         * to it
+         */
+        Reference<K, V> getOwner();
+    }
+
+
+    /**
+     * Chain node and entry of the {@link ReferenceType#WEAK_KEYS} mode, holding the value
+     * strongly and the key through a {@link WeakReference}.
+     */
+    private static final class WeakKeyEntry<K, V> extends Entry<K, V> implements Reference<K, V> {
+
+        private final KeyReference<K, V> keyReference;
+
+        private final int hash;
+
+        private volatile Reference<K, V> nextReference;
+
+        public WeakKeyEntry(K key, V value, int hash, Reference<K, V> next, ReferenceQueue<Object> queue) {
+            super(null, value);
+            this.keyReference = new KeyReference<K, V>(key, this, queue);
+            this.hash = hash;
+            this.nextReference = next;
+        }
+
+        @Override
+        public K getKey() {
+            return this.keyReference.get();
+        }
+
+        @Override
+        public Entry<K, V> get() {
+            return (this.keyReference.get() != null ? this : null);
+        }
+
+        @Override
+        public int getHash() {
+            return this.hash;
+        }
+
+        @Override
+        public Reference<K, V> getNext() {
+            return this.nextReference;
+        }
+
+        @Override
+        public void setNext(Reference<K, V> next) {
+            this.nextReference = next;
+        }
+
+        @Override
+        public void release() {
+            this.keyReference.enqueue();
+            this.keyReference.clear();
+        }
+    }
+
+
+    private static final class KeyReference<K, V> extends WeakReference<K> implements OwnedReference<K, V> {
+
+        private final Reference<K, V> owner;
+
+        public KeyReference(K key, Reference<K, V> owner, ReferenceQueue<Object> queue) {
+            super(key, queue);
+            this.owner = owner;
+        }
+
+        @Override
+        public Reference<K, V> getOwner() {
+            return this.owner;
+        }
+    }
+
+
+    /**
+     * Chain node and entry of the {@link ReferenceType#WEAK_VALUES} and
+     * {@link ReferenceType#SOFT_VALUES} modes, holding the key strongly and the value
+     * through a {@link WeakReference} or {@link SoftReference}. Setting a value replaces
+     * that reference, only called while holding the segment lock.
+     */
+    private static final class ValueReferenceEntry<K, V> extends Entry<K, V> implements Reference<K, V> {
+
+        private final boolean soft;
+
+        private final ReferenceQueue<Object> queue;
+
+        private final int hash;
+
+        private volatile java.lang.ref.Reference<V> valueReference;
+
+        private volatile Reference<K, V> nextReference;
+
+        public ValueReferenceEntry(K key, V value, boolean soft, int hash, Reference<K, V> next,
+                ReferenceQueue<Object> queue) {
+            super(key, null);
+            this.soft = soft;
+            this.queue = queue;
+            this.hash = hash;
+            this.nextReference = next;
+            this.valueReference = createValueReference(value);
+        }
+
+        private java.lang.ref.Reference<V> createValueReference(V value) {
+            if (this.soft) {
+                return new SoftValueReference<K, V>(value, this, this.queue);
+            }
+            return new WeakValueReference<K, V>(value, this, this.queue);
+        }
+
+        @Override
+        public V getValue() {
+            return this.valueReference.get();
+        }
+
+        @Override
+        public V setValue(V value) {
+            Assert.notNull(value, "Referenced values must not be null");
+            java.lang.ref.Reference<V> previous = this.valueReference;
+            this.valueReference = createValueReference(value);
+            // a cleared reference is not enqueued, one already enqueued is ignored
+            // by pollForPurge as it no longer belongs to this node
+            V previousValue = previous.get();
+            previous.clear();
+            return previousValue;
+        }
+
+        @Override
+        public Entry<K, V> get() {
+            return (this.valueReference.get() != null ? this : null);
+        }
+
+        @Override
+        public int getHash() {
+            return this.hash;
+        }
+
+        @Override
+        public Reference<K, V> getNext() {
+            return this.nextReference;
+        }
+
+        @Override
+        public void setNext(Reference<K, V> next) {
+            this.nextReference = next;
+        }
+
+        @Override
+        public void release() {
+            java.lang.ref.Reference<V> valueReference = this.valueReference;
+            valueReference.enqueue();
+            valueReference.clear();
+        }
+
+        boolean owns(java.lang.ref.Reference<?> valueReference) {
+            return (this.valueReference == valueReference);
+        }
+    }
+
+
+    private static final class WeakValueReference<K, V> extends WeakReference<V> implements OwnedReference<K, V> {
+
+        private final ValueReferenceEntry<K, V> owner;
+
+        public WeakValueReference(V value, ValueReferenceEntry<K, V> owner, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.owner = owner;
+        }
+
+        @Override
+        public Reference<K, V> getOwner() {
+            return (this.owner.owns(this) ? this.owner : null);
+        }
+    }
+
+
+    private static final class SoftValueReference<K, V> extends SoftReference<V> implements OwnedReference<K, V> {
+
+        private final ValueReferenceEntry<K, V> owner;
+
+        public SoftValueReference(V value, ValueReferenceEntry<K, V> owner, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.owner = owner;
+        }
+
+        @Override
+        public Reference<K, V> getOwner() {
+            return (this.owner.owns(this) ? this.owner : null);
+        }
+    }
+
 }
@@ -0,0 +1,663 @@
+package com.shock.utils.opensource;
+
+import com.shock.utils.Assert;
+import com.shock.utils.ObjectUtils;
+import com.shock.utils.opensource.ConcurrentReferenceHashMap.ReferenceType;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 开放寻址布局的 {@link ConcurrentReferenceHashMap}
+ *
+ * 每个段的表是一个保存 hash 的 int 数组和一个同样长度的引用数组, 线性探测。查找先比较 int 数组里的 hash,
+ * 只有 hash 相同时才去读引用和 key。引用里没有链表指针, 扩容时引用对象原样搬进新表, 不需要重新包装。
+ * hash 为 0 表示空槽位, 存进表的 hash 都不为 0。
+ *
+ * 删除和被回收的条目留下墓碑, 墓碑和条目一起计入负载, 超过阈值时按存活条目的数量原地重建或者扩容。
+ * 读不加锁, 写按段加锁。
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentReferenceOpenHashMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    private static final float DEFAULT_LOAD_FACTOR = 0.5f;
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    private static final ReferenceType DEFAULT_REFERENCE_TYPE = ReferenceType.SOFT;
+
+    private static final int MAXIMUM_CONCURRENCY_LEVEL = 1 << 16;
+
+    private static final int MAXIMUM_SEGMENT_SIZE = 1 << 30;
+
+    /**
+     * Left in the slot of a removed or purged entry so that probing continues past it.
+     */
+    private static final Object TOMBSTONE = new Object();
+
+
+    private final Segment[] segments;
+
+    private final float loadFactor;
+
+    private final ReferenceType referenceType;
+
+    private final int shift;
+
+    private Set<Map.Entry<K, V>> entrySet;
+
+
+    /**
+     * Create a new {@code ConcurrentReferenceOpenHashMap} instance.
+     */
+    public ConcurrentReferenceOpenHashMap() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, DEFAULT_CONCURRENCY_LEVEL, DEFAULT_REFERENCE_TYPE);
+    }
+
+    /**
+     * Create a new {@code ConcurrentReferenceOpenHashMap} instance.
+     * @param initialCapacity the initial capacity of the map
+     */
+    public ConcurrentReferenceOpenHashMap(int initialCapacity) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR, DEFAULT_CONCURRENCY_LEVEL, DEFAULT_REFERENCE_TYPE);
+    }
+
+    /**
+     * Create a new {@code ConcurrentReferenceOpenHashMap} instance.
+     * @param initialCapacity the initial capacity of the map
+     * @param referenceType the reference type used for entries (soft or weak)
+     */
+    public ConcurrentReferenceOpenHashMap(int initialCapacity, ReferenceType referenceType) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR, DEFAULT_CONCURRENCY_LEVEL, referenceType);
+    }
+
+    /**
+     * Create a new {@code ConcurrentReferenceOpenHashMap} instance.
+     * @param initialCapacity the initial capacity of the map
+     * @param loadFactor the share of the slots of a table that entries and tombstones may
+     * take before it is rebuilt, below {@code 1}
+     * @param concurrencyLevel the expected number of threads that will concurrently
+     * write to the map
+     * @param referenceType the reference type used for entries (soft or weak)
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentReferenceOpenHashMap(int initialCapacity, float loadFactor, int concurrencyLevel,
+                                          ReferenceType referenceType) {
+        Assert.isTrue(initialCapacity >= 0, "Initial capacity must not be negative");
+        Assert.isTrue(loadFactor > 0f && loadFactor < 1f, "Load factor must be between 0 and 1");
+        Assert.isTrue(concurrencyLevel > 0, "Concurrency level must be positive");
+        Assert.isTrue(referenceType == ReferenceType.SOFT || referenceType == ReferenceType.WEAK,
+                "Reference type must be SOFT or WEAK");
+        this.loadFactor = loadFactor;
+        this.referenceType = referenceType;
+        this.shift = ConcurrentReferenceHashMap.calculateShift(concurrencyLevel, MAXIMUM_CONCURRENCY_LEVEL);
+        int size = 1 << this.shift;
+        int roundedUpSegmentCapacity = (int) ((initialCapacity + size - 1L) / size);
+        this.segments = (Segment[]) Array.newInstance(Segment.class, size);
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i] = new Segment(roundedUpSegmentCapacity);
+        }
+    }
+
+
+    /**
+     * Same spreading as {@link ConcurrentReferenceHashMap#getHash}, never {@code 0} as
+     * that marks an empty slot.
+     */
+    protected int getHash(Object o) {
+        int hash = o == null ? 0 : o.hashCode();
+        hash += (hash << 15) ^ 0xffffcd7d;
+        hash ^= (hash >>> 10);
+        hash += (hash << 3);
+        hash ^= (hash >>> 6);
+        hash += (hash << 2) + (hash << 14);
+        hash ^= (hash >>> 16);
+        return (hash == 0 ? 1 : hash);
+    }
+
+    @Override
+    public V get(Object key) {
+        Entry<K, V> entry = getEntry(key);
+        return (entry != null ? entry.getValue() : null);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (getEntry(key) != null);
+    }
+
+    private Entry<K, V> getEntry(Object key) {
+        int hash = getHash(key);
+        return getSegmentForHash(hash).getEntry(key, hash);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        int hash = getHash(key);
+        return getSegmentForHash(hash).put(key, hash, value, true);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        int hash = getHash(key);
+        return getSegmentForHash(hash).put(key, hash, value, false);
+    }
+
+    @Override
+    public V remove(Object key) {
+        int hash = getHash(key);
+        Entry<K, V> entry = getSegmentForHash(hash).remove(key, hash, false, null);
+        return (entry != null ? entry.getValue() : null);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        int hash = getHash(key);
+        return (getSegmentForHash(hash).remove(key, hash, true, value) != null);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        int hash = getHash(key);
+        Segment segment = getSegmentForHash(hash);
+        segment.lock();
+        try {
+            Entry<K, V> entry = segment.getEntry(key, hash);
+            if (entry != null && ObjectUtils.nullSafeEquals(entry.getValue(), oldValue)) {
+                entry.setValue(newValue);
+                return true;
+            }
+            return false;
+        }
+        finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        int hash = getHash(key);
+        Segment segment = getSegmentForHash(hash);
+        segment.lock();
+        try {
+            Entry<K, V> entry = segment.getEntry(key, hash);
+            return (entry != null ? entry.setValue(value) : null);
+        }
+        finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : this.segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Turn the slots of entries that have been garbage collected into tombstones. Under
+     * normal circumstances this happens as entries are added or removed.
+     */
+    public void purgeUnreferencedEntries() {
+        for (Segment segment : this.segments) {
+            segment.lock();
+            try {
+                segment.purge();
+            }
+            finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (this.entrySet == null) {
+            this.entrySet = new EntrySet();
+        }
+        return this.entrySet;
+    }
+
+    protected final int getSegmentsSize() {
+        return this.segments.length;
+    }
+
+    protected final Segment getSegment(int index) {
+        return this.segments[index];
+    }
+
+    private Segment getSegmentForHash(int hash) {
+        return this.segments[(hash >>> (32 - this.shift)) & (this.segments.length - 1)];
+    }
+
+    /**
+     * @return the live entry of an occupied slot or {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> Entry<K, V> entryOf(Object reference) {
+        if (reference == null || reference == TOMBSTONE) {
+            return null;
+        }
+        return ((java.lang.ref.Reference<Entry<K, V>>) reference).get();
+    }
+
+
+    /**
+     * A table of a segment. Replaced as a whole when the segment is rebuilt, its slots
+     * are written in place by the segment holding the lock.
+     */
+    private static final class Table {
+
+        private final AtomicIntegerArray hashes;
+
+        private final AtomicReferenceArray<Object> references;
+
+        Table(int size) {
+            this.hashes = new AtomicIntegerArray(size);
+            this.references = new AtomicReferenceArray<Object>(size);
+        }
+    }
+
+
+    /**
+     * A single segment used to divide the map to allow better concurrent performance.
+     * Writers hold the lock, readers probe the current table without it. A slot is
+     * written reference first and hash second, so a reader that sees a hash also sees
+     * a reference for it.
+     */
+    @SuppressWarnings("serial")
+    protected final class Segment extends ReentrantLock {
+
+        private final ReferenceQueue<Entry<K, V>> queue = new ReferenceQueue<Entry<K, V>>();
+
+        private final int initialSize;
+
+        private volatile Table table;
+
+        /**
+         * The number of slots holding a reference, including references that have been
+         * garbage collected but not purged.
+         */
+        private volatile int count;
+
+        /**
+         * The number of tombstones. Guarded by the lock.
+         */
+        private int tombstones;
+
+        private int threshold;
+
+        public Segment(int initialCapacity) {
+            this.initialSize = 1 << ConcurrentReferenceHashMap.calculateShift(
+                    Math.max(2, (int) Math.ceil(initialCapacity / ConcurrentReferenceOpenHashMap.this.loadFactor)),
+                    MAXIMUM_SEGMENT_SIZE);
+            setTable(new Table(this.initialSize));
+        }
+
+        Entry<K, V> getEntry(Object key, int hash) {
+            Table table = this.table;
+            AtomicIntegerArray hashes = table.hashes;
+            int mask = hashes.length() - 1;
+            for (int index = hash & mask, probes = 0; probes <= mask; index = (index + 1) & mask, probes++) {
+                int slotHash = hashes.get(index);
+                if (slotHash == 0) {
+                    return null;
+                }
+                if (slotHash == hash) {
+                    Entry<K, V> entry = entryOf(table.references.get(index));
+                    if (entry != null && ObjectUtils.nullSafeEquals(entry.getKey(), key)) {
+                        return entry;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the slot of the live entry of the key, {@code -1} if there is none.
+         * Only called while holding the lock.
+         */
+        private int indexOf(Table table, Object key, int hash) {
+            AtomicIntegerArray hashes = table.hashes;
+            int mask = hashes.length() - 1;
+            for (int index = hash & mask, probes = 0; probes <= mask; index = (index + 1) & mask, probes++) {
+                int slotHash = hashes.get(index);
+                if (slotHash == 0) {
+                    return -1;
+                }
+                if (slotHash == hash) {
+                    Entry<K, V> entry = entryOf(table.references.get(index));
+                    if (entry != null && ObjectUtils.nullSafeEquals(entry.getKey(), key)) {
+                        return index;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        V put(K key, int hash, V value, boolean overwriteExisting) {
+            lock();
+            try {
+                purge();
+                Table table = this.table;
+                int index = indexOf(table, key, hash);
+                // the entry may have been collected since it was found
+                Entry<K, V> entry = (index >= 0 ? entryOf(table.references.get(index)) : null);
+                if (entry != null) {
+                    V previousValue = entry.getValue();
+                    if (overwriteExisting) {
+                        entry.setValue(value);
+                    }
+                    return previousValue;
+                }
+                if (this.count + this.tombstones + 1 > this.threshold) {
+                    table = rebuild();
+                }
+                insert(table, hash, createReference(new ConcurrentReferenceHashMap.Entry<K, V>(key, value), hash));
+                this.count++;
+                return null;
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Put a reference in the first free slot of its probe sequence, reusing a
+         * tombstone if there is one. Only called while holding the lock.
+         */
+        private void insert(Table table, int hash, Object reference) {
+            AtomicIntegerArray hashes = table.hashes;
+            int mask = hashes.length() - 1;
+            int index = hash & mask;
+            while (hashes.get(index) != 0 && table.references.get(index) != TOMBSTONE) {
+                index = (index + 1) & mask;
+            }
+            if (hashes.get(index) != 0) {
+                this.tombstones--;
+            }
+            table.references.set(index, reference);
+            hashes.set(index, hash);
+        }
+
+        Entry<K, V> remove(Object key, int hash, boolean matchValue, Object value) {
+            if (this.count == 0) {
+                return null;
+            }
+            lock();
+            try {
+                Table table = this.table;
+                int index = indexOf(table, key, hash);
+                if (index < 0) {
+                    return null;
+                }
+                Object reference = table.references.get(index);
+                Entry<K, V> entry = entryOf(reference);
+                if (entry == null || (matchValue && !ObjectUtils.nullSafeEquals(entry.getValue(), value))) {
+                    return null;
+                }
+                bury(table, index);
+                // a cleared reference is never enqueued
+                ((java.lang.ref.Reference<?>) reference).clear();
+                return entry;
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        void clear() {
+            if (this.count == 0 && this.tombstones == 0) {
+                return;
+            }
+            lock();
+            try {
+                setTable(new Table(this.initialSize));
+                this.count = 0;
+                this.tombstones = 0;
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Turn the slots of collected references into tombstones. Only called while
+         * holding the lock.
+         */
+        void purge() {
+            java.lang.ref.Reference<? extends Entry<K, V>> reference;
+            while ((reference = this.queue.poll()) != null) {
+                Table table = this.table;
+                int hash = ((HashedReference) reference).getHash();
+                int mask = table.hashes.length() - 1;
+                for (int index = hash & mask, probes = 0; probes <= mask && table.hashes.get(index) != 0;
+                        index = (index + 1) & mask, probes++) {
+                    if (table.references.get(index) == reference) {
+                        bury(table, index);
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void bury(Table table, int index) {
+            table.references.set(index, TOMBSTONE);
+            this.count--;
+            this.tombstones++;
+        }
+
+        /**
+         * Move the live references to a new table, doubled unless most of the load was
+         * tombstones, and publish it. References are moved as they are. Only called
+         * while holding the lock.
+         */
+        private Table rebuild() {
+            Table table = this.table;
+            int size = table.hashes.length();
+            if ((this.count + 1) * 2 > this.threshold && size < MAXIMUM_SEGMENT_SIZE) {
+                size <<= 1;
+            }
+            Table rebuilt = new Table(size);
+            int live = 0;
+            for (int i = 0; i < table.hashes.length(); i++) {
+                Object reference = table.references.get(i);
+                if (entryOf(reference) != null) {
+                    insert(rebuilt, table.hashes.get(i), reference);
+                    live++;
+                }
+            }
+            // collected references left behind are not found when they are polled
+            this.count = live;
+            this.tombstones = 0;
+            setTable(rebuilt);
+            return rebuilt;
+        }
+
+        private void setTable(Table table) {
+            this.table = table;
+            this.threshold = (int) (table.hashes.length() * ConcurrentReferenceOpenHashMap.this.loadFactor);
+        }
+
+        private Object createReference(Entry<K, V> entry, int hash) {
+            if (ConcurrentReferenceOpenHashMap.this.referenceType == ReferenceType.WEAK) {
+                return new WeakSlotReference<K, V>(entry, hash, this.queue);
+            }
+            return new SoftSlotReference<K, V>(entry, hash, this.queue);
+        }
+
+        /**
+         * @return the number of slots of the current table
+         */
+        public final int getSize() {
+            return this.table.hashes.length();
+        }
+
+        /**
+         * @return the number of references, including collected ones not purged yet
+         */
+        public final int getCount() {
+            return this.count;
+        }
+    }
+
+
+    /**
+     * A reference that knows the hash of its entry, to find its slot once it has been
+     * collected.
+     */
+    private static interface HashedReference {
+
+        int getHash();
+    }
+
+
+    private static final class SoftSlotReference<K, V> extends SoftReference<Entry<K, V>> implements HashedReference {
+
+        private final int hash;
+
+        SoftSlotReference(Entry<K, V> entry, int hash, ReferenceQueue<Entry<K, V>> queue) {
+            super(entry, queue);
+            this.hash = hash;
+        }
+
+        @Override
+        public int getHash() {
+            return this.hash;
+        }
+    }
+
+
+    private static final class WeakSlotReference<K, V> extends WeakReference<Entry<K, V>> implements HashedReference {
+
+        private final int hash;
+
+        WeakSlotReference(Entry<K, V> entry, int hash, ReferenceQueue<Entry<K, V>> queue) {
+            super(entry, queue);
+            this.hash = hash;
+        }
+
+        @Override
+        public int getHash() {
+            return this.hash;
+        }
+    }
+
+
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (o instanceof Map.Entry<?, ?>) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+                Entry<K, V> other = getEntry(entry.getKey());
+                return (other != null && ObjectUtils.nullSafeEquals(entry.getValue(), other.getValue()));
+            }
+            return false;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (o instanceof Map.Entry<?, ?>) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+                return ConcurrentReferenceOpenHashMap.this.remove(entry.getKey(), entry.getValue());
+            }
+            return false;
+        }
+
+        @Override
+        public int size() {
+            return ConcurrentReferenceOpenHashMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentReferenceOpenHashMap.this.clear();
+        }
+    }
+
+
+    /**
+     * Weakly consistent iterator over the table each segment has when it is reached.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        private int segmentIndex;
+
+        private AtomicReferenceArray<Object> references;
+
+        private int index;
+
+        private Entry<K, V> next;
+
+        private Entry<K, V> last;
+
+        @Override
+        public boolean hasNext() {
+            getNextIfNecessary();
+            return (this.next != null);
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            getNextIfNecessary();
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.next;
+            this.next = null;
+            return this.last;
+        }
+
+        private void getNextIfNecessary() {
+            while (this.next == null) {
+                if (this.references == null || this.index >= this.references.length()) {
+                    if (this.segmentIndex >= ConcurrentReferenceOpenHashMap.this.segments.length) {
+                        return;
+                    }
+                    this.references = ConcurrentReferenceOpenHashMap.this.segments[this.segmentIndex++].table.references;
+                    this.index = 0;
+                }
+                else {
+                    this.next = entryOf(this.references.get(this.index++));
+                }
+            }
+        }
+
+        @Override
+        public void remove() {
+            Assert.isTrue(this.last != null);
+            ConcurrentReferenceOpenHashMap.this.remove(this.last.getKey());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.shock.utils.opensource;
+
+import com.shock.utils.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在后台清理 {@link ConcurrentReferenceHashMap} 中已经被回收的条目
+ *
+ * map 自己只在写入时清理, 读多写少的 map 里被回收的引用会一直留在表中。注册到 cleaner 后, 一个守护线程定期
+ * 依次排空各个 map 的引用队列, 每次最多处理 {@code maxPurgesPerTick} 个引用, 用完的 map 排到队尾, 下次先处理
+ * 没轮到的 map。只在能立刻拿到段锁时清理, 不会阻塞写入。
+ *
+ * 注册只持有 map 的弱引用, 不影响 map 被回收。
+ */
+public final class ReferenceCleaner {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReferenceCleaner.class);
+
+    private static final long DEFAULT_PERIOD_MILLIS = 1000;
+
+    private static final int DEFAULT_MAX_PURGES_PER_TICK = 1024;
+
+    private static volatile ReferenceCleaner shared;
+
+
+    private final long periodMillis;
+
+    private final int maxPurgesPerTick;
+
+    private final Queue<WeakReference<ConcurrentReferenceHashMap<?, ?>>> maps =
+            new ConcurrentLinkedQueue<WeakReference<ConcurrentReferenceHashMap<?, ?>>>();
+
+    private final AtomicLong purgedCount = new AtomicLong();
+
+    private final AtomicLong tickCount = new AtomicLong();
+
+    private ScheduledExecutorService executor;
+
+
+    /**
+     * Create a cleaner, its thread is started when the first map is registered.
+     * @param period the time between two ticks
+     * @param unit the unit of the period
+     * @param maxPurgesPerTick the maximum number of references drained in one tick
+     */
+    public ReferenceCleaner(long period, TimeUnit unit, int maxPurgesPerTick) {
+        Assert.isTrue(period > 0, "Period must be positive");
+        Assert.notNull(unit, "Time unit must not be null");
+        Assert.isTrue(maxPurgesPerTick > 0, "Max purges per tick must be positive");
+        this.periodMillis = Math.max(1, unit.toMillis(period));
+        this.maxPurgesPerTick = maxPurgesPerTick;
+    }
+
+
+    /**
+     * @return the cleaner shared by the whole jvm, ticking every second
+     */
+    public static ReferenceCleaner getShared() {
+        ReferenceCleaner cleaner = shared;
+        if (cleaner == null) {
+            synchronized (ReferenceCleaner.class) {
+                cleaner = shared;
+                if (cleaner == null) {
+                    cleaner = new ReferenceCleaner(DEFAULT_PERIOD_MILLIS, TimeUnit.MILLISECONDS,
+                            DEFAULT_MAX_PURGES_PER_TICK);
+                    shared = cleaner;
+                }
+            }
+        }
+        return cleaner;
+    }
+
+    /**
+     * Have the map drained by this cleaner, starting its thread if needed.
+     * @param map the map to clean
+     * @return the map
+     */
+    public <M extends ConcurrentReferenceHashMap<?, ?>> M register(M map) {
+        Assert.notNull(map, "Map must not be null");
+        this.maps.add(new WeakReference<ConcurrentReferenceHashMap<?, ?>>(map));
+        start();
+        return map;
+    }
+
+    /**
+     * Stop cleaning the map.
+     * @return whether the map was registered
+     */
+    public boolean unregister(ConcurrentReferenceHashMap<?, ?> map) {
+        for (Iterator<WeakReference<ConcurrentReferenceHashMap<?, ?>>> it = this.maps.iterator(); it.hasNext(); ) {
+            if (it.next().get() == map) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drain the reference queues of the registered maps, at most {@code maxPurgesPerTick}
+     * references in total. Called by the cleaner thread, can be called directly.
+     * @return the number of references drained
+     */
+    public int tick() {
+        int budget = this.maxPurgesPerTick;
+        int remaining = this.maps.size();
+        while (remaining-- > 0 && budget > 0) {
+            WeakReference<ConcurrentReferenceHashMap<?, ?>> reference = this.maps.poll();
+            if (reference == null) {
+                break;
+            }
+            ConcurrentReferenceHashMap<?, ?> map = reference.get();
+            if (map != null) {
+                budget -= map.drainReferenceQueues(budget);
+                // maps not reached in this tick go first in the next one
+                this.maps.add(reference);
+            }
+        }
+        int purged = this.maxPurgesPerTick - budget;
+        this.purgedCount.addAndGet(purged);
+        this.tickCount.incrementAndGet();
+        return purged;
+    }
+
+    /**
+     * Stop the cleaner thread, registering another map starts it again.
+     */
+    public synchronized void shutdown() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+    /**
+     * @return the number of references drained by this cleaner
+     */
+    public long getPurgedCount() {
+        return this.purgedCount.get();
+    }
+
+    /**
+     * @return the number of ticks run so far
+     */
+    public long getTickCount() {
+        return this.tickCount.get();
+    }
+
+    /**
+     * @return the number of registered maps, including maps collected since the last tick
+     */
+    public int getRegisteredCount() {
+        return this.maps.size();
+    }
+
+    private synchronized void start() {
+        if (this.executor != null) {
+            return;
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "reference-cleaner");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick();
+                }
+                catch (Throwable ex) {
+                    // keep the cleaner alive
+                    logger.warn("Failed to drain reference queues", ex);
+                }
+            }
+        }, this.periodMillis, this.periodMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -14,6 +14,7 @@ package com.shock.utils.opensource;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import com.shock.utils.ReflectionUtil;
 import com.shock.utils.exception.ReflectionException;
 
 import java.lang.reflect.AccessibleObject;
@@ -206,7 +207,7 @@ public class Reflect {
     public Reflect set(String name, Object value) throws ReflectionException {
         try {
             Field field = field0(name);
-            field.set(object, unwrap(value));
+            ReflectionUtil.accessor(field).set(object, unwrap(value));
             return this;
         }
         catch (Exception e) {
@@ -249,7 +250,7 @@ public class Reflect {
     public Reflect field(String name) throws ReflectionException {
         try {
             Field field = field0(name);
-            return on(field.get(object));
+            return on(ReflectionUtil.accessor(field).get(object));
         }
         catch (Exception e) {
             throw new ReflectionException(e);
@@ -0,0 +1,107 @@
+package com.shock.utils.opensource;
+
+import java.util.Arrays;
+
+/**
+ * {@link ConcurrentReferenceHashMap} 一个段的统计快照
+ *
+ * 加锁次数和其中需要等待的次数只在 map 开启统计后记录, 扩容次数、清理次数和链长分布一直可用。
+ * 计数不加锁读取, 可能略有滞后。
+ */
+public final class SegmentStatistics {
+
+    /**
+     * The number of chain length buckets, the last one counts chains of this length
+     * minus one or longer.
+     */
+    public static final int CHAIN_LENGTHS = 8;
+
+    private final long lockAcquisitions;
+
+    private final long contendedAcquisitions;
+
+    private final long resizes;
+
+    private final long purges;
+
+    private final int count;
+
+    private final int tableSize;
+
+    private final long[] chainLengths;
+
+
+    SegmentStatistics(long lockAcquisitions, long contendedAcquisitions, long resizes, long purges,
+            int count, int tableSize, long[] chainLengths) {
+        this.lockAcquisitions = lockAcquisitions;
+        this.contendedAcquisitions = contendedAcquisitions;
+        this.resizes = resizes;
+        this.purges = purges;
+        this.count = count;
+        this.tableSize = tableSize;
+        this.chainLengths = chainLengths;
+    }
+
+
+    public long getLockAcquisitions() {
+        return this.lockAcquisitions;
+    }
+
+    /**
+     * @return the number of lock acquisitions that had to wait for another thread
+     */
+    public long getContendedAcquisitions() {
+        return this.contendedAcquisitions;
+    }
+
+    /**
+     * @return the ratio of contended to all lock acquisitions, {@code 0} if there were none
+     */
+    public double getContentionRate() {
+        return (this.lockAcquisitions == 0 ? 0.0 : (double) this.contendedAcquisitions / this.lockAcquisitions);
+    }
+
+    /**
+     * @return the number of resizes started
+     */
+    public long getResizes() {
+        return this.resizes;
+    }
+
+    /**
+     * @return the number of collected or removed references unlinked from the table
+     */
+    public long getPurges() {
+        return this.purges;
+    }
+
+    /**
+     * @return the number of references, including collected ones not purged yet
+     */
+    public int getCount() {
+        return this.count;
+    }
+
+    public int getTableSize() {
+        return this.tableSize;
+    }
+
+    /**
+     * @return the number of buckets by chain length, index {@code i} counts the chains of
+     * {@code i} references, the last index the chains of that many or more
+     */
+    public long[] getChainLengths() {
+        return this.chainLengths.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentStatistics{lockAcquisitions=" + this.lockAcquisitions +
+                ", contendedAcquisitions=" + this.contendedAcquisitions +
+                ", resizes=" + this.resizes +
+                ", purges=" + this.purges +
+                ", count=" + this.count +
+                ", tableSize=" + this.tableSize +
+                ", chainLengths=" + Arrays.toString(this.chainLengths) + "}";
+    }
+}
@@ -0,0 +1,92 @@
+package com.shock.utils.opensource;
+
+import java.util.List;
+
+/**
+ * 根据 {@link ConcurrentReferenceHashMap} 的段统计给出构造参数建议
+ *
+ * 锁等待比例高于 5% 时段数加倍 (高于 20% 时翻两番), 样本足够且低于 0.1% 时减半, 否则保持不变。
+ * 初始容量按条目最多的段计算, 保证同样的负载下不再扩容。
+ */
+public final class SizingAdvice {
+
+    /**
+     * The lock acquisitions needed before the concurrency level is changed.
+     */
+    static final long MIN_SAMPLES = 1000;
+
+    static final double HIGH_CONTENTION = 0.05;
+
+    static final double VERY_HIGH_CONTENTION = 0.2;
+
+    static final double LOW_CONTENTION = 0.001;
+
+    private static final int MAXIMUM_CONCURRENCY_LEVEL = 1 << 16;
+
+    private final int concurrencyLevel;
+
+    private final int initialCapacity;
+
+    private final double contentionRate;
+
+
+    SizingAdvice(int concurrencyLevel, int initialCapacity, double contentionRate) {
+        this.concurrencyLevel = concurrencyLevel;
+        this.initialCapacity = initialCapacity;
+        this.contentionRate = contentionRate;
+    }
+
+
+    static SizingAdvice of(List<SegmentStatistics> statistics, float loadFactor) {
+        int segments = statistics.size();
+        long acquisitions = 0;
+        long contended = 0;
+        int maxCount = 0;
+        for (SegmentStatistics segment : statistics) {
+            acquisitions += segment.getLockAcquisitions();
+            contended += segment.getContendedAcquisitions();
+            maxCount = Math.max(maxCount, segment.getCount());
+        }
+        double contentionRate = (acquisitions == 0 ? 0.0 : (double) contended / acquisitions);
+        int concurrencyLevel = segments;
+        if (acquisitions >= MIN_SAMPLES) {
+            if (contentionRate > VERY_HIGH_CONTENTION) {
+                concurrencyLevel = segments << 2;
+            }
+            else if (contentionRate > HIGH_CONTENTION) {
+                concurrencyLevel = segments << 1;
+            }
+            else if (contentionRate < LOW_CONTENTION) {
+                concurrencyLevel = Math.max(1, segments >> 1);
+            }
+        }
+        concurrencyLevel = Math.min(concurrencyLevel, MAXIMUM_CONCURRENCY_LEVEL);
+        // a segment resizes once its count reaches table size * load factor
+        long perSegment = (long) (maxCount / loadFactor) + 1;
+        int initialCapacity = (int) Math.min(Integer.MAX_VALUE, perSegment * segments);
+        return new SizingAdvice(concurrencyLevel, initialCapacity, contentionRate);
+    }
+
+
+    public int getConcurrencyLevel() {
+        return this.concurrencyLevel;
+    }
+
+    public int getInitialCapacity() {
+        return this.initialCapacity;
+    }
+
+    /**
+     * @return the ratio of contended to all lock acquisitions the advice is based on
+     */
+    public double getContentionRate() {
+        return this.contentionRate;
+    }
+
+    @Override
+    public String toString() {
+        return "SizingAdvice{concurrencyLevel=" + this.concurrencyLevel +
+                ", initialCapacity=" + this.initialCapacity +
+                ", contentionRate=" + this.contentionRate + "}";
+    }
+}
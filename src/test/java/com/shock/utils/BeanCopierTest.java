@@ -0,0 +1,159 @@
+package com.shock.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class BeanCopierTest {
+
+    @Test
+    public void testCopyCompatibleProperties() {
+        BeanCopier copier = BeanCopier.create(UserDto.class, User.class);
+        assertEquals(Arrays.asList("id", "name", "age", "score", "active", "created"), copier.getPropertyNames());
+
+        UserDto dto = new UserDto();
+        dto.id = 42L;
+        dto.name = "shock";
+        dto.age = 30;
+        dto.score = 0.5;
+        dto.active = true;
+        dto.created = new java.sql.Date(1000L);
+        dto.level = 3;
+        User user = new User();
+        copier.copy(dto, user);
+        assertEquals(42L, user.id);
+        assertEquals("shock", user.name);
+        assertEquals(30, user.age);
+        assertEquals(0.5, user.score, 0.0);
+        assertTrue(user.active);
+        assertSame(dto.created, user.created);
+        // int to String is not compatible without a converter
+        assertNull(user.level);
+        assertEquals("fixed", user.fixed);
+    }
+
+    @Test
+    public void testCopyWithConverter() {
+        BeanCopier copier = BeanCopier.create(UserDto.class, User.class, true);
+        UserDto dto = new UserDto();
+        dto.name = "shock";
+        dto.age = 30;
+        dto.level = 3;
+        User user = new User();
+        copier.copy(dto, user, new BeanCopier.Converter() {
+            @Override
+            public Object convert(Object value, Class<?> targetType, String propertyName) {
+                if (targetType == String.class && value != null) {
+                    return value.toString();
+                }
+                return value;
+            }
+        });
+        assertEquals("shock", user.name);
+        assertEquals(30, user.age);
+        assertEquals("3", user.level);
+        try {
+            copier.copy(dto, user);
+            fail();
+        }
+        catch (IllegalArgumentException ex) {
+            // needs a converter
+        }
+    }
+
+    @Test
+    public void testCopiersAreCached() {
+        assertSame(BeanCopier.create(UserDto.class, User.class), BeanCopier.create(UserDto.class, User.class));
+        assertNotSame(BeanCopier.create(UserDto.class, User.class),
+                BeanCopier.create(UserDto.class, User.class, true));
+    }
+
+    @Test
+    public void testWrongInstancesAreRejected() {
+        BeanCopier copier = BeanCopier.create(UserDto.class, User.class);
+        try {
+            copier.copy(new User(), new User());
+            fail();
+        }
+        catch (IllegalArgumentException ex) {
+            // not a source
+        }
+        try {
+            copier.copy(new UserDto(), null);
+            fail();
+        }
+        catch (IllegalArgumentException ex) {
+            // no target
+        }
+    }
+
+    @Test
+    public void testJdkSuperclass() {
+        // the private state of ArrayList cannot be opened on java 9+ and is skipped
+        BeanCopier copier = BeanCopier.create(TagsDto.class, Tags.class);
+        TagsDto dto = new TagsDto();
+        dto.add("a");
+        dto.owner = "shock";
+        Tags tags = new Tags();
+        copier.copy(dto, tags);
+        assertEquals("shock", tags.owner);
+    }
+
+
+    @SuppressWarnings("serial")
+    private static class TagsDto extends ArrayList<String> {
+
+        String owner;
+    }
+
+    @SuppressWarnings("serial")
+    private static class Tags extends ArrayList<String> {
+
+        String owner;
+    }
+
+    private static class BaseDto {
+
+        long id;
+    }
+
+    private static class UserDto extends BaseDto {
+
+        String name;
+
+        int age;
+
+        double score;
+
+        boolean active;
+
+        java.sql.Date created;
+
+        int level;
+
+        String fixed = "changed";
+    }
+
+    private static class User {
+
+        long id;
+
+        String name;
+
+        int age;
+
+        double score;
+
+        boolean active;
+
+        Date created;
+
+        String level;
+
+        final String fixed = "fixed";
+    }
+}
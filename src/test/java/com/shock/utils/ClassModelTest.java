@@ -0,0 +1,129 @@
+package com.shock.utils;
+
+import org.junit.Test;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ClassModelTest {
+
+    @Test
+    public void testFieldsAreFlattenedSuperclassFirst() {
+        ClassModel model = ReflectionUtil.classModel(Child.class);
+        assertEquals(names(new String[] {"id", "label", "age", "nickname"}), fieldNames(model.getFields()));
+        for (Field field : model.getFields()) {
+            assertTrue(field.isAccessible());
+        }
+        assertSame(model, ReflectionUtil.classModel(Child.class));
+        try {
+            model.getFields().clear();
+            fail();
+        }
+        catch (UnsupportedOperationException ex) {
+            // immutable
+        }
+    }
+
+    @Test
+    public void testAnnotationIndex() {
+        ClassModel model = ReflectionUtil.classModel(Child.class);
+        assertEquals(names(new String[] {"id", "age"}), fieldNames(model.getFields(Key.class)));
+        assertEquals(names(new String[] {"label", "nickname"}), fieldNames(model.getFields(Text.class)));
+        assertEquals(names(new String[] {"id", "label", "age", "nickname"}),
+                fieldNames(model.getFields(Key.class, Text.class)));
+        assertTrue(model.getFields(Override.class).isEmpty());
+        assertEquals(1, model.getMethods(Key.class).size());
+        assertEquals("key", model.getMethods(Key.class).get(0).getName());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGetAllFieldsUsesTheModel() {
+        List<Field> fields = ReflectionUtil.getAllFields(Child.class, Key.class);
+        assertEquals(names(new String[] {"id", "age"}), fieldNames(fields));
+        // a copy the caller may change
+        fields.clear();
+        assertEquals(2, ReflectionUtil.getAllFields(Child.class, Key.class).size());
+        assertEquals(4, ReflectionUtil.getAllFields(Child.class).size());
+        List<Method> methods = ReflectionUtil.getAllMethods(Child.class, Key.class);
+        assertEquals(1, methods.size());
+        assertTrue(ReflectionUtil.getAllFields(null).isEmpty());
+    }
+
+    @Test
+    public void testJdkSuperclass() {
+        // the private members of java.util cannot be opened on java 9+, they must not break the model
+        Method add = ReflectionUtil.getMethod(Items.class, "add");
+        assertNotNull(add);
+        assertEquals(ArrayList.class, add.getDeclaringClass());
+        Field owner = ReflectionUtil.getField(Items.class, "owner");
+        assertEquals(Items.class, owner.getDeclaringClass());
+        assertTrue(owner.isAccessible());
+        assertNotNull(ReflectionUtil.getField(Items.class, "size"));
+        List<Field> fields = ReflectionUtil.getAllFields(Items.class);
+        assertEquals(owner, fields.get(fields.size() - 1));
+        assertFalse(ReflectionUtil.getAllMethods(Items.class).isEmpty());
+        assertEquals(1, ReflectionUtil.classModel(Items.class).getFields(Text.class).size());
+    }
+
+    private static List<String> names(String[] names) {
+        List<String> result = new ArrayList<String>();
+        for (String name : names) {
+            result.add(name);
+        }
+        return result;
+    }
+
+    private static List<String> fieldNames(List<Field> fields) {
+        List<String> names = new ArrayList<String>();
+        for (Field field : fields) {
+            names.add(field.getName());
+        }
+        return names;
+    }
+
+
+    @Retention(RetentionPolicy.RUNTIME)
+    private @interface Key {
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    private @interface Text {
+    }
+
+    @SuppressWarnings("serial")
+    private static class Items extends ArrayList<String> {
+
+        @Text
+        private String owner;
+    }
+
+    private static class Parent {
+
+        @Key
+        private long id;
+
+        @Text
+        private String label;
+    }
+
+    private static class Child extends Parent {
+
+        @Key
+        private int age;
+
+        @Text
+        private String nickname;
+
+        @Key
+        String key() {
+            return this.nickname + this.age;
+        }
+    }
+}
@@ -0,0 +1,559 @@
+package com.shock.utils;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentLRUMapTest {
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(3, 1);
+        map.put("a", "1");
+        map.put("b", "2");
+        map.put("c", "3");
+        map.get("a");
+        map.put("d", "4");
+        assertEquals(3, map.size());
+        assertTrue(map.containsKey("a"));
+        assertFalse(map.containsKey("b"));
+        assertTrue(map.containsKey("c"));
+        assertTrue(map.containsKey("d"));
+    }
+
+    @Test
+    public void testReadBufferedHitsAreReplayedBeforeEviction() {
+        ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap.Builder<String, String>(3)
+                .concurrencyLevel(1).readBuffered(true).build();
+        map.put("a", "1");
+        map.put("b", "2");
+        map.put("c", "3");
+        assertEquals("1", map.get("a"));
+        map.put("d", "4");
+        assertEquals(3, map.size());
+        assertTrue(map.containsKey("a"));
+        assertFalse(map.containsKey("b"));
+    }
+
+    @Test
+    public void testTinyLfuSurvivesScans() {
+        ConcurrentLRUMap<Integer, Integer> lru = new ConcurrentLRUMap.Builder<Integer, Integer>(200)
+                .concurrencyLevel(1).build();
+        ConcurrentLRUMap<Integer, Integer> tinyLfu = new ConcurrentLRUMap.Builder<Integer, Integer>(200)
+                .concurrencyLevel(1).evictionPolicy(ConcurrentLRUMap.EvictionPolicy.TINY_LFU).build();
+        double lruHitRate = hitRate(lru);
+        double tinyLfuHitRate = hitRate(tinyLfu);
+        assertTrue("lru " + lruHitRate + ", tinylfu " + tinyLfuHitRate, tinyLfuHitRate > lruHitRate);
+        assertTrue(tinyLfu.size() <= 200);
+    }
+
+    /**
+     * Skewed requests over 150 hot keys, interrupted by scans over keys that are never
+     * requested again.
+     */
+    private double hitRate(ConcurrentLRUMap<Integer, Integer> map) {
+        Random random = new Random(42);
+        int hits = 0;
+        int requests = 0;
+        int scanKey = 1000000;
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 2000; i++) {
+                double u = random.nextDouble();
+                int key = (int) (150 * u * u);
+                requests++;
+                if (map.get(key) != null) {
+                    hits++;
+                } else {
+                    map.put(key, key);
+                }
+            }
+            for (int i = 0; i < 500; i++) {
+                requests++;
+                map.put(scanKey, scanKey);
+                scanKey++;
+            }
+        }
+        return (double) hits / requests;
+    }
+
+    @Test
+    public void testWeightedCapacity() {
+        Weigher<String, String> weigher = new Weigher<String, String>() {
+            @Override
+            public int weigh(String key, String value) {
+                return value.length();
+            }
+        };
+        ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap.Builder<String, String>(10, weigher)
+                .concurrencyLevel(1).build();
+        map.put("a", "aaaa");
+        map.put("b", "bbbb");
+        assertEquals(8, map.weightedSize());
+        map.put("c", "cccc");
+        assertFalse(map.containsKey("a"));
+        assertEquals(8, map.weightedSize());
+        map.put("b", "b");
+        assertEquals(5, map.weightedSize());
+        map.put("d", "ddddddddddd");
+        assertFalse(map.containsKey("d"));
+        assertTrue(map.containsKey("b"));
+        assertTrue(map.containsKey("c"));
+        assertEquals(-1, map.getMaxSize());
+        assertEquals(10, map.getMaxWeight());
+    }
+
+    @Test
+    public void testSegmentBudgetsAddUpToMaxSize() {
+        ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(100, 16);
+        for (int i = 0; i < 10000; i++) {
+            map.put(i, i);
+        }
+        assertTrue(map.size() <= 100);
+        ConcurrentLRUMap<Integer, Integer> small = new ConcurrentLRUMap<Integer, Integer>(3, 16);
+        for (int i = 0; i < 100; i++) {
+            small.put(i, i);
+        }
+        assertTrue(small.size() <= 3);
+        assertTrue(small.size() > 0);
+    }
+
+    @Test
+    public void testConditionalOperations() {
+        ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+        assertNull(map.putIfAbsent("a", "1"));
+        assertEquals("1", map.putIfAbsent("a", "2"));
+        assertFalse(map.replace("a", "2", "3"));
+        assertTrue(map.replace("a", "1", "3"));
+        assertEquals("3", map.replace("a", "4"));
+        assertFalse(map.remove("a", "3"));
+        assertTrue(map.remove("a", "4"));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testExpireAfterWrite() {
+        FakeTicker ticker = new FakeTicker();
+        ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap.Builder<String, String>(10)
+                .concurrencyLevel(1).expireAfterWrite(10, TimeUnit.SECONDS).ticker(ticker).build();
+        map.put("a", "1");
+        ticker.advance(6, TimeUnit.SECONDS);
+        map.put("b", "2");
+        assertEquals("1", map.get("a"));
+        ticker.advance(6, TimeUnit.SECONDS);
+        assertNull(map.get("a"));
+        assertFalse(map.containsKey("a"));
+        assertEquals("2", map.get("b"));
+        map.put("b", "3");
+        ticker.advance(6, TimeUnit.SECONDS);
+        assertEquals("3", map.get("b"));
+        ticker.advance(TimeUnit.DAYS.toNanos(30), TimeUnit.NANOSECONDS);
+        map.cleanUp();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testExpireAfterAccess() {
+        FakeTicker ticker = new FakeTicker();
+        ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap.Builder<Integer, Integer>(2000)
+                .concurrencyLevel(1).expireAfterAccess(1, TimeUnit.MINUTES).ticker(ticker).build();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+        for (int minute = 0; minute < 5; minute++) {
+            ticker.advance(40, TimeUnit.SECONDS);
+            assertEquals(Integer.valueOf(0), map.get(0));
+        }
+        map.cleanUp();
+        assertEquals(1, map.size());
+        assertTrue(map.containsKey(0));
+        ticker.advance(2, TimeUnit.MINUTES);
+        map.cleanUp();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final LoadingLRUMap<String, String> map = new ConcurrentLRUMap.Builder<String, String>(10)
+                .build(new CallBack<String, String>() {
+                    @Override
+                    public String execute(String key) {
+                        loads.incrementAndGet();
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException ex) {
+                            throw new IllegalStateException(ex);
+                        }
+                        return key + "!";
+                    }
+                });
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        assertEquals("a!", map.get("a"));
+                    } catch (Throwable ex) {
+                        failure.set(ex);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        started.await();
+        Thread.sleep(50);
+        release.countDown();
+        done.await();
+        assertNull(failure.get());
+        assertEquals(1, loads.get());
+        assertEquals("a!", map.getIfPresent("a"));
+    }
+
+    @Test
+    public void testLoaderFailureIsPropagated() {
+        LoadingLRUMap<String, String> map = new ConcurrentLRUMap.Builder<String, String>(10)
+                .build(new CallBack<String, String>() {
+                    @Override
+                    public String execute(String key) {
+                        throw new UnsupportedOperationException(key);
+                    }
+                });
+        try {
+            map.get("a");
+            fail();
+        } catch (UnsupportedOperationException ex) {
+            assertEquals("a", ex.getMessage());
+        }
+        assertTrue(map.asMap().isEmpty());
+    }
+
+    @Test
+    public void testRecursiveLoadIsRejected() {
+        final ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+        CallBack<String, String> loader = new CallBack<String, String>() {
+            @Override
+            public String execute(String key) {
+                if (key.equals("a")) {
+                    return map.get("b", this) + map.get("a", this);
+                }
+                return key;
+            }
+        };
+        try {
+            map.get("a", loader);
+            fail();
+        } catch (IllegalStateException ex) {
+            // the load of "a" waits for itself
+        }
+        // loading other keys from a loader is fine and the failed load is not left behind
+        assertEquals("b", map.get("b"));
+        assertFalse(map.containsKey("a"));
+        assertEquals("c", map.get("c", loader));
+    }
+
+    @Test
+    public void testRefreshAfterWriteServesStaleValue() {
+        FakeTicker ticker = new FakeTicker();
+        final AtomicInteger version = new AtomicInteger();
+        final List<Runnable> refreshes = new ArrayList<Runnable>();
+        LoadingLRUMap<String, Integer> map = new ConcurrentLRUMap.Builder<String, Integer>(10)
+                .refreshAfterWrite(1, TimeUnit.MINUTES).ticker(ticker)
+                .refreshExecutor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        refreshes.add(command);
+                    }
+                })
+                .build(new CallBack<Integer, String>() {
+                    @Override
+                    public Integer execute(String key) {
+                        return version.incrementAndGet();
+                    }
+                });
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        assertTrue(refreshes.isEmpty());
+        ticker.advance(2, TimeUnit.MINUTES);
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        assertEquals(1, refreshes.size());
+        refreshes.get(0).run();
+        assertEquals(Integer.valueOf(2), map.get("a"));
+        assertEquals(1, refreshes.size());
+    }
+
+    @Test
+    public void testRecordStats() throws Exception {
+        final FakeTicker ticker = new FakeTicker();
+        LoadingLRUMap<Integer, Integer> map = new ConcurrentLRUMap.Builder<Integer, Integer>(2)
+                .concurrencyLevel(1).recordStats().ticker(ticker)
+                .build(new CallBack<Integer, Integer>() {
+                    @Override
+                    public Integer execute(Integer key) {
+                        ticker.advance(1000, TimeUnit.NANOSECONDS);
+                        return key;
+                    }
+                });
+        map.get(1);
+        map.get(1);
+        map.get(2);
+        map.get(3);
+        assertNull(map.getIfPresent(4));
+        CacheStats stats = map.asMap().stats();
+        assertEquals(1, stats.hitCount());
+        assertEquals(4, stats.missCount());
+        assertEquals(3, stats.putCount());
+        assertEquals(1, stats.evictionCount());
+        assertEquals(3, stats.loadSuccessCount());
+        assertEquals(3000, stats.totalLoadTime());
+        assertEquals(3, stats.loadTimeHistogram()[9]);
+        assertEquals(1023, stats.loadTimePercentile(99));
+        assertEquals(0, stats.minus(stats).requestCount());
+
+        ObjectName name = map.asMap().registerMXBean("testRecordStats");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "HitCount"));
+            assertEquals(2, server.getAttribute(name, "Size"));
+        } finally {
+            map.asMap().unregisterMXBean("testRecordStats");
+        }
+        assertFalse(new ConcurrentLRUMap<Integer, Integer>(2).isRecordingStats());
+    }
+
+    @Test
+    public void testSnapshotInChunks() {
+        ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(1000);
+        for (int i = 0; i < 250; i++) {
+            map.put(i, i);
+        }
+        final List<Integer> chunkSizes = new ArrayList<Integer>();
+        final Set<Integer> keys = new HashSet<Integer>();
+        long copied = map.snapshot(100, new CallBackNoReturn<List<Map.Entry<Integer, Integer>>>() {
+            @Override
+            public void execute(List<Map.Entry<Integer, Integer>> chunk) {
+                chunkSizes.add(chunk.size());
+                for (Map.Entry<Integer, Integer> entry : chunk) {
+                    keys.add(entry.getKey());
+                }
+            }
+        });
+        assertEquals(250, copied);
+        assertEquals(Arrays.asList(100, 100, 50), chunkSizes);
+        assertEquals(250, keys.size());
+        assertEquals(250, map.snapshot().size());
+    }
+
+    @Test
+    public void testIterateWhileModifying() {
+        ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(1000, 1);
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        int seen = 0;
+        for (Iterator<Integer> iterator = map.keySet().iterator(); iterator.hasNext(); ) {
+            Integer key = iterator.next();
+            map.put(key + 1000, key);
+            map.get(key);
+            if (key % 2 == 0) {
+                iterator.remove();
+            }
+            seen++;
+        }
+        assertTrue(seen >= 100);
+        for (int i = 0; i < 100; i += 2) {
+            assertFalse(map.containsKey(i));
+        }
+    }
+
+    @Test
+    public void testOffHeapTier() {
+        ConcurrentLRUMap<Integer, String> map = new ConcurrentLRUMap.Builder<Integer, String>(10)
+                .concurrencyLevel(1).recordStats().offHeap(1 << 16, new SerializableCodec<String>()).build();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, "value" + i);
+        }
+        assertEquals(100, map.size());
+        assertEquals(1 << 16, map.offHeapAllocated());
+        assertEquals(0, map.stats().evictionCount());
+        assertTrue(map.containsKey(0));
+        assertEquals("value0", map.get(0));
+        assertEquals("value1", map.remove(1));
+        assertFalse(map.containsKey(1));
+        assertTrue(map.replace(2, "value2", "two"));
+        assertEquals("two", map.get(2));
+        assertEquals("value3", map.putIfAbsent(3, "three"));
+        assertTrue(map.containsValue("value4"));
+        assertEquals(99, map.size());
+        assertEquals(99, map.snapshot().size());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.offHeapAllocated());
+    }
+
+    @Test
+    public void testOffHeapTierEvictsWhenFull() {
+        ConcurrentLRUMap<Integer, byte[]> map = new ConcurrentLRUMap.Builder<Integer, byte[]>(10)
+                .concurrencyLevel(1).recordStats().offHeap(4096, new Codec<byte[]>() {
+                    @Override
+                    public byte[] encode(byte[] value) {
+                        return value;
+                    }
+
+                    @Override
+                    public byte[] decode(byte[] bytes) {
+                        return bytes;
+                    }
+                }).build();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, new byte[100]);
+        }
+        // 10 on the heap, 4096 / 128 chunks off the heap
+        assertEquals(42, map.size());
+        assertEquals(58, map.stats().evictionCount());
+        assertFalse(map.containsKey(0));
+        assertNotNull(map.get(60));
+    }
+
+    @Test
+    public void testOffHeapTierMixesValueSizes() {
+        // four pages of 64 KB for one segment
+        ConcurrentLRUMap<Integer, byte[]> map = new ConcurrentLRUMap.Builder<Integer, byte[]>(1)
+                .concurrencyLevel(1).recordStats().offHeap(1 << 18, new Codec<byte[]>() {
+                    @Override
+                    public byte[] encode(byte[] value) {
+                        return value;
+                    }
+
+                    @Override
+                    public byte[] decode(byte[] bytes) {
+                        return bytes;
+                    }
+                }).build();
+        int[] sizes = {100, 1000, 10000};
+        for (int i = 0; i < 24; i++) {
+            map.put(i, new byte[sizes[i % 3]]);
+        }
+        assertEquals(24, map.size());
+        assertEquals(0, map.stats().evictionCount());
+        for (int i = 0; i < 24; i++) {
+            assertEquals(sizes[i % 3], map.get(i).length);
+        }
+        // the pages of the large values go back to the pool and take small ones
+        for (int i = 2; i < 24; i += 3) {
+            map.remove(i);
+        }
+        for (int i = 100; i < 228; i++) {
+            map.put(i, new byte[1000]);
+        }
+        assertEquals(0, map.stats().evictionCount());
+        assertEquals(1 << 18, map.offHeapAllocated());
+        // a large value empties a page of another size
+        map.put(1000, new byte[10000]);
+        map.put(1001, new byte[10]);
+        assertTrue(map.containsKey(1000));
+        assertTrue(map.stats().evictionCount() > 0);
+        // larger than a page
+        map.put(2000, new byte[1 << 17]);
+        long evictions = map.stats().evictionCount();
+        map.put(2001, new byte[10]);
+        assertFalse(map.containsKey(2000));
+        assertEquals(1, map.offHeapRejectedCount());
+        assertEquals(evictions + 1, map.stats().evictionCount());
+    }
+
+    @Test
+    public void testOffHeapCapacityTooSmallForSegments() {
+        ConcurrentLRUMap.Builder<String, String> builder = new ConcurrentLRUMap.Builder<String, String>(100)
+                .concurrencyLevel(16).offHeap(1000, new SerializableCodec<String>());
+        try {
+            builder.build();
+            fail();
+        }
+        catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("16 segments"));
+        }
+        ConcurrentLRUMap<String, String> map = builder.offHeap(1024, new SerializableCodec<String>()).build();
+        assertEquals(0, map.offHeapAllocated());
+    }
+
+    private static final class FakeTicker extends Ticker {
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return this.nanos.get();
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            this.nanos.addAndGet(unit.toNanos(duration));
+        }
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        checkConcurrentAccess(new ConcurrentLRUMap<Integer, Integer>(500));
+        checkConcurrentAccess(new ConcurrentLRUMap.Builder<Integer, Integer>(500).readBuffered(true).build());
+        checkConcurrentAccess(new ConcurrentLRUMap.Builder<Integer, Integer>(500).readBuffered(true)
+                .evictionPolicy(ConcurrentLRUMap.EvictionPolicy.TINY_LFU).build());
+    }
+
+    private void checkConcurrentAccess(final ConcurrentLRUMap<Integer, Integer> map) throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            int key = (i * 31 + seed) % 2000;
+                            Integer value = map.get(key);
+                            if (value != null && value != key) {
+                                throw new AssertionError("wrong value for " + key);
+                            }
+                            map.put(key, key);
+                        }
+                        for (Integer key : map.keySet()) {
+                            assertNotNull(key);
+                        }
+                    } catch (Throwable ex) {
+                        failure.set(ex);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        assertNull(failure.get());
+        assertTrue(map.size() <= 500);
+    }
+}
@@ -0,0 +1,149 @@
+package com.shock.utils;
+
+import org.junit.Test;
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.*;
+
+public class FieldAccessorTest {
+
+    private static Unsafe unsafe() throws Exception {
+        Field field = Unsafe.class.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        return (Unsafe) field.get(null);
+    }
+
+    private static FieldAccessor unsafeAccessor(String name) throws Exception {
+        return FieldAccessor.create(Sample.class.getDeclaredField(name), unsafe());
+    }
+
+    private static FieldAccessor handleAccessor(String name) throws Exception {
+        return FieldAccessor.create(Sample.class.getDeclaredField(name), null);
+    }
+
+    @Test
+    public void testUnsafeAccessor() throws Exception {
+        assertTrue(unsafeAccessor("count").toString().startsWith("UnsafeAccessor"));
+        checkAccessors(true);
+    }
+
+    @Test
+    public void testHandleAccessor() throws Exception {
+        assertTrue(handleAccessor("count").toString().startsWith("HandleAccessor"));
+        checkAccessors(false);
+    }
+
+    private void checkAccessors(boolean useUnsafe) throws Exception {
+        Sample sample = new Sample();
+        FieldAccessor count = (useUnsafe ? unsafeAccessor("count") : handleAccessor("count"));
+        FieldAccessor total = (useUnsafe ? unsafeAccessor("total") : handleAccessor("total"));
+        FieldAccessor name = (useUnsafe ? unsafeAccessor("name") : handleAccessor("name"));
+        FieldAccessor flag = (useUnsafe ? unsafeAccessor("flag") : handleAccessor("flag"));
+        FieldAccessor ratio = (useUnsafe ? unsafeAccessor("ratio") : handleAccessor("ratio"));
+        FieldAccessor shared = (useUnsafe ? unsafeAccessor("shared") : handleAccessor("shared"));
+
+        count.setInt(sample, 7);
+        assertEquals(7, sample.count);
+        assertEquals(7, count.getInt(sample));
+        assertEquals(7, count.get(sample));
+        count.set(sample, 8);
+        assertEquals(8, sample.count);
+        // widened through the field
+        assertEquals(8L, count.getLong(sample));
+        assertEquals(8.0, count.getDouble(sample), 0.0);
+
+        total.setLong(sample, 1L << 40);
+        assertEquals(1L << 40, total.getLong(sample));
+        total.setInt(sample, 3);
+        assertEquals(3L, sample.total);
+
+        name.set(sample, "abc");
+        assertEquals("abc", name.get(sample));
+        name.set(sample, null);
+        assertNull(sample.name);
+
+        flag.setBoolean(sample, true);
+        assertTrue(sample.flag);
+        assertTrue(flag.getBoolean(sample));
+
+        ratio.setDouble(sample, 0.5);
+        assertEquals(0.5, ratio.getDouble(sample), 0.0);
+
+        shared.setInt(null, 42);
+        assertEquals(42, Sample.shared);
+        assertEquals(42, shared.getInt(sample));
+    }
+
+    @Test
+    public void testInvalidAccessIsRejected() throws Exception {
+        for (boolean useUnsafe : new boolean[] {true, false}) {
+            Sample sample = new Sample();
+            FieldAccessor count = (useUnsafe ? unsafeAccessor("count") : handleAccessor("count"));
+            FieldAccessor name = (useUnsafe ? unsafeAccessor("name") : handleAccessor("name"));
+            FieldAccessor constant = (useUnsafe ? unsafeAccessor("CONSTANT") : handleAccessor("CONSTANT"));
+            try {
+                count.getInt(null);
+                fail();
+            }
+            catch (NullPointerException ex) {
+                // no target
+            }
+            try {
+                count.getInt("not a sample");
+                fail();
+            }
+            catch (IllegalArgumentException ex) {
+                // wrong target
+            }
+            try {
+                name.set(sample, 1);
+                fail();
+            }
+            catch (IllegalArgumentException ex) {
+                // wrong value type
+            }
+            try {
+                count.getBoolean(sample);
+                fail();
+            }
+            catch (IllegalArgumentException ex) {
+                // wrong field type
+            }
+            assertEquals("constant", constant.get(null));
+            try {
+                constant.set(null, "changed");
+                fail();
+            }
+            catch (IllegalStateException ex) {
+                // static final
+            }
+        }
+    }
+
+    @Test
+    public void testAccessorsAreCached() throws Exception {
+        Field first = Sample.class.getDeclaredField("count");
+        Field second = Sample.class.getDeclaredField("count");
+        assertSame(ReflectionUtil.accessor(first), ReflectionUtil.accessor(second));
+    }
+
+
+    private static class Sample {
+
+        private static final String CONSTANT = "constant";
+
+        private static int shared;
+
+        private int count;
+
+        private volatile long total;
+
+        private String name;
+
+        private boolean flag;
+
+        private double ratio;
+    }
+}
@@ -0,0 +1,89 @@
+package com.shock.utils;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LRUMapTest {
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        LRUMap<String, String> map = new LRUMap<String, String>(2);
+        map.put("a", "1");
+        map.put("b", "2");
+        map.get("a");
+        map.put("c", "3");
+        assertTrue(map.containsKey("a"));
+        assertFalse(map.containsKey("b"));
+        assertEquals("a", map.snapshot().get(0).getKey());
+        // putIfAbsent evicts like put
+        assertEquals("1", map.putIfAbsent("a", "x"));
+        assertNull(map.putIfAbsent("d", "4"));
+        assertEquals(2, map.size());
+        assertFalse(map.containsKey("c"));
+    }
+
+    @Test
+    public void testViewsIterateSnapshot() {
+        LRUMap<Integer, Integer> map = new LRUMap<Integer, Integer>(100);
+        for (int i = 0; i < 10; i++) {
+            map.put(i, i);
+        }
+        int seen = 0;
+        for (Iterator<Map.Entry<Integer, Integer>> iterator = map.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Integer, Integer> entry = iterator.next();
+            map.get(entry.getKey());
+            map.put(entry.getKey() + 100, entry.getValue());
+            if (entry.getKey() == 3) {
+                iterator.remove();
+            }
+            seen++;
+        }
+        assertEquals(10, seen);
+        assertEquals(19, map.size());
+        assertFalse(map.keySet().contains(3));
+        assertTrue(map.values().contains(4));
+        assertTrue(map.keySet().remove(4));
+        assertEquals(18, map.entrySet().size());
+        for (Iterator<Integer> iterator = map.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next() >= 100) {
+                iterator.remove();
+            }
+        }
+        assertEquals(8, map.size());
+    }
+
+    @Test
+    public void testEntrySetValueWritesThrough() {
+        LRUMap<String, String> map = new LRUMap<String, String>(10);
+        map.put("a", "1");
+        map.put("b", "2");
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (entry.getKey().equals("a")) {
+                assertEquals("1", entry.setValue("one"));
+                assertEquals("one", entry.getValue());
+            }
+        }
+        assertEquals("one", map.get("a"));
+    }
+
+    @Test
+    public void testCloneHasItsOwnViews() {
+        LRUMap<String, String> map = new LRUMap<String, String>(10);
+        map.put("a", "1");
+        // create the views of the original before cloning
+        assertEquals(1, map.keySet().size());
+        assertEquals(1, map.entrySet().size());
+        assertEquals(1, map.values().size());
+        LRUMap<String, String> clone = map.clone();
+        clone.put("b", "2");
+        assertEquals(1, map.keySet().size());
+        assertEquals(2, clone.keySet().size());
+        assertTrue(clone.keySet().contains("b"));
+        assertTrue(clone.values().contains("2"));
+        assertEquals(2, clone.entrySet().size());
+    }
+}
@@ -0,0 +1,115 @@
+package com.shock.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class MappedSnapshotTest {
+
+    private static final Codec<String> STRING_CODEC = new Codec<String>() {
+
+        private final Charset utf8 = Charset.forName("UTF-8");
+
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(this.utf8);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+            return new String(bytes, this.utf8);
+        }
+    };
+
+    @Test
+    public void testDumpAndLoadKeepsAccessOrder() throws Exception {
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(100, 1);
+            for (int i = 0; i < 100; i++) {
+                map.put("key" + i, "value" + i);
+            }
+            for (int i = 0; i < 10; i++) {
+                map.get("key" + i);
+            }
+            // a window of 64 bytes only holds a few entries at a time
+            assertEquals(100, MappedSnapshot.dump(map, file, STRING_CODEC, STRING_CODEC, 64));
+
+            ConcurrentLRUMap<String, String> restored = new ConcurrentLRUMap<String, String>(20, 1);
+            assertEquals(100, MappedSnapshot.load(file, restored, STRING_CODEC, STRING_CODEC, 64));
+            assertEquals(20, restored.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals("value" + i, restored.get("key" + i));
+            }
+            assertEquals("value99", restored.get("key99"));
+            assertFalse(restored.containsKey("key10"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testWarmUpKeepsNewerValues() throws Exception {
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            LRUMap<String, String> map = new LRUMap<String, String>(10);
+            map.put("a", "1");
+            map.put("b", "2");
+            map.put("large", new String(new char[1 << 20]).replace('\0', 'x'));
+            assertEquals(3, MappedSnapshot.dump(map, file, STRING_CODEC, STRING_CODEC));
+
+            ConcurrentLRUMap<String, String> restored = new ConcurrentLRUMap<String, String>(10, 1);
+            restored.put("a", "new");
+            Future<Long> warmUp = MappedSnapshot.warmUp(file, restored, STRING_CODEC, STRING_CODEC, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            });
+            assertEquals(Long.valueOf(3), warmUp.get());
+            assertEquals("new", restored.get("a"));
+            assertEquals("2", restored.get("b"));
+            assertEquals(1 << 20, restored.get("large").length());
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testRejectForeignFile() throws Exception {
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            java.nio.file.Files.write(file.toPath(), new byte[32]);
+            MappedSnapshot.load(file, new LRUMap<String, String>(10), STRING_CODEC, STRING_CODEC);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testRejectNegativeLength() throws Exception {
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            LRUMap<String, String> map = new LRUMap<String, String>(10);
+            map.put("a", "1");
+            MappedSnapshot.dump(map, file, STRING_CODEC, STRING_CODEC);
+            // the length of the first key, right after the header
+            java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "rw");
+            try {
+                raf.seek(16);
+                raf.writeInt(-1);
+            } finally {
+                raf.close();
+            }
+            MappedSnapshot.load(file, new LRUMap<String, String>(10), STRING_CODEC, STRING_CODEC);
+        } finally {
+            file.delete();
+        }
+    }
+}
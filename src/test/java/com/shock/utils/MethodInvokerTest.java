@@ -0,0 +1,121 @@
+package com.shock.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import static org.junit.Assert.*;
+
+public class MethodInvokerTest {
+
+    @Test
+    public void testPublicMethodsUseLambdas() throws Exception {
+        Calculator calculator = new Calculator(10);
+        MethodInvoker base = ReflectionUtil.invoker(Calculator.class.getMethod("getBase"));
+        MethodInvoker add = ReflectionUtil.invoker(Calculator.class.getMethod("add", int.class));
+        MethodInvoker join = ReflectionUtil.invoker(Calculator.class.getMethod("join", String.class, long.class));
+        assertTrue(base.toString().startsWith("LambdaInvoker"));
+        assertEquals(10, base.invoke0(calculator));
+        assertEquals(15, add.invoke1(calculator, 5));
+        assertEquals("a10", join.invoke2(calculator, "a", 10L));
+        assertEquals(15, add.invoke(calculator, 5));
+    }
+
+    @Test
+    public void testOtherMethodsUseHandles() throws Exception {
+        Calculator calculator = new Calculator(10);
+        MethodInvoker secret = ReflectionUtil.invoker(Calculator.class.getDeclaredMethod("secret"));
+        MethodInvoker twice = ReflectionUtil.invoker(Calculator.class.getMethod("twice", int.class));
+        MethodInvoker reset = ReflectionUtil.invoker(Calculator.class.getMethod("reset"));
+        MethodInvoker sum = ReflectionUtil.invoker(
+                Calculator.class.getMethod("sum", int.class, int.class, int.class));
+        assertTrue(secret.toString().startsWith("HandleInvoker"));
+        assertEquals("secret10", secret.invoke0(calculator));
+        assertEquals(8, twice.invoke1(null, 4));
+        assertNull(reset.invoke0(calculator));
+        assertEquals(0, calculator.getBase());
+        assertEquals(6, sum.invoke(null, 1, 2, 3));
+    }
+
+    @Test
+    public void testInvokersAreCached() throws Exception {
+        Method first = Calculator.class.getMethod("getBase");
+        Method second = Calculator.class.getMethod("getBase");
+        assertNotSame(first, second);
+        assertSame(ReflectionUtil.invoker(first), ReflectionUtil.invoker(second));
+    }
+
+    @Test
+    public void testExceptionsAreTranslated() throws Exception {
+        Calculator calculator = new Calculator(10);
+        try {
+            ReflectionUtil.invoker(Calculator.class.getMethod("divide", int.class)).invoke1(calculator, 0);
+            fail();
+        }
+        catch (ArithmeticException ex) {
+            // thrown as is
+        }
+        try {
+            ReflectionUtil.invoker(Calculator.class.getMethod("read")).invoke0(calculator);
+            fail();
+        }
+        catch (UndeclaredThrowableException ex) {
+            assertTrue(ex.getUndeclaredThrowable() instanceof IOException);
+        }
+        try {
+            ReflectionUtil.invoker(Calculator.class.getMethod("add", int.class)).invoke0(calculator);
+            fail();
+        }
+        catch (IllegalArgumentException ex) {
+            // wrong number of arguments
+        }
+    }
+
+
+    public static class Calculator {
+
+        private int base;
+
+        public Calculator(int base) {
+            this.base = base;
+        }
+
+        public int getBase() {
+            return this.base;
+        }
+
+        public int add(int value) {
+            return this.base + value;
+        }
+
+        public String join(String prefix, long value) {
+            return prefix + value;
+        }
+
+        public int divide(int value) {
+            return this.base / value;
+        }
+
+        public String read() throws IOException {
+            throw new IOException("not readable");
+        }
+
+        public void reset() {
+            this.base = 0;
+        }
+
+        public static int twice(int value) {
+            return value * 2;
+        }
+
+        public static int sum(int a, int b, int c) {
+            return a + b + c;
+        }
+
+        private String secret() {
+            return "secret" + this.base;
+        }
+    }
+}
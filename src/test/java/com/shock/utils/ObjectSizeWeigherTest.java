@@ -0,0 +1,60 @@
+package com.shock.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ObjectSizeWeigherTest {
+
+    @Test
+    public void testLayoutsAreCachedPerClass() {
+        ObjectSizeWeigher<String, Node> weigher = new ObjectSizeWeigher<String, Node>(3, false);
+        int leaf = weigher.weigh("a", new Node(null));
+        assertTrue(leaf > 0);
+        assertEquals(1, weigher.getCachedClassCount());
+        int chain = weigher.weigh("a", new Node(new Node(null)));
+        assertEquals(2 * leaf, chain);
+        assertEquals(1, weigher.getCachedClassCount());
+        // a field holding another class adds its layout
+        Node withPayload = new Node(null);
+        withPayload.payload = new long[4];
+        assertTrue(weigher.weigh("a", withPayload) > leaf);
+        assertEquals(1, weigher.getCachedClassCount());
+        assertTrue(weigher.weigh("a", new Node(new Holder())) > leaf);
+        assertEquals(2, weigher.getCachedClassCount());
+    }
+
+    @Test
+    public void testDepthLimitsTheWalk() {
+        Node chain = new Node(new Node(new Node(new Node(null))));
+        int shallow = new ObjectSizeWeigher<String, Node>(0, false).weigh("a", chain);
+        int deep = new ObjectSizeWeigher<String, Node>(3, false).weigh("a", chain);
+        assertEquals(4 * shallow, deep);
+        assertEquals(0, new ObjectSizeWeigher<String, Node>(3, false).weigh("a", null));
+    }
+
+    @Test
+    public void testJdkClasses() {
+        ObjectSizeWeigher<String, String> weigher = new ObjectSizeWeigher<String, String>();
+        assertTrue(weigher.weigh("key", "value") > weigher.weigh("key", null));
+    }
+
+
+    private static class Node {
+
+        private final Object next;
+
+        private long[] payload;
+
+        private int count;
+
+        Node(Object next) {
+            this.next = next;
+        }
+    }
+
+    private static class Holder {
+
+        private long value;
+    }
+}
@@ -0,0 +1,80 @@
+package com.shock.utils;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.*;
+
+public class ReflectionUtilTest {
+
+    @Test
+    public void testGetFieldWalksUpTheHierarchy() throws Exception {
+        Field own = ReflectionUtil.getField(Child.class, "age");
+        Field inherited = ReflectionUtil.getField(Child.class, "id");
+        Field shadowing = ReflectionUtil.getField(Child.class, "name");
+        assertEquals(Child.class, own.getDeclaringClass());
+        assertEquals(Parent.class, inherited.getDeclaringClass());
+        assertEquals(Child.class, shadowing.getDeclaringClass());
+        assertTrue(inherited.isAccessible());
+        assertEquals(Parent.class, ReflectionUtil.getField(Parent.class, "name").getDeclaringClass());
+        assertSame(own, ReflectionUtil.getField(Child.class, "age"));
+    }
+
+    @Test
+    public void testGetMethodWalksUpTheHierarchy() throws Exception {
+        Method own = ReflectionUtil.getMethod(Child.class, "grow");
+        Method inherited = ReflectionUtil.getMethod(Child.class, "identify");
+        Method overriding = ReflectionUtil.getMethod(Child.class, "describe");
+        assertEquals(Child.class, own.getDeclaringClass());
+        assertEquals(Parent.class, inherited.getDeclaringClass());
+        assertEquals(Child.class, overriding.getDeclaringClass());
+        assertTrue(inherited.isAccessible());
+        assertEquals("child", overriding.invoke(new Child()));
+    }
+
+    @Test
+    public void testMissesReturnNull() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertNull(ReflectionUtil.getField(Child.class, "missing"));
+            assertNull(ReflectionUtil.getMethod(Child.class, "missing"));
+        }
+        // members of Object are not indexed
+        assertNull(ReflectionUtil.getMethod(Child.class, "hashCode"));
+        assertNull(ReflectionUtil.getField(Object.class, "id"));
+        assertNull(ReflectionUtil.getField(null, "id"));
+    }
+
+
+    private static class Parent {
+
+        private long id;
+
+        private String name;
+
+        private long identify() {
+            return this.id;
+        }
+
+        String describe() {
+            return "parent";
+        }
+    }
+
+    private static class Child extends Parent {
+
+        private int age;
+
+        private String name;
+
+        void grow() {
+            this.age++;
+        }
+
+        @Override
+        String describe() {
+            return "child";
+        }
+    }
+}
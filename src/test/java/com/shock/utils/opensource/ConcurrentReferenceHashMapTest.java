@@ -0,0 +1,607 @@
+package com.shock.utils.opensource;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentReferenceHashMapTest {
+
+    @Test
+    public void testIncrementalResize() {
+        ConcurrentReferenceHashMap<Integer, Integer> map = new ConcurrentReferenceHashMap<Integer, Integer>(
+                16, 0.75f, 1, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        ConcurrentReferenceHashMap<Integer, Integer>.Segment segment = map.getSegment(0);
+        boolean sawResize = false;
+        for (int i = 0; i < 10000; i++) {
+            map.put(i, i);
+            if (segment.isResizing()) {
+                sawResize = true;
+                // entries stay visible to readers and iterators in the middle of a resize
+                assertEquals(Integer.valueOf(0), map.get(0));
+                assertEquals(Integer.valueOf(i), map.get(i));
+            }
+        }
+        assertTrue(sawResize);
+        assertEquals(10000, map.size());
+        Set<Integer> keys = new HashSet<Integer>();
+        for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+            assertTrue(keys.add(entry.getKey()));
+        }
+        assertEquals(10000, keys.size());
+        map.purgeUnreferencedEntries();
+        assertFalse(segment.isResizing());
+        assertTrue(segment.getSize() >= 10000 / 0.75f);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(Integer.valueOf(i), map.get(i));
+        }
+    }
+
+    @Test
+    public void testConcurrentAccessDuringResize() throws Exception {
+        final ConcurrentReferenceHashMap<Integer, Integer> map = new ConcurrentReferenceHashMap<Integer, Integer>(
+                16, 0.75f, 2, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            final int base = t * 100000;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 50000; i++) {
+                            map.put(base + i, i);
+                            if (!Integer.valueOf(i).equals(map.get(base + i))) {
+                                throw new AssertionError("lost " + (base + i));
+                            }
+                            if (i > 0 && !Integer.valueOf(i / 2).equals(map.get(base + i / 2))) {
+                                throw new AssertionError("lost " + (base + i / 2));
+                            }
+                        }
+                    } catch (Throwable ex) {
+                        failure.set(ex);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        assertNull(String.valueOf(failure.get()), failure.get());
+        assertEquals(200000, map.size());
+    }
+
+    @Test
+    public void testPurgeUnlinksInPlace() {
+        ConcurrentReferenceHashMap<Integer, Integer> map = new ConcurrentReferenceHashMap<Integer, Integer>(
+                16384, 0.75f, 1, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        Integer[] keys = new Integer[10000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+            map.put(keys[i], i);
+        }
+        ConcurrentReferenceHashMap.Reference<?, ?>[] survivors = new ConcurrentReferenceHashMap.Reference<?, ?>[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            ConcurrentReferenceHashMap.Reference<Integer, Integer> reference =
+                    map.getReference(keys[i], ConcurrentReferenceHashMap.Restructure.NEVER);
+            if (i % 2 == 0) {
+                reference.release();
+            }
+            else {
+                survivors[i] = reference;
+            }
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long threadId = Thread.currentThread().getId();
+        // warm up the measurement itself
+        threads.getThreadAllocatedBytes(threadId);
+        long before = threads.getThreadAllocatedBytes(threadId);
+        map.purgeUnreferencedEntries();
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        // re-wrapping the 5000 survivors alone would take well over 100KB
+        assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+        assertEquals(5000, map.size());
+        for (int i = 0; i < keys.length; i++) {
+            ConcurrentReferenceHashMap.Reference<Integer, Integer> reference =
+                    map.getReference(keys[i], ConcurrentReferenceHashMap.Restructure.NEVER);
+            if (i % 2 == 0) {
+                assertNull(reference);
+            }
+            else {
+                assertSame(survivors[i], reference);
+                assertEquals(Integer.valueOf(i), map.get(keys[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testMappingCount() {
+        ConcurrentReferenceHashMap<Integer, Integer> map = new ConcurrentReferenceHashMap<Integer, Integer>(
+                16, 0.75f, 4, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        Integer[] keys = new Integer[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+            map.put(keys[i], i);
+            map.put(keys[i], i + 1);
+        }
+        assertEquals(1000L, map.mappingCount());
+        assertEquals(1000, map.size());
+        for (int i = 0; i < 300; i++) {
+            map.remove(keys[i]);
+        }
+        map.purgeUnreferencedEntries();
+        assertEquals(700L, map.mappingCount());
+        // collected but not yet purged entries are still counted
+        map.getReference(keys[500], ConcurrentReferenceHashMap.Restructure.NEVER).release();
+        assertEquals(700L, map.mappingCount());
+        map.purgeUnreferencedEntries();
+        assertEquals(699L, map.mappingCount());
+        map.clear();
+        assertEquals(0L, map.mappingCount());
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testComputeIfAbsentOncePerKey() throws Exception {
+        final ConcurrentReferenceHashMap<Integer, Integer> map = new ConcurrentReferenceHashMap<Integer, Integer>(
+                16, 0.75f, 4, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        final Integer[] keys = new Integer[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+        final ConcurrentMap<Integer, AtomicInteger> calls = new ConcurrentHashMap<Integer, AtomicInteger>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (Integer key : keys) {
+                            map.computeIfAbsent(key, new Function<Integer, Integer>() {
+                                @Override
+                                public Integer apply(Integer k) {
+                                    calls.putIfAbsent(k, new AtomicInteger());
+                                    calls.get(k).incrementAndGet();
+                                    return k * 2;
+                                }
+                            });
+                        }
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assertEquals(keys.length, map.size());
+        for (Integer key : keys) {
+            assertEquals(1, calls.get(key).get());
+            assertEquals(Integer.valueOf(key * 2), map.get(key));
+        }
+    }
+
+    @Test
+    public void testComputeAndMerge() {
+        ConcurrentReferenceHashMap<String, Integer> map = new ConcurrentReferenceHashMap<String, Integer>();
+        BiFunction<String, Integer, Integer> increment = new BiFunction<String, Integer, Integer>() {
+            @Override
+            public Integer apply(String key, Integer value) {
+                return (value == null ? 1 : value + 1);
+            }
+        };
+        BiFunction<Object, Object, Integer> remove = new BiFunction<Object, Object, Integer>() {
+            @Override
+            public Integer apply(Object a, Object b) {
+                return null;
+            }
+        };
+        assertNull(map.computeIfPresent("a", increment));
+        assertFalse(map.containsKey("a"));
+        assertEquals(Integer.valueOf(1), map.compute("a", increment));
+        assertEquals(Integer.valueOf(2), map.compute("a", increment));
+        assertEquals(Integer.valueOf(3), map.computeIfPresent("a", increment));
+        assertEquals(Integer.valueOf(3), map.computeIfAbsent("a", constant(100)));
+        assertNull(map.computeIfAbsent("b", constant(null)));
+        assertFalse(map.containsKey("b"));
+
+        BiFunction<Integer, Integer, Integer> sum = new BiFunction<Integer, Integer, Integer>() {
+            @Override
+            public Integer apply(Integer a, Integer b) {
+                return a + b;
+            }
+        };
+        assertEquals(Integer.valueOf(5), map.merge("b", 5, sum));
+        assertEquals(Integer.valueOf(12), map.merge("b", 7, sum));
+        assertNull(map.merge("b", 1, remove));
+        assertFalse(map.containsKey("b"));
+        assertNull(map.compute("a", remove));
+        assertTrue(map.isEmpty() || !map.containsKey("a"));
+        map.purgeUnreferencedEntries();
+        assertTrue(map.isEmpty());
+
+        map.put("x", 1);
+        map.put("y", 2);
+        final AtomicInteger total = new AtomicInteger();
+        map.forEach(new BiConsumer<String, Integer>() {
+            @Override
+            public void accept(String key, Integer value) {
+                total.addAndGet(value);
+            }
+        });
+        assertEquals(3, total.get());
+    }
+
+    @Test
+    public void testRecursiveUpdateIsRejected() {
+        // one segment, so every key shares the lock of the running function
+        final ConcurrentReferenceHashMap<String, Integer> map = new ConcurrentReferenceHashMap<String, Integer>(
+                16, 0.75f, 1, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        map.put("a", 1);
+        try {
+            map.computeIfAbsent("b", new Function<String, Integer>() {
+                @Override
+                public Integer apply(String key) {
+                    return map.put("c", 3);
+                }
+            });
+            fail();
+        }
+        catch (IllegalStateException ex) {
+            assertEquals("Recursive update", ex.getMessage());
+        }
+        try {
+            map.merge("a", 1, new BiFunction<Integer, Integer, Integer>() {
+                @Override
+                public Integer apply(Integer a, Integer b) {
+                    return map.remove("a");
+                }
+            });
+            fail();
+        }
+        catch (IllegalStateException ex) {
+            // expected
+        }
+        // reading from the function is fine
+        assertEquals(Integer.valueOf(2), map.compute("a", new BiFunction<String, Integer, Integer>() {
+            @Override
+            public Integer apply(String key, Integer value) {
+                return map.get("a") + 1;
+            }
+        }));
+        assertEquals(1, map.size());
+        assertFalse(map.containsKey("b"));
+        assertFalse(map.containsKey("c"));
+    }
+
+    @Test
+    public void testReadOfCollectedKeyFromFunction() throws Exception {
+        // one segment and one bucket, the function reads while the task holds on to the bucket
+        final ConcurrentReferenceHashMap<Object, String> map = new ConcurrentReferenceHashMap<Object, String>(
+                16, 0.75f, 1, ConcurrentReferenceHashMap.ReferenceType.WEAK_KEYS);
+        final Object kept = new SameHashKey();
+        final AtomicReference<Object> dropped = new AtomicReference<Object>(new SameHashKey());
+        map.put(kept, "kept");
+        map.put(dropped.get(), "dropped");
+        final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+        final WeakReference<Object> probe = new WeakReference<Object>(dropped.get(), queue);
+        Object added = new SameHashKey();
+        map.compute(added, new BiFunction<Object, String, String>() {
+            @Override
+            public String apply(Object key, String value) {
+                // collected after the task captured the head of the bucket
+                dropped.set(null);
+                awaitCollected(probe, queue);
+                assertEquals("kept", map.get(kept));
+                return "added";
+            }
+        });
+        map.purgeUnreferencedEntries();
+        SegmentStatistics statistics = map.segmentStatistics().get(0);
+        assertEquals(2, statistics.getCount());
+        long references = 0;
+        long[] chainLengths = statistics.getChainLengths();
+        for (int i = 0; i < chainLengths.length; i++) {
+            references += i * chainLengths[i];
+        }
+        assertEquals(2, references);
+        assertEquals("added", map.get(added));
+        assertEquals("kept", map.get(kept));
+    }
+
+    /**
+     * Collect garbage until the map has purged down to the expected size.
+     */
+    private static void collectUntil(ConcurrentReferenceHashMap<?, ?> map, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            System.gc();
+            map.purgeUnreferencedEntries();
+            if (map.size() == size) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("size " + map.size() + " expected " + size);
+    }
+
+    /**
+     * Collect garbage until the referent of the probe is collected and enqueued.
+     */
+    private static void awaitCollected(WeakReference<?> probe, ReferenceQueue<?> queue) {
+        long deadline = System.currentTimeMillis() + 10000;
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                System.gc();
+                if (queue.remove(10) == probe) {
+                    // the map's reference is cleared with the probe, give it time to be enqueued too
+                    Thread.sleep(10);
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        fail("not collected");
+    }
+
+    private static <K, V> Function<K, V> constant(final V value) {
+        return new Function<K, V>() {
+            @Override
+            public V apply(K key) {
+                return value;
+            }
+        };
+    }
+
+    /**
+     * @param distinct whether to fail on a key that was seen before
+     */
+    private static Consumer<Map.Entry<Integer, Integer>> addKeys(final Set<Integer> seen, final boolean distinct) {
+        return new Consumer<Map.Entry<Integer, Integer>>() {
+            @Override
+            public void accept(Map.Entry<Integer, Integer> entry) {
+                boolean added = seen.add(entry.getKey());
+                assertTrue(added || !distinct);
+            }
+        };
+    }
+
+    /**
+     * Keys that all land in the same bucket.
+     */
+    private static final class SameHashKey {
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+    }
+
+    @Test
+    public void testWeakKeys() throws Exception {
+        ConcurrentReferenceHashMap<Object, String> map = new ConcurrentReferenceHashMap<Object, String>(
+                16, ConcurrentReferenceHashMap.ReferenceType.WEAK_KEYS);
+        Object kept = new Object();
+        map.put(kept, "kept");
+        map.put(new Object(), "dropped");
+        assertEquals(2, map.size());
+        collectUntil(map, 1);
+        assertEquals("kept", map.get(kept));
+        assertEquals("kept2", map.compute(kept, new BiFunction<Object, String, String>() {
+            @Override
+            public String apply(Object key, String value) {
+                return value + "2";
+            }
+        }));
+        try {
+            map.put(null, "null");
+            fail();
+        }
+        catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWeakValues() throws Exception {
+        ConcurrentReferenceHashMap<String, Object> map = new ConcurrentReferenceHashMap<String, Object>(
+                16, ConcurrentReferenceHashMap.ReferenceType.WEAK_VALUES);
+        Object kept = new Object();
+        map.put("kept", kept);
+        map.put("dropped", new Object());
+        // the replaced value is collected, the entry stays
+        map.put("replaced", new Object());
+        map.put("replaced", kept);
+        collectUntil(map, 2);
+        assertSame(kept, map.get("kept"));
+        assertSame(kept, map.get("replaced"));
+        assertNull(map.get("dropped"));
+        try {
+            map.put("kept", null);
+            fail();
+        }
+        catch (IllegalArgumentException ex) {
+            // expected
+        }
+        assertSame(kept, map.get("kept"));
+        assertSame(kept, map.remove("kept"));
+        assertNull(map.get("kept"));
+    }
+
+    @Test
+    public void testCollectedNodesAreNotRecreated() {
+        // what a resize sees when a key or value is collected after the node was found live
+        ConcurrentReferenceHashMap<Object, Object> weakKeys = new ConcurrentReferenceHashMap<Object, Object>(
+                16, ConcurrentReferenceHashMap.ReferenceType.WEAK_KEYS);
+        assertNull(weakKeys.createReferenceManager().createReference(
+                new ConcurrentReferenceHashMap.Entry<Object, Object>(null, "value"), 0, null));
+        assertNotNull(weakKeys.createReferenceManager().createReference(
+                new ConcurrentReferenceHashMap.Entry<Object, Object>("key", null), 0, null));
+        ConcurrentReferenceHashMap<Object, Object> weakValues = new ConcurrentReferenceHashMap<Object, Object>(
+                16, ConcurrentReferenceHashMap.ReferenceType.WEAK_VALUES);
+        assertNull(weakValues.createReferenceManager().createReference(
+                new ConcurrentReferenceHashMap.Entry<Object, Object>("key", null), 0, null));
+    }
+
+    @Test
+    public void testSoftValuesSurviveGc() throws Exception {
+        ConcurrentReferenceHashMap<String, Object> map = new ConcurrentReferenceHashMap<String, Object>(
+                16, ConcurrentReferenceHashMap.ReferenceType.SOFT_VALUES);
+        map.put("a", new Object());
+        System.gc();
+        map.purgeUnreferencedEntries();
+        assertEquals(1, map.size());
+        Object value = map.get("a");
+        assertNotNull(value);
+        assertSame(value, map.remove("a"));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testIdentityKeys() {
+        ConcurrentReferenceHashMap<String, Integer> map = new ConcurrentReferenceHashMap<String, Integer>(
+                16, 0.75f, 1, ConcurrentReferenceHashMap.ReferenceType.SOFT, true);
+        String a = new String("a");
+        String b = new String("a");
+        map.put(a, 1);
+        map.put(b, 2);
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(1), map.get(a));
+        assertEquals(Integer.valueOf(2), map.get(b));
+        assertNull(map.get("a"));
+        assertTrue(map.containsKey(a));
+        assertFalse(map.containsKey("a"));
+    }
+
+    @Test
+    public void testSpliterator() {
+        for (int concurrencyLevel : new int[] {1, 16}) {
+            ConcurrentReferenceHashMap<Integer, Integer> map = new ConcurrentReferenceHashMap<Integer, Integer>(
+                    16, 0.75f, concurrencyLevel, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+            Integer[] keys = new Integer[10000];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = i;
+                map.put(keys[i], i);
+            }
+            Spliterator<Map.Entry<Integer, Integer>> spliterator = map.entrySet().spliterator();
+            assertEquals(10000, spliterator.estimateSize());
+            Spliterator<Map.Entry<Integer, Integer>> prefix = spliterator.trySplit();
+            assertNotNull(prefix);
+            assertEquals(5000, prefix.estimateSize());
+            final Set<Integer> seen = new HashSet<Integer>();
+            prefix.forEachRemaining(addKeys(seen, true));
+            spliterator.forEachRemaining(addKeys(seen, true));
+            assertEquals(10000, seen.size());
+
+            final Set<Integer> parallel = Collections.synchronizedSet(new HashSet<Integer>());
+            map.entrySet().parallelStream().forEach(addKeys(parallel, true));
+            assertEquals(10000, parallel.size());
+        }
+    }
+
+    @Test
+    public void testBulkOperations() {
+        ConcurrentReferenceHashMap<Integer, Integer> map = new ConcurrentReferenceHashMap<Integer, Integer>(
+                16, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        Integer[] keys = new Integer[10000];
+        long expected = 0;
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+            map.put(keys[i], i);
+            expected += i;
+        }
+        for (long threshold : new long[] {1, Long.MAX_VALUE}) {
+            final AtomicLong sum = new AtomicLong();
+            map.forEach(threshold, new BiConsumer<Integer, Integer>() {
+                @Override
+                public void accept(Integer key, Integer value) {
+                    sum.addAndGet(value);
+                }
+            });
+            assertEquals(expected, sum.get());
+            assertEquals(Long.valueOf(expected), map.reduce(threshold, new BiFunction<Integer, Integer, Long>() {
+                @Override
+                public Long apply(Integer key, Integer value) {
+                    return (long) value;
+                }
+            }, new BiFunction<Long, Long, Long>() {
+                @Override
+                public Long apply(Long a, Long b) {
+                    return a + b;
+                }
+            }));
+            assertEquals(Integer.valueOf(4242), map.search(threshold, new BiFunction<Integer, Integer, Integer>() {
+                @Override
+                public Integer apply(Integer key, Integer value) {
+                    return (value == 4242 ? key : null);
+                }
+            }));
+            BiFunction<Object, Object, Long> none = new BiFunction<Object, Object, Long>() {
+                @Override
+                public Long apply(Object a, Object b) {
+                    return null;
+                }
+            };
+            assertNull(map.search(threshold, none));
+            assertNull(map.reduce(threshold, none, none));
+        }
+    }
+
+    @Test
+    public void testSpliteratorDuringResize() {
+        ConcurrentReferenceHashMap<Integer, Integer> map = new ConcurrentReferenceHashMap<Integer, Integer>(
+                16, 0.75f, 1, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        Integer[] keys = new Integer[20000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+        for (int i = 0; i < 6000; i++) {
+            map.put(keys[i], i);
+        }
+        Spliterator<Map.Entry<Integer, Integer>> spliterator = map.entrySet().spliterator();
+        Spliterator<Map.Entry<Integer, Integer>> prefix = spliterator.trySplit();
+        final Set<Integer> seen = new HashSet<Integer>();
+        // resize while the spliterators are half way through
+        for (int i = 0; i < 100; i++) {
+            prefix.tryAdvance(addKeys(seen, false));
+        }
+        for (int i = 6000; i < keys.length; i++) {
+            map.put(keys[i], i);
+        }
+        prefix.forEachRemaining(addKeys(seen, false));
+        spliterator.forEachRemaining(addKeys(seen, false));
+        for (int i = 0; i < 6000; i++) {
+            assertTrue(seen.contains(i));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.shock.utils.opensource;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentReferenceOpenHashMapTest {
+
+    @Test
+    public void testMapOperations() {
+        ConcurrentReferenceOpenHashMap<String, Integer> map = new ConcurrentReferenceOpenHashMap<String, Integer>();
+        assertNull(map.put("a", 1));
+        assertEquals(Integer.valueOf(1), map.put("a", 2));
+        assertEquals(Integer.valueOf(2), map.putIfAbsent("a", 3));
+        assertNull(map.putIfAbsent("b", 3));
+        assertNull(map.put(null, 4));
+        assertEquals(Integer.valueOf(4), map.get(null));
+        assertEquals(3, map.size());
+        assertFalse(map.replace("a", 1, 5));
+        assertTrue(map.replace("a", 2, 5));
+        assertEquals(Integer.valueOf(5), map.replace("a", 6));
+        assertNull(map.replace("c", 1));
+        assertFalse(map.remove("a", 5));
+        assertTrue(map.remove("a", 6));
+        assertFalse(map.containsKey("a"));
+        assertEquals(Integer.valueOf(3), map.remove("b"));
+        assertEquals(1, map.size());
+
+        Map<String, Integer> copy = new HashMap<String, Integer>(map);
+        assertEquals(1, copy.size());
+        assertEquals(Integer.valueOf(4), copy.get(null));
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testTombstonesAreReclaimed() {
+        ConcurrentReferenceOpenHashMap<Integer, Integer> map = new ConcurrentReferenceOpenHashMap<Integer, Integer>(
+                64, 0.5f, 1, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        ConcurrentReferenceOpenHashMap<Integer, Integer>.Segment segment = map.getSegment(0);
+        int size = segment.getSize();
+        Integer[] keys = new Integer[100000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+            map.put(keys[i], i);
+            if (i >= 10) {
+                assertEquals(Integer.valueOf(i - 10), map.remove(keys[i - 10]));
+            }
+        }
+        // a steady number of entries does not grow the table
+        assertEquals(size, segment.getSize());
+        assertEquals(10, map.size());
+        for (int i = keys.length - 10; i < keys.length; i++) {
+            assertEquals(Integer.valueOf(i), map.get(keys[i]));
+        }
+    }
+
+    @Test
+    public void testGrowAndIterate() {
+        ConcurrentReferenceOpenHashMap<Integer, Integer> map = new ConcurrentReferenceOpenHashMap<Integer, Integer>(
+                16, 0.5f, 4, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        Integer[] keys = new Integer[10000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+            map.put(keys[i], i);
+        }
+        assertEquals(10000, map.size());
+        long sum = 0;
+        for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue());
+            sum += entry.getValue();
+        }
+        assertEquals(10000L * 9999 / 2, sum);
+    }
+
+    @Test
+    public void testCollectedEntriesArePurged() throws Exception {
+        ConcurrentReferenceOpenHashMap<Integer, Object> map = new ConcurrentReferenceOpenHashMap<Integer, Object>(
+                16, ConcurrentReferenceHashMap.ReferenceType.WEAK);
+        for (int i = 0; i < 100; i++) {
+            map.put(i, new Object());
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (map.size() > 0 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            map.purgeUnreferencedEntries();
+            Thread.sleep(10);
+        }
+        assertEquals(0, map.size());
+        assertNull(map.get(1));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final ConcurrentReferenceOpenHashMap<Integer, Integer> map = new ConcurrentReferenceOpenHashMap<Integer, Integer>(
+                16, 0.5f, 2, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            final int base = t * 100000;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 50000; i++) {
+                            map.put(base + i, i);
+                            if (!Integer.valueOf(i).equals(map.get(base + i))) {
+                                throw new AssertionError("lost " + (base + i));
+                            }
+                            if (i % 2 == 1 && !Integer.valueOf(i - 1).equals(map.remove(base + i - 1))) {
+                                throw new AssertionError("lost " + (base + i - 1));
+                            }
+                        }
+                    }
+                    catch (Throwable ex) {
+                        failure.set(ex);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        assertNull(String.valueOf(failure.get()), failure.get());
+        assertEquals(100000, map.size());
+    }
+}
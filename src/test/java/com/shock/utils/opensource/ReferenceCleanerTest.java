@@ -0,0 +1,77 @@
+package com.shock.utils.opensource;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReferenceCleanerTest {
+
+    private static ConcurrentReferenceHashMap<Integer, Integer> releasedMap(Integer[] keys, int released) {
+        ConcurrentReferenceHashMap<Integer, Integer> map = new ConcurrentReferenceHashMap<Integer, Integer>(
+                keys.length, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+            map.put(keys[i], i);
+        }
+        for (int i = 0; i < released; i++) {
+            map.getReference(keys[i], ConcurrentReferenceHashMap.Restructure.NEVER).release();
+        }
+        return map;
+    }
+
+    @Test
+    public void testTickIsBounded() {
+        ReferenceCleaner cleaner = new ReferenceCleaner(1, TimeUnit.HOURS, 100);
+        try {
+            Integer[] firstKeys = new Integer[1000];
+            Integer[] secondKeys = new Integer[1000];
+            ConcurrentReferenceHashMap<Integer, Integer> first = cleaner.register(releasedMap(firstKeys, 150));
+            ConcurrentReferenceHashMap<Integer, Integer> second = cleaner.register(releasedMap(secondKeys, 150));
+            assertEquals(2, cleaner.getRegisteredCount());
+
+            assertEquals(100, cleaner.tick());
+            assertEquals(900, first.size());
+            assertEquals(1000, second.size());
+            // the map that was not reached goes first
+            assertEquals(100, cleaner.tick());
+            assertEquals(900, second.size());
+            assertEquals(100, cleaner.tick());
+            assertEquals(0, cleaner.tick());
+            assertEquals(850, first.size());
+            assertEquals(850, second.size());
+            assertEquals(300, cleaner.getPurgedCount());
+            assertEquals(4, cleaner.getTickCount());
+            for (int i = 150; i < 1000; i++) {
+                assertEquals(Integer.valueOf(i), first.get(firstKeys[i]));
+                assertEquals(Integer.valueOf(i), second.get(secondKeys[i]));
+            }
+
+            assertTrue(cleaner.unregister(first));
+            assertFalse(cleaner.unregister(first));
+            assertEquals(1, cleaner.getRegisteredCount());
+        }
+        finally {
+            cleaner.shutdown();
+        }
+    }
+
+    @Test
+    public void testBackgroundThread() throws Exception {
+        ReferenceCleaner cleaner = new ReferenceCleaner(10, TimeUnit.MILLISECONDS, 1000);
+        try {
+            Integer[] keys = new Integer[1000];
+            ConcurrentReferenceHashMap<Integer, Integer> map = cleaner.register(releasedMap(keys, 500));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cleaner.getPurgedCount() < 500 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(500, map.size());
+            assertEquals(500, cleaner.getPurgedCount());
+        }
+        finally {
+            cleaner.shutdown();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.shock.utils.opensource;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SegmentStatisticsTest {
+
+    @Test
+    public void testCounters() throws Exception {
+        final ConcurrentReferenceHashMap<Integer, Integer> map = new ConcurrentReferenceHashMap<Integer, Integer>(
+                16, 0.75f, 1, ConcurrentReferenceHashMap.ReferenceType.SOFT);
+        final Integer[] keys = new Integer[100];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+        map.put(keys[0], 0);
+        map.getSegment(0).drainPurgeQueue(16);
+        assertFalse(map.isRecordingStatistics());
+        assertEquals(0, map.segmentStatistics().get(0).getLockAcquisitions());
+
+        map.setRecordingStatistics(true);
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], i);
+        }
+        map.remove(keys[0]);
+        SegmentStatistics statistics = map.segmentStatistics().get(0);
+        assertTrue(statistics.getLockAcquisitions() >= keys.length);
+        assertEquals(0, statistics.getContendedAcquisitions());
+        assertTrue(statistics.getResizes() > 0);
+        assertEquals(1, statistics.getPurges());
+        assertEquals(99, statistics.getCount());
+        long buckets = 0;
+        long references = 0;
+        long[] chainLengths = statistics.getChainLengths();
+        for (int i = 0; i < chainLengths.length; i++) {
+            buckets += chainLengths[i];
+            references += i * chainLengths[i];
+        }
+        assertEquals(statistics.getTableSize(), buckets);
+        assertEquals(99, references);
+
+        // a writer that has to wait for the lock
+        ConcurrentReferenceHashMap<Integer, Integer>.Segment segment = map.getSegment(0);
+        segment.lock();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                map.put(keys[0], 0);
+            }
+        });
+        try {
+            writer.start();
+            while (!segment.hasQueuedThreads()) {
+                Thread.sleep(1);
+            }
+        }
+        finally {
+            segment.unlock();
+        }
+        writer.join();
+        assertEquals(1, map.segmentStatistics().get(0).getContendedAcquisitions());
+    }
+
+    @Test
+    public void testAdvice() {
+        long[] chainLengths = new long[SegmentStatistics.CHAIN_LENGTHS];
+        SegmentStatistics contended = new SegmentStatistics(10000, 3000, 0, 0, 300, 512, chainLengths);
+        SegmentStatistics quiet = new SegmentStatistics(10000, 0, 0, 0, 100, 512, chainLengths);
+
+        SizingAdvice advice = SizingAdvice.of(Arrays.asList(contended, quiet), 0.75f);
+        assertEquals(4, advice.getConcurrencyLevel());
+        assertEquals(0.15, advice.getContentionRate(), 0.0001);
+        // the fullest segment must not resize
+        assertEquals(2 * 401, advice.getInitialCapacity());
+
+        advice = SizingAdvice.of(Arrays.asList(quiet, quiet), 0.75f);
+        assertEquals(1, advice.getConcurrencyLevel());
+
+        // too few samples to judge
+        SegmentStatistics idle = new SegmentStatistics(10, 5, 0, 0, 0, 16, chainLengths);
+        advice = SizingAdvice.of(Collections.singletonList(idle), 0.75f);
+        assertEquals(1, advice.getConcurrencyLevel());
+        assertEquals(1, advice.getInitialCapacity());
+    }
+}